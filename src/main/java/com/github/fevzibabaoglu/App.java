@@ -1,8 +1,6 @@
 package com.github.fevzibabaoglu;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.SwingUtilities;
@@ -11,6 +9,7 @@ import com.github.fevzibabaoglu.file.FileManager;
 import com.github.fevzibabaoglu.gui.MainFrame;
 import com.github.fevzibabaoglu.network.Peer;
 import com.github.fevzibabaoglu.network.broadcast.BroadcastManager;
+import com.github.fevzibabaoglu.network.file_transfer.DownloadManager;
 import com.github.fevzibabaoglu.network.file_transfer.FileTransferManager;
 
 public class App {
@@ -19,10 +18,11 @@ public class App {
     private static final int TTL = 3;
     private static final int BROADCAST_INTERVAL = 20000;
 
-    private ExecutorService threadPool;
+    private TaskScope taskScope;
     private final FileManager fileManager;
     private final BroadcastManager broadcastManager;
     private final FileTransferManager fileTransferManager;
+    private final DownloadManager downloadManager;
 
     private final AtomicReference<Peer> localPeerRef;
     private final AtomicReference<MainFrame> mainFrameRef;
@@ -36,14 +36,28 @@ public class App {
         sourcePath = defaultSourcePath;
         destinationPath = defaultDestinationPath;
 
-        threadPool = Executors.newFixedThreadPool(4);
+        taskScope = new TaskScope("app");
         fileManager = new FileManager(this.sourcePath, this.destinationPath, CHUNK_SIZE);
         broadcastManager = new BroadcastManager(this, fileManager, TTL);
         fileTransferManager = new FileTransferManager(this, fileManager);
+        downloadManager = new DownloadManager(this, fileManager, fileTransferManager);
 
         localPeerRef = new AtomicReference<>();
         mainFrameRef = new AtomicReference<>();
 
+        // Peers whose Bloom filter matched a download confirm that they share the file
+        fileTransferManager.setFileQueryListener(downloadManager::onFileQueryAnswered);
+
+        // Catalogs arrive after the discovery round that advertised their new versions, snapshots of the network carry them
+        broadcastManager.setCatalogSource(fileTransferManager::getCatalog);
+        fileTransferManager.setCatalogListener(peer -> {
+            broadcastManager.onCatalogUpdated();
+            publishLocalPeer();
+            if (mainFrameRef.get() != null) {
+                mainFrameRef.get().getDownloadPanel().updatePeerFileTree();
+            }
+        });
+
         threadsRunning = false;
     }
 
@@ -55,10 +69,19 @@ public class App {
         return fileTransferManager;
     }
 
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
     public Peer getLocalPeer() {
         return localPeerRef.get();
     }
 
+    // Scope of the network loops and downloads, closed by shutdownThreads
+    public TaskScope getTaskScope() {
+        return taskScope;
+    }
+
     public MainFrame getMainFrame() {
         return mainFrameRef.get();
     }
@@ -68,24 +91,26 @@ public class App {
             return;
         }
 
-        // Recreate thread pool if shutdown
-        if (threadPool.isShutdown()) {
-            threadPool = Executors.newFixedThreadPool(4);
+        // Recreate task scope if shutdown
+        if (taskScope.isClosed()) {
+            taskScope = new TaskScope("app");
         }
 
         threadsRunning = true;
 
-        threadPool.submit(() -> {
+        taskScope.fork(() -> {
             try {
                 while (threadsRunning) {
-                    broadcastManager.clearPeerCache();
+                    broadcastManager.refreshLocalPeer();
                     broadcastManager.sendBroadcasts(null);
                     Thread.sleep(BROADCAST_INTERVAL);
-                    localPeerRef.set(broadcastManager.getLocalPeer());
-                    fileTransferManager.setLocalPeer(localPeerRef.get());
+                    publishLocalPeer();
+                    fileTransferManager.syncCatalogs();
                     if (mainFrameRef.get() != null) {
                         mainFrameRef.get().getDownloadPanel().updatePeerFileTree();
                     }
+                    downloadManager.resumeDownloads();
+                    fileTransferManager.closeIdleConnections();
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -94,7 +119,7 @@ public class App {
             }
         });
 
-        threadPool.submit(() -> {
+        taskScope.fork(() -> {
             try {
                 broadcastManager.listenBroadcasts();
             } catch (Exception e) {
@@ -102,7 +127,7 @@ public class App {
             }
         });
 
-        threadPool.submit(() -> {
+        taskScope.fork(() -> {
             try {
                 broadcastManager.listenResponses();
             } catch (Exception e) {
@@ -110,7 +135,7 @@ public class App {
             }
         });
 
-        threadPool.submit(() -> {
+        taskScope.fork(() -> {
             try {
                 fileTransferManager.listen();
             } catch (Exception e) {
@@ -125,17 +150,28 @@ public class App {
         }
 
         threadsRunning = false;
-        threadPool.shutdownNow();
+        // Cancels the loops and downloads, waiting for them to stop
+        taskScope.close();
+
+        // Checkpoint unfinished downloads so that they resume on the next start
+        fileManager.suspendDownloads();
+        fileTransferManager.closeConnections();
 
         // Reset resources to a clean state
         broadcastManager.clearPeerCache();
-        localPeerRef.set(broadcastManager.getLocalPeer());
-        fileTransferManager.setLocalPeer(localPeerRef.get());
+        publishLocalPeer();
         if (mainFrameRef.get() != null) {
             mainFrameRef.get().getDownloadPanel().updatePeerFileTree();
         }
     }
 
+    // Hand the current snapshot of the network, with the cached catalogs of the peers, to its readers
+    private void publishLocalPeer() {
+        Peer localPeer = broadcastManager.getLocalPeer();
+        fileTransferManager.setLocalPeer(localPeer);
+        localPeerRef.set(localPeer);
+    }
+
     public boolean isThreadsRunning() {
         return threadsRunning;
     }
@@ -0,0 +1,135 @@
+package com.github.fevzibabaoglu;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Owns the threads of the tasks forked in it; close() interrupts every task still running and waits for them to end,
+// so no task outlives the scope. With -Dp2p.threads=virtual each task runs on its own virtual thread,
+// which needs Java 21 at runtime; older runtimes fall back to platform threads.
+public class TaskScope implements AutoCloseable {
+
+    private static final Method OF_VIRTUAL = findOfVirtual();
+    private static final boolean VIRTUAL_THREADS_REQUESTED = "virtual".equalsIgnoreCase(System.getProperty("p2p.threads", "platform"));
+    private static final boolean VIRTUAL_THREADS = VIRTUAL_THREADS_REQUESTED && OF_VIRTUAL != null;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final String name;
+    private final ThreadFactory threadFactory;
+    private final Set<Thread> threads;
+    private volatile boolean closed;
+
+    static {
+        if (VIRTUAL_THREADS_REQUESTED && !VIRTUAL_THREADS) {
+            System.out.printf("[%s] Virtual threads are not available on Java %s, using platform threads.\n", TaskScope.class.getSimpleName(), Runtime.version().feature());
+        }
+    }
+
+    public TaskScope(String name) {
+        this.name = name;
+        this.threadFactory = newThreadFactory(name);
+        this.threads = ConcurrentHashMap.newKeySet();
+        this.closed = false;
+    }
+
+    public Thread fork(Runnable task) {
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                threads.remove(Thread.currentThread());
+            }
+        });
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Task scope " + name + " is closed");
+            }
+            threads.add(thread);
+        }
+        thread.start();
+        return thread;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getTaskCount() {
+        return threads.size();
+    }
+
+    // Cancel the running tasks and wait up to CLOSE_TIMEOUT for them to finish
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        for (Thread thread : threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!threads.isEmpty()) {
+            System.out.printf("[%s] %d tasks still running after the scope was closed.\n", name, threads.size());
+        }
+    }
+
+    public static boolean isVirtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    // Threads of the configured kind for executors that bound their own concurrency, e.g. the transfer workers
+    public static ThreadFactory newThreadFactory(String name) {
+        return newThreadFactory(name, VIRTUAL_THREADS);
+    }
+
+    // Platform threads if virtual ones are asked for but not available
+    public static ThreadFactory newThreadFactory(String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL == null) {
+            System.out.printf("[%s] Virtual threads are not available on Java %s, using platform threads.\n", name, Runtime.version().feature());
+        } else if (virtual) {
+            try {
+                // Thread.ofVirtual().name(name + "-", 0).factory(), without compiling against Java 21
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.out.printf("[%s] Virtual threads could not be created, using platform threads: %s\n", name, e);
+            }
+        }
+
+        AtomicLong counter = new AtomicLong();
+        return task -> new Thread(task, name + "-" + counter.getAndIncrement());
+    }
+
+    // Null before Java 21, and on Java 19 and 20 unless preview features are enabled
+    private static Method findOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+// Compact summary of a set of shared files by their hashes, advertised in discovery instead of the file list.
+// mightContain has no false negatives; a false positive, about 1% at the default of 10 bits per file,
+// costs one query to the peer (see FileQueryMessage).
+// File hashes are already uniform digests, the probe positions are taken from their first 16 bytes by double hashing.
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS_PER_FILE = Integer.getInteger("p2p.discovery.filterBitsPerFile", 10);
+    private static final int MAX_HASH_COUNT = 64;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    private BloomFilter(long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    public static BloomFilter of(Collection<PeerFileMetadata> fileMetadatas) {
+        int bitsPerFile = Math.max(1, BITS_PER_FILE);
+        long bitCount = Math.max(64L, (long) fileMetadatas.size() * bitsPerFile);
+        int hashCount = Math.max(1, (int) Math.round(bitsPerFile * Math.log(2)));
+
+        BloomFilter filter = new BloomFilter(new long[(int) ((bitCount + 63) / 64)], hashCount);
+        for (PeerFileMetadata fileMetadata : fileMetadatas) {
+            filter.add(fileMetadata.getHash());
+        }
+        return filter;
+    }
+
+    public boolean mightContain(PeerFileMetadata fileMetadata) {
+        long bitCount = getBitCount();
+        long[] probes = probes(fileMetadata.getHash());
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(probes[0] + i * probes[1], bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getBitCount() {
+        return 64L * bits.length;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    // Filters come from other peers, one without bits or probes would fail or stall every lookup
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (bits == null || bits.length == 0) {
+            throw new InvalidObjectException("Bloom filter without bits");
+        }
+        if (hashCount <= 0 || hashCount > MAX_HASH_COUNT) {
+            throw new InvalidObjectException("Bloom filter with " + hashCount + " hash functions");
+        }
+    }
+
+    private void add(byte[] hash) {
+        long bitCount = getBitCount();
+        long[] probes = probes(hash);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(probes[0] + i * probes[1], bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // An odd step visits distinct positions as long as the bit count is a power of two, and rarely repeats otherwise
+    private static long[] probes(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap((hash.length >= 16) ? hash : Arrays.copyOf(hash, 16));
+        return new long[] {buffer.getLong(), buffer.getLong() | 1};
+    }
+}
@@ -0,0 +1,307 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU cache of recently uploaded chunks, kept off-heap in direct buffers.
+// Keyed by file hash, chunk size and chunk index, so a cached chunk always matches the content that was asked for.
+// Bounded by a byte budget; a budget of 0 disables the cache.
+// Buffers are allocated once, up to the budget, and recycled on eviction. Senders lease a chunk and write its
+// buffer straight to the socket; leased chunks are not evicted, and invalidated ones are recycled once released.
+public class ChunkCache {
+
+    private final long capacityBytes;
+    private final LinkedHashMap<ChunkKey, Slot> chunks;
+    // Recycled buffers by capacity, one capacity per chunk size
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers;
+
+    // Bytes of every buffer the cache allocated and still owns: cached, free or leased after eviction
+    private long allocatedBytes;
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ChunkCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true);
+        this.freeBuffers = new HashMap<>();
+        this.allocatedBytes = 0;
+        this.sizeBytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes > 0;
+    }
+
+    // Lease on the cached chunk, or null on a miss; the lease must be closed once the chunk is written
+    public synchronized Lease get(byte[] fileHash, int chunkSize, int chunkIndex) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Slot slot = chunks.get(new ChunkKey(fileHash, chunkSize, chunkIndex));
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        slot.users++;
+        return new Lease(slot);
+    }
+
+    // Loads a missed chunk into a recycled buffer and caches it, returns a lease on it.
+    // Null when the cache is disabled or every buffer is leased, the caller then reads the chunk itself.
+    public Lease put(byte[] fileHash, int chunkSize, int chunkIndex, int length, Loader loader) throws IOException {
+        if (length > chunkSize) {
+            throw new IllegalArgumentException("Chunk longer than its chunk size: " + length);
+        }
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = takeBuffer(chunkSize);
+        }
+        if (buffer == null) {
+            return null;
+        }
+
+        // Read outside the lock, so hits are not held up by the disk
+        try {
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (loader.load(buffer) < 0) {
+                    throw new IOException("File shrank while caching a chunk");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                recycle(buffer);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            Slot slot = new Slot(buffer, length);
+            slot.users++;
+            Slot previous = chunks.put(new ChunkKey(fileHash, chunkSize, chunkIndex), slot);
+            if (previous != null) {
+                evict(previous);
+            }
+            sizeBytes += buffer.capacity();
+            return new Lease(slot);
+        }
+    }
+
+    // Drop every chunk of a file that is no longer shared or whose content changed
+    public synchronized void invalidate(byte[] fileHash) {
+        Iterator<Map.Entry<ChunkKey, Slot>> iterator = chunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ChunkKey, Slot> entry = iterator.next();
+            if (Arrays.equals(entry.getKey().fileHash, fileHash)) {
+                iterator.remove();
+                evict(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, chunks.size(), sizeBytes, capacityBytes);
+    }
+
+    // A free buffer of the given capacity, evicting the least recently used chunks that are not leased to make room for it
+    private ByteBuffer takeBuffer(int capacity) {
+        if (!isEnabled() || capacity > capacityBytes) {
+            return null;
+        }
+
+        // Access order puts the least recently used chunk first
+        Iterator<Slot> iterator = chunks.values().iterator();
+        while (true) {
+            ArrayDeque<ByteBuffer> buffers = freeBuffers.get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                return buffers.poll();
+            }
+            if (allocatedBytes + capacity <= capacityBytes) {
+                allocatedBytes += capacity;
+                return ByteBuffer.allocateDirect(capacity);
+            }
+            // Free buffers of another chunk size are released to the allocator
+            if (dropFreeBuffer()) {
+                continue;
+            }
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            // A chunk that is being sent keeps its buffer
+            Slot slot = iterator.next();
+            if (slot.users > 0) {
+                continue;
+            }
+            iterator.remove();
+            evict(slot);
+            evictions++;
+        }
+    }
+
+    private boolean dropFreeBuffer() {
+        for (ArrayDeque<ByteBuffer> buffers : freeBuffers.values()) {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                allocatedBytes -= buffer.capacity();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Called with the slot already out of the map; its buffer is reused once no sender reads it anymore
+    private void evict(Slot slot) {
+        sizeBytes -= slot.buffer.capacity();
+        slot.evicted = true;
+        if (slot.users == 0) {
+            recycle(slot.buffer);
+        }
+    }
+
+    private synchronized void release(Slot slot) {
+        slot.users--;
+        if (slot.users == 0 && slot.evicted) {
+            recycle(slot.buffer);
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        freeBuffers.computeIfAbsent(buffer.capacity(), capacity -> new ArrayDeque<>()).add(buffer);
+    }
+
+    // Fills the buffer from the file, returns the number of bytes read or -1 at the end of the file
+    public interface Loader {
+        int load(ByteBuffer buffer) throws IOException;
+    }
+
+    public class Lease implements AutoCloseable {
+
+        private final Slot slot;
+        private boolean closed;
+
+        private Lease(Slot slot) {
+            this.slot = slot;
+            this.closed = false;
+        }
+
+        // Read-only view of the chunk with its own position, so it can be written more than once
+        public ByteBuffer getData() {
+            ByteBuffer data = slot.buffer.asReadOnlyBuffer();
+            data.clear().limit(slot.length);
+            return data;
+        }
+
+        public int getLength() {
+            return slot.length;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(slot);
+            }
+        }
+    }
+
+    public static class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int chunkCount;
+        private final long sizeBytes;
+        private final long capacityBytes;
+
+        private Stats(long hits, long misses, long evictions, int chunkCount, long sizeBytes, long capacityBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.chunkCount = chunkCount;
+            this.sizeBytes = sizeBytes;
+            this.capacityBytes = capacityBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRate() {
+            long lookups = hits + misses;
+            return (lookups == 0) ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hit rate %.1f%% (%d hits, %d misses), %d evictions, %d chunks, %d/%d MB",
+                getHitRate() * 100, hits, misses, evictions, chunkCount, sizeBytes / (1024 * 1024), capacityBytes / (1024 * 1024));
+        }
+    }
+
+    private static class Slot {
+
+        private final ByteBuffer buffer;
+        private final int length;
+        private int users;
+        private boolean evicted;
+
+        private Slot(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+            this.users = 0;
+            this.evicted = false;
+        }
+    }
+
+    private static class ChunkKey {
+
+        private final byte[] fileHash;
+        private final int chunkSize;
+        private final int chunkIndex;
+
+        private ChunkKey(byte[] fileHash, int chunkSize, int chunkIndex) {
+            this.fileHash = fileHash;
+            this.chunkSize = chunkSize;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) obj;
+            return chunkIndex == other.chunkIndex && chunkSize == other.chunkSize && Arrays.equals(fileHash, other.fileHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(fileHash) + chunkSize) + chunkIndex;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.fevzibabaoglu.file;
+
+// Chooses the chunk size of a file from its size, so that small files are sent in one chunk
+// and huge files in tens of thousands of chunks instead of hundreds of thousands.
+// The choice only depends on the file size, every peer sharing the same content picks the same size.
+public class ChunkSizePolicy {
+
+    public static final int MIN_CHUNK_SIZE = Integer.getInteger("p2p.chunkSize.min", 256 * 1024);
+    public static final int MAX_CHUNK_SIZE = Integer.getInteger("p2p.chunkSize.max", 8 * 1024 * 1024);
+    private static final int TARGET_CHUNK_COUNT = Integer.getInteger("p2p.chunkSize.targetCount", 128);
+    private static final int FIXED_CHUNK_SIZE = Integer.getInteger("p2p.chunkSize.fixed", 0);
+
+    private ChunkSizePolicy() {}
+
+    // Smallest power of two between the bounds that keeps the file within the target chunk count
+    public static int chooseChunkSize(long fileSize) {
+        if (FIXED_CHUNK_SIZE > 0) {
+            return FIXED_CHUNK_SIZE;
+        }
+
+        long chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < MAX_CHUNK_SIZE && fileSize > chunkSize * TARGET_CHUNK_COUNT) {
+            chunkSize <<= 1;
+        }
+        return (int) Math.min(chunkSize, MAX_CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+// Persistent record of a download: the file it is for and a bitfield of its verified chunks.
+// Bits are only written after the chunk data was forced to disk, so a set bit never points at lost data.
+// Layout: [MAGIC][VERSION][header length][header][bitfield], the header holds size, chunk size, hashes and name.
+public class DownloadJournal implements Closeable {
+
+    public static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x5032444a;
+    private static final int VERSION = 1;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private final Path journalPath;
+    private final FileChannel channel;
+    private final PeerFileMetadata fileMetadata;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final long bitfieldPosition;
+    private final BitSet receivedChunks;
+
+    private DownloadJournal(Path journalPath, FileChannel channel, PeerFileMetadata fileMetadata, int chunkSize, int chunkCount, long bitfieldPosition, BitSet receivedChunks) {
+        this.journalPath = journalPath;
+        this.channel = channel;
+        this.fileMetadata = fileMetadata;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.bitfieldPosition = bitfieldPosition;
+        this.receivedChunks = receivedChunks;
+    }
+
+    // Start a new journal with no chunks received, replacing any old one
+    public static DownloadJournal create(Path journalPath, PeerFileMetadata fileMetadata, int chunkSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(fileMetadata.getFileSize());
+            out.writeInt(chunkSize);
+            writeBytes(out, fileMetadata.getHash());
+            writeBytes(out, fileMetadata.getRootHash());
+            out.writeUTF(fileMetadata.getFilename());
+        }
+        byte[] header = bytes.toByteArray();
+        int chunkCount = TreeHash.blockCount(fileMetadata.getFileSize(), chunkSize);
+
+        ByteBuffer buffer = ByteBuffer.allocate(12 + header.length + bitfieldLength(chunkCount));
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(header.length).put(header);
+        buffer.position(buffer.capacity()).flip();
+
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DownloadJournal(journalPath, channel, fileMetadata, chunkSize, chunkCount, 12 + header.length, new BitSet(chunkCount));
+    }
+
+    public static DownloadJournal open(Path journalPath) throws IOException {
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a download journal: " + journalPath);
+            }
+            int headerLength = in.readInt();
+            if (headerLength <= 0 || headerLength > MAX_HEADER_SIZE) {
+                throw new IOException("Corrupt download journal: " + journalPath);
+            }
+
+            long fileSize = in.readLong();
+            int chunkSize = in.readInt();
+            byte[] hash = readBytes(in);
+            byte[] rootHash = readBytes(in);
+            String filename = in.readUTF();
+            PeerFileMetadata fileMetadata = new PeerFileMetadata(journalPath.resolveSibling(filename), fileSize, chunkSize, hash, rootHash);
+
+            int chunkCount = TreeHash.blockCount(fileSize, chunkSize);
+            byte[] bitfield = new byte[bitfieldLength(chunkCount)];
+            in.readFully(bitfield);
+            return new DownloadJournal(journalPath, channel, fileMetadata, chunkSize, chunkCount, 12 + headerLength, BitSet.valueOf(bitfield));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getJournalPath() {
+        return journalPath;
+    }
+
+    public PeerFileMetadata getFileMetadata() {
+        return fileMetadata;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public BitSet getReceivedChunks() {
+        return (BitSet) receivedChunks.clone();
+    }
+
+    // Persist the bitfield, the chunks it marks must already be on disk
+    public synchronized void write(BitSet receivedChunks) throws IOException {
+        byte[] bits = receivedChunks.toByteArray();
+        ByteBuffer bitfield = ByteBuffer.allocate(bitfieldLength(chunkCount));
+        bitfield.put(bits, 0, Math.min(bits.length, bitfield.capacity())).clear();
+        while (bitfield.hasRemaining()) {
+            channel.write(bitfield, bitfieldPosition + bitfield.position());
+        }
+        channel.force(false);
+
+        this.receivedChunks.clear();
+        this.receivedChunks.or(receivedChunks);
+    }
+
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(journalPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int bitfieldLength(int chunkCount) {
+        return (chunkCount + 7) / 8;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
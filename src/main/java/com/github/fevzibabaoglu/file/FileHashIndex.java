@@ -0,0 +1,393 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Persistent cache of file digests (identity hash and tree root) keyed by path, size, mtime and inode.
+// The index is an append-only log of checksummed records, so a crash can only lose the tail of the log.
+// Leaf hashes are kept next to it, one checksummed file per tree root, so uploads never rehash a shared file.
+public class FileHashIndex {
+
+    private static final int MAGIC = 0x50324849;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TREE_MAGIC = 0x50325454;
+    private static final int TREE_HEADER_SIZE = 12;
+    private static final int LEAF_SIZE = 32;
+    private static final String TREE_SUFFIX = ".tree";
+
+    private final Path indexPath;
+    private final Path treesPath;
+    private final Map<String, Entry> entries;
+
+    private FileChannel channel;
+    private DataOutputStream log;
+    private int staleRecords;
+
+    public FileHashIndex(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        this.treesPath = indexPath.resolveSibling(indexPath.getFileName() + ".trees");
+        this.entries = new HashMap<>();
+        this.staleRecords = 0;
+
+        Files.createDirectories(treesPath.toAbsolutePath());
+        long validLength = load();
+        openLog(validLength);
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Returns the stored metadata if the file has not changed since it was hashed, else null
+    public synchronized PeerFileMetadata lookup(Path path, BasicFileAttributes attributes) {
+        Entry entry = entries.get(toKey(path));
+        // A digest over another chunk size is stale once the chunk size policy changed
+        if (entry == null || !entry.matches(attributes) || entry.chunkSize != ChunkSizePolicy.chooseChunkSize(entry.size)) {
+            return null;
+        }
+
+        // The root is stored under either identity, the whole-file digest only when it was the identity
+        if (PeerFileMetadata.TREE_HASH_IDENTITY) {
+            return new PeerFileMetadata(path, entry.size, entry.chunkSize, entry.rootHash, entry.rootHash);
+        }
+        if (Arrays.equals(entry.hash, entry.rootHash)) {
+            return null;
+        }
+        return new PeerFileMetadata(path, entry.size, entry.chunkSize, entry.hash, entry.rootHash);
+    }
+
+    public synchronized void put(Path path, BasicFileAttributes attributes, PeerFileMetadata fileMetadata) throws IOException {
+        Entry entry = new Entry(attributes.size(), toModifiedTime(attributes), toFileKey(attributes), fileMetadata.getChunkSize(), fileMetadata.getHash(), fileMetadata.getRootHash());
+        String key = toKey(path);
+        if (entries.put(key, entry) != null) {
+            staleRecords++;
+        }
+        writeRecord(log, key, entry);
+    }
+
+    public synchronized void remove(Path path) throws IOException {
+        String key = toKey(path);
+        if (entries.remove(key) != null) {
+            staleRecords += 2;
+            writeRecord(log, key, null);
+        }
+    }
+
+    // Tree of a shared file by its root, or null if its leaves were never persisted or do not add up to the root
+    public TreeHash lookupTree(byte[] rootHash, int blockSize) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(toTreePath(rootHash));
+        } catch (IOException e) {
+            return null;
+        }
+
+        int bodyLength = bytes.length - 8;
+        if (bodyLength < TREE_HEADER_SIZE || (bodyLength - TREE_HEADER_SIZE) % LEAF_SIZE != 0) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bodyLength);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getLong(bodyLength) != crc.getValue() || buffer.getInt() != TREE_MAGIC || buffer.getInt() != blockSize) {
+            return null;
+        }
+
+        int leafCount = buffer.getInt();
+        if (leafCount != (bodyLength - TREE_HEADER_SIZE) / LEAF_SIZE) {
+            return null;
+        }
+        byte[][] leaves = new byte[leafCount][LEAF_SIZE];
+        for (byte[] leaf : leaves) {
+            buffer.get(leaf);
+        }
+        TreeHash treeHash = TreeHash.of(blockSize, leaves);
+        return Arrays.equals(treeHash.getRoot(), rootHash) ? treeHash : null;
+    }
+
+    // Persist the leaves of a tree; the tree file is written whole and then moved in place
+    public synchronized void putTree(TreeHash treeHash) throws IOException {
+        Path treePath = toTreePath(treeHash.getRoot());
+        if (Files.exists(treePath)) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE + treeHash.getBlockCount() * LEAF_SIZE + 8);
+        buffer.putInt(TREE_MAGIC).putInt(treeHash.getBlockSize()).putInt(treeHash.getBlockCount());
+        for (int blockIndex = 0; blockIndex < treeHash.getBlockCount(); blockIndex++) {
+            buffer.put(treeHash.getLeaf(blockIndex));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        Path tempPath = treePath.resolveSibling(treePath.getFileName() + ".tmp");
+        Files.write(tempPath, buffer.array());
+        Files.move(tempPath, treePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Drop every entry whose path is not in the given set (e.g. deleted files after a full scan)
+    public synchronized void retainAll(Set<Path> paths) throws IOException {
+        Set<String> keys = new HashSet<>();
+        for (Path path : paths) {
+            keys.add(toKey(path));
+        }
+
+        List<String> removedKeys = new ArrayList<>();
+        for (String key : entries.keySet()) {
+            if (!keys.contains(key)) {
+                removedKeys.add(key);
+            }
+        }
+        for (String key : removedKeys) {
+            entries.remove(key);
+            staleRecords += 2;
+            writeRecord(log, key, null);
+        }
+    }
+
+    // Push buffered records to disk, compacting the log once most of it is stale
+    public synchronized void flush() throws IOException {
+        log.flush();
+        if (staleRecords > Math.max(1024, entries.size())) {
+            compact();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        log.flush();
+        channel.close();
+    }
+
+    // Replay the log, returning the length of its valid prefix
+    private long load() throws IOException {
+        if (!Files.exists(indexPath)) {
+            return 0;
+        }
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return 0;
+            }
+            validLength = HEADER_SIZE;
+
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                long checksum = in.readLong();
+                if (checksum != checksum(body)) {
+                    break;
+                }
+
+                applyRecord(body);
+                validLength += 4 + length + 8;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end of the log, keep the valid prefix
+        }
+        return validLength;
+    }
+
+    private void applyRecord(byte[] body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            byte type = in.readByte();
+            String key = in.readUTF();
+            if (type == RECORD_REMOVE) {
+                if (entries.remove(key) != null) {
+                    staleRecords++;
+                }
+                staleRecords++;
+                return;
+            }
+
+            long size = in.readLong();
+            long modifiedTime = in.readLong();
+            String fileKey = in.readUTF();
+            int chunkSize = in.readInt();
+            byte[] hash = new byte[in.readUnsignedShort()];
+            in.readFully(hash);
+            byte[] rootHash = new byte[in.readUnsignedShort()];
+            in.readFully(rootHash);
+
+            if (entries.put(key, new Entry(size, modifiedTime, fileKey, chunkSize, hash, rootHash)) != null) {
+                staleRecords++;
+            }
+        }
+    }
+
+    private void openLog(long validLength) throws IOException {
+        channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (validLength == 0) {
+            // Missing, unreadable or outdated index, start over
+            channel.truncate(0);
+            entries.clear();
+            staleRecords = 0;
+            writeHeader(channel);
+            validLength = HEADER_SIZE;
+        } else {
+            // Cut off a torn or corrupt tail so new records follow the valid prefix
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        log = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+
+    // Rewrite live entries to a temporary file and atomically replace the log
+    private void compact() throws IOException {
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(tempChannel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tempChannel), BUFFER_SIZE));
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            tempChannel.force(true);
+        }
+
+        channel.close();
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        staleRecords = 0;
+        openLog(Files.size(indexPath));
+        removeUnusedTrees();
+    }
+
+    // Trees whose root no entry refers to anymore, and temporary files left by a crash
+    private void removeUnusedTrees() throws IOException {
+        Set<Path> usedTreePaths = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            usedTreePaths.add(toTreePath(entry.rootHash));
+        }
+
+        try (DirectoryStream<Path> treePaths = Files.newDirectoryStream(treesPath)) {
+            for (Path treePath : treePaths) {
+                if (!usedTreePaths.contains(treePath)) {
+                    Files.deleteIfExists(treePath);
+                }
+            }
+        }
+    }
+
+    private Path toTreePath(byte[] rootHash) {
+        StringBuilder name = new StringBuilder(rootHash.length * 2 + TREE_SUFFIX.length());
+        for (byte b : rootHash) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return treesPath.resolve(name.append(TREE_SUFFIX).toString());
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        OutputStream out = Channels.newOutputStream(channel);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream body = new DataOutputStream(bos)) {
+            body.writeByte(entry == null ? RECORD_REMOVE : RECORD_PUT);
+            body.writeUTF(key);
+            if (entry != null) {
+                body.writeLong(entry.size);
+                body.writeLong(entry.modifiedTime);
+                body.writeUTF(entry.fileKey);
+                body.writeInt(entry.chunkSize);
+                body.writeShort(entry.hash.length);
+                body.write(entry.hash);
+                body.writeShort(entry.rootHash.length);
+                body.write(entry.rootHash);
+            }
+        }
+
+        byte[] bytes = bos.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(checksum(bytes));
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static String toKey(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static long toModifiedTime(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+    }
+
+    // Inode (and device) on Unix file systems, empty where the platform has no file key
+    private static String toFileKey(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? "" : fileKey.toString();
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long modifiedTime;
+        private final String fileKey;
+        private final int chunkSize;
+        private final byte[] hash;
+        private final byte[] rootHash;
+
+        private Entry(long size, long modifiedTime, String fileKey, int chunkSize, byte[] hash, byte[] rootHash) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.fileKey = fileKey;
+            this.chunkSize = chunkSize;
+            this.hash = hash;
+            this.rootHash = rootHash;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                && modifiedTime == toModifiedTime(attributes)
+                && fileKey.equals(toFileKey(attributes));
+        }
+    }
+}
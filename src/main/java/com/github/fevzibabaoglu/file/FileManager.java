@@ -1,30 +1,72 @@
 package com.github.fevzibabaoglu.file;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
 
 public class FileManager {
 
+    private static final int MAX_CACHED_TREE_HASHES = 8;
+    private static final boolean PREALLOCATED_DOWNLOADS = !"chunks".equals(System.getProperty("p2p.download.storage", "preallocated"));
+    private static final long CHUNK_CACHE_BYTES = Long.getLong("p2p.chunkCache.bytes", 64L * 1024 * 1024);
+    private static final long CHUNK_CACHE_REPORT_INTERVAL = 60 * 1000;
+    private static final Path DEFAULT_HASH_INDEX_PATH = Paths.get(System.getProperty("user.home"), ".p2p-file-sharing", "hash-index");
+
     private String sourcePath;
     private String destinationPath;
-    private final int chunkSize;
+    private final int defaultChunkSize;
     private final List<Path> excludedPaths;
+    private final Path hashIndexPath;
+    private volatile FileHashIndex hashIndex;
+    private volatile HashingEngine hashingEngine;
+    private volatile ShareCatalog shareCatalog;
+    private final Map<PeerFileMetadata, TreeHash> treeHashes;
+    private final Map<PeerFileMetadata, CompletableFuture<TreeHash>> pendingTreeHashes;
+    private final Map<PeerFileMetadata, PartialFile> partialFiles;
+    private final ChunkCache chunkCache;
+    private volatile long lastChunkCacheReportTime;
 
     public FileManager(String sourcePath, String destinationPath, int chunkSize) {
+        this(sourcePath, destinationPath, chunkSize, DEFAULT_HASH_INDEX_PATH);
+    }
+
+    public FileManager(String sourcePath, String destinationPath, int chunkSize, Path hashIndexPath) {
         this.sourcePath = sourcePath;
         this.destinationPath = destinationPath;
-        this.chunkSize = chunkSize;
+        this.defaultChunkSize = chunkSize;
         this.excludedPaths = new CopyOnWriteArrayList<>();
+        this.hashIndexPath = hashIndexPath.toAbsolutePath();
+        this.hashIndex = null;
+        this.hashingEngine = null;
+        this.shareCatalog = null;
+        this.treeHashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PeerFileMetadata, TreeHash> eldest) {
+                return size() > MAX_CACHED_TREE_HASHES;
+            }
+        };
+        this.pendingTreeHashes = new ConcurrentHashMap<>();
+        this.partialFiles = new ConcurrentHashMap<>();
+        this.chunkCache = new ChunkCache(CHUNK_CACHE_BYTES);
+        this.lastChunkCacheReportTime = System.currentTimeMillis();
     }
 
     public String getSourcePath() {
@@ -33,6 +75,7 @@ public class FileManager {
 
     public void setSourcePath(String sourcePath) {
         this.sourcePath = sourcePath;
+        closeShareCatalog();
     }
 
     public String getDestinationPath() {
@@ -45,54 +88,330 @@ public class FileManager {
 
     public void addExcludedPath(Path path) {
         excludedPaths.add(path);
+        ShareCatalog catalog = shareCatalog;
+        if (catalog != null) {
+            catalog.exclude(path);
+        }
     }
 
     public void removeExcludedPath(Path path) {
         excludedPaths.remove(path);
+        ShareCatalog catalog = shareCatalog;
+        if (catalog != null) {
+            try {
+                catalog.include(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    // Reads a specific chunk from the file to send
+    // Reads a specific chunk from the file to send, popular chunks are served from the chunk cache.
+    // Object streams need the chunk on the heap, so this copies it; the binary protocol writes leased chunks instead.
     public byte[] loadChunk(PeerFileMetadata fileMetadata, int chunkIndex) throws IOException {
-        Path path = Paths.get(sourcePath, fileMetadata.getFilename());
+        ChunkCache.Lease cachedChunk = chunkCache.get(fileMetadata.getHash(), getChunkSize(fileMetadata), chunkIndex);
+        reportChunkCache();
+        if (cachedChunk == null) {
+            try (FileChannel channel = openChunkChannel(fileMetadata)) {
+                cachedChunk = cacheChunk(fileMetadata, channel, chunkIndex);
+                if (cachedChunk == null) {
+                    ByteBuffer chunkData = ByteBuffer.allocate(getChunkLength(fileMetadata, channel, chunkIndex));
+                    readChunk(channel, getChunkPosition(fileMetadata, chunkIndex), chunkData);
+                    return chunkData.array();
+                }
+            }
+        }
+
+        try (ChunkCache.Lease lease = cachedChunk) {
+            byte[] chunkData = new byte[lease.getLength()];
+            lease.getData().get(chunkData);
+            return chunkData;
+        }
+    }
+
+    // Lease on a chunk in the off-heap cache, loaded from the channel on a miss.
+    // Null when the cache has no buffer to spare, the caller then sends the chunk straight from the file.
+    public ChunkCache.Lease leaseChunk(PeerFileMetadata fileMetadata, FileChannel channel, int chunkIndex) throws IOException {
+        ChunkCache.Lease cachedChunk = chunkCache.get(fileMetadata.getHash(), getChunkSize(fileMetadata), chunkIndex);
+        reportChunkCache();
+        return (cachedChunk != null) ? cachedChunk : cacheChunk(fileMetadata, channel, chunkIndex);
+    }
+
+    private ChunkCache.Lease cacheChunk(PeerFileMetadata fileMetadata, FileChannel channel, int chunkIndex) throws IOException {
+        int chunkLength = getChunkLength(fileMetadata, channel, chunkIndex);
+        long chunkPosition = getChunkPosition(fileMetadata, chunkIndex);
+        return chunkCache.put(fileMetadata.getHash(), getChunkSize(fileMetadata), chunkIndex, chunkLength,
+            buffer -> channel.read(buffer, chunkPosition + buffer.position()));
+    }
+
+    private static void readChunk(FileChannel channel, long position, ByteBuffer chunkData) throws IOException {
+        while (chunkData.hasRemaining()) {
+            if (channel.read(chunkData, position + chunkData.position()) < 0) {
+                throw new EOFException("File shrank while reading a chunk");
+            }
+        }
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    // Hit-rate metrics at most once a minute, to size p2p.chunkCache.bytes
+    private void reportChunkCache() {
+        long now = System.currentTimeMillis();
+        if (chunkCache.isEnabled() && now - lastChunkCacheReportTime >= CHUNK_CACHE_REPORT_INTERVAL) {
+            lastChunkCacheReportTime = now;
+            System.out.printf("[%s] Chunk cache: %s\n", sourcePath, chunkCache.getStats());
+        }
+    }
+
+    // Cached chunks and trees of a file are dropped as soon as the catalog sees it change
+    private void invalidateFile(PeerFileMetadata fileMetadata) {
+        chunkCache.invalidate(fileMetadata.getHash());
+        synchronized (treeHashes) {
+            treeHashes.remove(fileMetadata);
+        }
+    }
+
+    // Opens a shared file so that its chunks can be sent without copying them through the heap
+    public FileChannel openChunkChannel(PeerFileMetadata fileMetadata) throws IOException {
+        Path path = resolveSharedPath(fileMetadata);
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File not found: " + fileMetadata.getFilename());
         }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
 
+    // Length of a chunk in the file behind the channel
+    public int getChunkLength(PeerFileMetadata fileMetadata, FileChannel channel, int chunkIndex) throws IOException {
+        int chunkSize = getChunkSize(fileMetadata);
         long startPosition = (long) chunkIndex * chunkSize;
-
-        long fileSize = Files.size(path);
+        long fileSize = channel.size();
         if (startPosition >= fileSize) {
             throw new IllegalArgumentException("Requested chunk is out of bounds.");
         }
+        return (int) Math.min(chunkSize, fileSize - startPosition);
+    }
+
+    public long getChunkPosition(PeerFileMetadata fileMetadata, int chunkIndex) {
+        return (long) chunkIndex * getChunkSize(fileMetadata);
+    }
 
-        // Determine the size of the chunk
-        int bytesToRead = (int) Math.min(chunkSize, fileSize - startPosition);
-        byte[] chunkData = new byte[bytesToRead];
+    // Chunk size both sides of a transfer use for a file, metadata from peers without one fall back to the default
+    public int getChunkSize(PeerFileMetadata fileMetadata) {
+        return (fileMetadata.getChunkSize() > 0) ? fileMetadata.getChunkSize() : defaultChunkSize;
+    }
 
-        // Read the chunk
-        try (RandomAccessFile raf = new RandomAccessFile(path.toString(), "r")) {
-            raf.seek(startPosition);
-            raf.readFully(chunkData);
-            return chunkData;
+    // Save an incoming chunk to disk, the chunk was already verified against the tree root.
+    // Chunks of a started download go to their offset in the partial file, others to their own "name.N" file.
+    public Path saveChunk(FileChunkMessage fileChunkMessage) throws IOException {
+        PartialFile partialFile = partialFiles.get(fileChunkMessage.getFileMetadata());
+        if (partialFile != null) {
+            partialFile.writeChunk(fileChunkMessage.getChunkIndex(), fileChunkMessage.getChunkData());
+            return partialFile.getPartPath();
         }
-    }
 
-    // Save an incoming chunk to disk
-    public PeerFileMetadata saveChunk(FileChunkMessage fileChunkMessage) throws IOException, NoSuchAlgorithmException {
         String chunkFilename = String.format("%s.%s", fileChunkMessage.getFileMetadata().getFilename(), fileChunkMessage.getChunkIndex());
         Path path = Paths.get(destinationPath, chunkFilename);
         try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path.toString()))) {
             out.write(fileChunkMessage.getChunkData());
         }
-        return new PeerFileMetadata(path);
+        return path;
+    }
+
+    // Tree of a shared file, used to attach a Merkle proof to every chunk sent.
+    // Concurrent requests for a file that is not cached wait for the first one to load it.
+    public TreeHash getTreeHash(PeerFileMetadata fileMetadata) throws IOException, NoSuchAlgorithmException {
+        int chunkSize = getChunkSize(fileMetadata);
+        synchronized (treeHashes) {
+            TreeHash treeHash = treeHashes.get(fileMetadata);
+            if (treeHash != null && treeHash.getBlockSize() == chunkSize) {
+                return treeHash;
+            }
+        }
+
+        CompletableFuture<TreeHash> future = new CompletableFuture<>();
+        CompletableFuture<TreeHash> pendingFuture = pendingTreeHashes.putIfAbsent(fileMetadata, future);
+        if (pendingFuture != null) {
+            return awaitTreeHash(pendingFuture);
+        }
+
+        try {
+            TreeHash treeHash = loadTreeHash(fileMetadata, chunkSize);
+            synchronized (treeHashes) {
+                treeHashes.put(fileMetadata, treeHash);
+            }
+            future.complete(treeHash);
+            return treeHash;
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingTreeHashes.remove(fileMetadata, future);
+        }
+    }
+
+    // Leaves persisted when the file was indexed, else hash the file on the hashing pool and persist them
+    private TreeHash loadTreeHash(PeerFileMetadata fileMetadata, int chunkSize) throws IOException, NoSuchAlgorithmException {
+        FileHashIndex index = hashIndex;
+        if (index != null) {
+            TreeHash treeHash = index.lookupTree(fileMetadata.getRootHash(), chunkSize);
+            if (treeHash != null) {
+                return treeHash;
+            }
+        }
+
+        // The root only matches if the requester asked for the chunk size the file was shared with
+        Path path = resolveSharedPath(fileMetadata);
+        HashingEngine engine = hashingEngine;
+        TreeHash treeHash = (engine != null)
+            ? engine.computeTreeHash(path, chunkSize)
+            : TreeHash.compute(path, chunkSize, ForkJoinPool.commonPool(), null);
+        if (!Arrays.equals(treeHash.getRoot(), fileMetadata.getRootHash())) {
+            throw new IOException("File changed since it was shared: " + fileMetadata.getFilename());
+        }
+
+        if (index != null) {
+            index.putTree(treeHash);
+        }
+        return treeHash;
+    }
+
+    private static TreeHash awaitTreeHash(CompletableFuture<TreeHash> future) throws IOException, NoSuchAlgorithmException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a tree hash");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            throw new IOException("Tree hash failed", cause);
+        }
+    }
+
+    // Shared files may live in subfolders, fall back to the source root for files not in the catalog
+    private Path resolveSharedPath(PeerFileMetadata fileMetadata) {
+        ShareCatalog catalog = shareCatalog;
+        Path path = (catalog != null) ? catalog.findPath(fileMetadata) : null;
+        return (path != null) ? path : Paths.get(sourcePath, fileMetadata.getFilename());
+    }
+
+    // Preallocate the destination file so that chunks are written in place instead of merged afterwards
+    public void startDownload(PeerFileMetadata fileMetadata) throws IOException {
+        if (!PREALLOCATED_DOWNLOADS) {
+            return;
+        }
+        synchronized (partialFiles) {
+            if (!partialFiles.containsKey(fileMetadata)) {
+                Path targetPath = Paths.get(destinationPath, fileMetadata.getFilename());
+                partialFiles.put(fileMetadata, new PartialFile(targetPath, fileMetadata, getChunkSize(fileMetadata)));
+            }
+        }
+    }
+
+    // Chunks still to be fetched; a download without a partial file needs all of them
+    public List<Integer> getMissingChunks(PeerFileMetadata fileMetadata) throws IOException {
+        PartialFile partialFile = partialFiles.get(fileMetadata);
+        if (partialFile != null) {
+            return partialFile.getMissingChunks();
+        }
+        List<Integer> chunkIndices = new ArrayList<>();
+        for (int chunkIndex = 0; chunkIndex < TreeHash.blockCount(fileMetadata.getFileSize(), getChunkSize(fileMetadata)); chunkIndex++) {
+            chunkIndices.add(chunkIndex);
+        }
+        return chunkIndices;
+    }
+
+    // Downloads left unfinished in the destination folder, found by their journals.
+    // The journals of downloads being written are skipped without opening them.
+    public List<PeerFileMetadata> listResumableDownloads() throws IOException {
+        List<PeerFileMetadata> fileMetadatas = new ArrayList<>();
+        Path destination = Paths.get(destinationPath);
+        if (!Files.isDirectory(destination)) {
+            return fileMetadatas;
+        }
+
+        Set<Path> openJournalPaths = new HashSet<>();
+        for (PartialFile partialFile : partialFiles.values()) {
+            openJournalPaths.add(PartialFile.journalPathOf(partialFile.getPartPath()).toAbsolutePath());
+        }
+        try (DirectoryStream<Path> journalPaths = Files.newDirectoryStream(destination, "*" + PartialFile.SUFFIX + DownloadJournal.SUFFIX)) {
+            for (Path journalPath : journalPaths) {
+                if (openJournalPaths.contains(journalPath.toAbsolutePath())) {
+                    continue;
+                }
+                try (DownloadJournal journal = DownloadJournal.open(journalPath)) {
+                    fileMetadatas.add(journal.getFileMetadata());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return fileMetadatas;
+    }
+
+    // Stop writing a download but keep its partial file and journal to resume it later
+    public void suspendDownload(PeerFileMetadata fileMetadata) throws IOException {
+        PartialFile partialFile = partialFiles.remove(fileMetadata);
+        if (partialFile != null) {
+            partialFile.close();
+        }
+    }
+
+    public void suspendDownloads() {
+        for (PeerFileMetadata fileMetadata : partialFiles.keySet()) {
+            try {
+                suspendDownload(fileMetadata);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public PartialFile getPartialFile(PeerFileMetadata fileMetadata) {
+        return partialFiles.get(fileMetadata);
+    }
+
+    // Whether a chunk of a download is on disk, chunkFilename is only used for chunk-file downloads
+    public boolean hasChunk(PeerFileMetadata fileMetadata, int chunkIndex, String chunkFilename) {
+        PartialFile partialFile = partialFiles.get(fileMetadata);
+        if (partialFile != null) {
+            return partialFile.isReceived(chunkIndex);
+        }
+        return Files.exists(Paths.get(destinationPath, chunkFilename));
+    }
+
+    // Rename a partial file to its final name, or merge the chunk files of a download without one
+    public void completeDownload(PeerFileMetadata fileMetadata, List<String> chunkFilenames) throws IOException {
+        PartialFile partialFile = partialFiles.remove(fileMetadata);
+        if (partialFile == null) {
+            mergeChunks(chunkFilenames, fileMetadata.getFilename());
+            return;
+        }
+
+        try {
+            partialFile.complete();
+        } finally {
+            // An incomplete download keeps its .part file on disk
+            partialFile.close();
+        }
     }
 
     // Merge received chunks into a complete file
-    public void mergeChunks(List<String> chunkFilenames, String outputFilename) throws IOException, InterruptedException {
+    public void mergeChunks(List<String> chunkFilenames, String outputFilename) throws IOException {
+        // Chunks may have been requested in any order, write them by their index
+        List<String> orderedChunkFilenames = new ArrayList<>(chunkFilenames);
+        orderedChunkFilenames.sort(Comparator.comparingInt(FileManager::chunkIndexOf));
+
         Path outputPath = Paths.get(destinationPath, outputFilename);
         try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputPath.toString()))) {
-            for (int i = 0; i < chunkFilenames.size(); i++) {
-                String chunkFilename = String.format("%s.%d", outputFilename, i);
+            for (String chunkFilename : orderedChunkFilenames) {
                 Path path = Paths.get(destinationPath, chunkFilename);
 
                 byte[] chunkData = Files.readAllBytes(path);
@@ -104,21 +423,73 @@ public class FileManager {
         }
     }
 
-    // List files in a directory to be shared
+    private static int chunkIndexOf(String chunkFilename) {
+        return Integer.parseInt(chunkFilename.substring(chunkFilename.lastIndexOf('.') + 1));
+    }
+
+    // List files in a directory to be shared, served from the incrementally maintained catalog
     public Set<PeerFileMetadata> listSharedFiles() throws IOException {
-        try (Stream<Path> paths = Files.walk(Paths.get(sourcePath))) {
-            return paths.filter(Files::isRegularFile)
-                .filter(path -> excludedPaths.stream()
-                    .noneMatch(excludedPath -> path.startsWith(excludedPath)))
-                .map(path -> {
-                    try {
-                        return new PeerFileMetadata(path);
-                    } catch (IOException | NoSuchAlgorithmException e) {
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+        return getShareCatalog().snapshot();
+    }
+
+    // Identifies the catalog behind listSharedFiles, a new catalog (e.g. for a new source path) starts a new epoch
+    public long getCatalogEpoch() throws IOException {
+        return getShareCatalog().getEpoch();
+    }
+
+    public long getCatalogVersion() throws IOException {
+        return getShareCatalog().getVersion();
+    }
+
+    // Bloom filter of the hashes in listSharedFiles, what discovery advertises of the shared files
+    public BloomFilter getCatalogFilter() throws IOException {
+        return getShareCatalog().filter();
+    }
+
+    public boolean isShared(PeerFileMetadata fileMetadata) throws IOException {
+        return getShareCatalog().findPath(fileMetadata) != null;
+    }
+
+    // Changes of the shared files since a version of the catalog, null if they are no longer known
+    public ShareCatalog.Delta getCatalogChanges(long sinceVersion) throws IOException {
+        return getShareCatalog().getChanges(sinceVersion);
+    }
+
+    // Files under excluded folders, the hash index itself and unfinished downloads with their journals are never shared
+    boolean isExcluded(Path path) {
+        Path absolutePath = path.toAbsolutePath();
+        Path filename = absolutePath.getFileName();
+        return absolutePath.startsWith(hashIndexPath.getParent())
+            || (filename != null && (filename.toString().endsWith(PartialFile.SUFFIX) || filename.toString().endsWith(DownloadJournal.SUFFIX)))
+            || excludedPaths.stream().anyMatch(excludedPath -> absolutePath.startsWith(excludedPath.toAbsolutePath()));
+    }
+
+    private synchronized ShareCatalog getShareCatalog() throws IOException {
+        if (shareCatalog == null) {
+            if (hashIndex == null) {
+                hashIndex = new FileHashIndex(hashIndexPath);
+            }
+            if (hashingEngine == null) {
+                hashingEngine = new HashingEngine();
+                hashingEngine.setProgressListener((filesHashed, bytesHashed, filesSubmitted) ->
+                    System.out.printf("[%s] Hashed %d/%d files (%d MB)\n", sourcePath, filesHashed, filesSubmitted, bytesHashed / (1024 * 1024)));
+            }
+            shareCatalog = new ShareCatalog(Paths.get(sourcePath), hashIndex, hashingEngine, this::isExcluded);
+            shareCatalog.setRemovalListener(this::invalidateFile);
+            shareCatalog.start();
+        }
+        return shareCatalog;
+    }
+
+    // Stop following the old root, the catalog is rebuilt on the next listing
+    private synchronized void closeShareCatalog() {
+        if (shareCatalog != null) {
+            try {
+                shareCatalog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            shareCatalog = null;
         }
     }
 
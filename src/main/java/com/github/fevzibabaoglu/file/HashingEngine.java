@@ -0,0 +1,172 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hashes many files in parallel for share indexing.
+// Reads are throttled per device, hashing itself runs on every core, and submitters block once
+// too many files are queued so a walk never buffers the whole tree in memory.
+public class HashingEngine {
+
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_IO_PERMITS_PER_DEVICE = 8;
+    private static final int QUEUED_FILES_PER_THREAD = 4;
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final ForkJoinPool pool;
+    private final int ioPermitsPerDevice;
+    private final Semaphore queuedFiles;
+    private final Map<String, Semaphore> devicePermits;
+
+    private final AtomicLong filesSubmitted;
+    private final AtomicLong filesHashed;
+    private final AtomicLong bytesHashed;
+    private volatile ProgressListener progressListener;
+    private volatile long lastProgressTime;
+
+    public HashingEngine() {
+        this(Integer.getInteger("p2p.hashing.threads", DEFAULT_THREADS),
+            Integer.getInteger("p2p.hashing.ioPermitsPerDevice", DEFAULT_IO_PERMITS_PER_DEVICE));
+    }
+
+    public HashingEngine(int threads, int ioPermitsPerDevice) {
+        this.pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.ioPermitsPerDevice = ioPermitsPerDevice;
+        this.queuedFiles = new Semaphore(threads * QUEUED_FILES_PER_THREAD);
+        this.devicePermits = new ConcurrentHashMap<>();
+        this.filesSubmitted = new AtomicLong();
+        this.filesHashed = new AtomicLong();
+        this.bytesHashed = new AtomicLong();
+        this.progressListener = null;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public long getFilesSubmitted() {
+        return filesSubmitted.get();
+    }
+
+    public long getFilesHashed() {
+        return filesHashed.get();
+    }
+
+    public long getBytesHashed() {
+        return bytesHashed.get();
+    }
+
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Hash the tree of a shared file again, with the same pool and read throttling as indexing.
+    // The calling thread only waits, e.g. a transfer worker asking for a tree that was not persisted.
+    public TreeHash computeTreeHash(Path path, int blockSize) throws IOException, NoSuchAlgorithmException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return TreeHash.compute(path, blockSize, pool, getDevicePermits(path, attributes));
+    }
+
+    // Hash a file while holding a read permit of its device only around each read.
+    // Blocks of a huge file are hashed as subtasks of the same pool, so it can use every core as well.
+    private TreeHash hash(Path path, BasicFileAttributes attributes) throws IOException, NoSuchAlgorithmException {
+        return PeerFileMetadata.computeTreeHash(path, attributes.size(), pool, getDevicePermits(path, attributes));
+    }
+
+    private Semaphore getDevicePermits(Path path, BasicFileAttributes attributes) throws IOException {
+        return devicePermits.computeIfAbsent(deviceKey(path, attributes), key -> new Semaphore(ioPermitsPerDevice));
+    }
+
+    // The device id is part of the Unix file key, "(dev=803,ino=1234)"; fall back to the file store name
+    private static String deviceKey(Path path, BasicFileAttributes attributes) throws IOException {
+        Object fileKey = attributes.fileKey();
+        if (fileKey != null) {
+            String key = fileKey.toString();
+            int inodeIndex = key.indexOf(",ino=");
+            if (inodeIndex > 0) {
+                return key.substring(0, inodeIndex);
+            }
+        }
+        return Files.getFileStore(path).name();
+    }
+
+    private void reportProgress() {
+        ProgressListener listener = progressListener;
+        long now = System.currentTimeMillis();
+        if (listener != null && now - lastProgressTime >= PROGRESS_INTERVAL) {
+            lastProgressTime = now;
+            listener.onProgress(filesHashed.get(), bytesHashed.get(), filesSubmitted.get());
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(long filesHashed, long bytesHashed, long filesSubmitted);
+    }
+
+    public interface HashCallback {
+        // The tree is passed along so that its leaves can be persisted
+        void onHashed(Path path, BasicFileAttributes attributes, PeerFileMetadata fileMetadata, TreeHash treeHash);
+
+        void onFailed(Path path, Exception e);
+    }
+
+    // A group of submissions that can be awaited together, e.g. one reconciliation walk
+    public class Batch {
+
+        private final Phaser pending;
+
+        private Batch() {
+            this.pending = new Phaser(1);
+        }
+
+        // Queue a file for hashing, blocking while the engine is saturated
+        public void submit(Path path, BasicFileAttributes attributes, HashCallback callback) throws InterruptedException {
+            queuedFiles.acquire();
+            pending.register();
+            filesSubmitted.incrementAndGet();
+
+            pool.execute(() -> {
+                try {
+                    TreeHash treeHash = hash(path, attributes);
+                    filesHashed.incrementAndGet();
+                    bytesHashed.addAndGet(attributes.size());
+                    callback.onHashed(path, attributes, new PeerFileMetadata(path, attributes.size(), treeHash), treeHash);
+                } catch (Exception e) {
+                    callback.onFailed(path, e);
+                } finally {
+                    queuedFiles.release();
+                    pending.arriveAndDeregister();
+                    reportProgress();
+                }
+            });
+        }
+
+        // Wait until every submitted file of this batch was hashed
+        public void await() throws InterruptedException {
+            int phase = pending.arrive();
+            while (true) {
+                try {
+                    pending.awaitAdvanceInterruptibly(phase, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    reportProgress();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Download target that is allocated once and filled in place with positional writes.
+// Chunks go to "<name>.part", which is renamed to the final name once every chunk arrived.
+// Received chunks are checkpointed to a DownloadJournal so that a restarted download only fetches the rest.
+public class PartialFile implements Closeable {
+
+    public static final String SUFFIX = ".part";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final int CHECKPOINT_CHUNKS = 64;
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    private final Path targetPath;
+    private final Path partPath;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final FileChannel channel;
+    private final BitSet receivedChunks;
+    private final Object[] chunkLocks;
+    private final DownloadJournal journal;
+
+    private int uncheckpointedChunks;
+    private long lastCheckpointTime;
+
+    public PartialFile(Path targetPath, PeerFileMetadata fileMetadata, int chunkSize) throws IOException {
+        this.targetPath = targetPath;
+        this.partPath = targetPath.resolveSibling(targetPath.getFileName() + SUFFIX);
+        this.fileSize = fileMetadata.getFileSize();
+        this.chunkSize = chunkSize;
+        this.chunkCount = TreeHash.blockCount(fileSize, chunkSize);
+        this.chunkLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            chunkLocks[i] = new Object();
+        }
+        this.journal = openJournal(partPath, fileMetadata, chunkSize);
+        this.receivedChunks = journal.getReceivedChunks();
+        this.channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.uncheckpointedChunks = 0;
+        this.lastCheckpointTime = System.currentTimeMillis();
+        allocate();
+    }
+
+    public static Path journalPathOf(Path partPath) {
+        return partPath.resolveSibling(partPath.getFileName() + DownloadJournal.SUFFIX);
+    }
+
+    // Resume from the journal of the same file, anything else starts from scratch
+    private static DownloadJournal openJournal(Path partPath, PeerFileMetadata fileMetadata, int chunkSize) throws IOException {
+        Path journalPath = journalPathOf(partPath);
+        if (Files.exists(journalPath) && Files.exists(partPath)) {
+            try {
+                DownloadJournal journal = DownloadJournal.open(journalPath);
+                if (journal.getFileMetadata().equals(fileMetadata) && journal.getChunkSize() == chunkSize) {
+                    return journal;
+                }
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return DownloadJournal.create(journalPath, fileMetadata, chunkSize);
+    }
+
+    public Path getPartPath() {
+        return partPath;
+    }
+
+    public Path getTargetPath() {
+        return targetPath;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getChunkLength(int chunkIndex) {
+        if (chunkIndex < 0 || chunkIndex >= chunkCount) {
+            throw new IllegalArgumentException("Requested chunk is out of bounds.");
+        }
+        return TreeHash.blockLength(fileSize, chunkSize, chunkIndex);
+    }
+
+    public synchronized boolean isReceived(int chunkIndex) {
+        return receivedChunks.get(chunkIndex);
+    }
+
+    public synchronized int getReceivedCount() {
+        return receivedChunks.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return receivedChunks.cardinality() == chunkCount;
+    }
+
+    public synchronized List<Integer> getMissingChunks() {
+        List<Integer> missingChunks = new ArrayList<>();
+        for (int chunkIndex = receivedChunks.nextClearBit(0); chunkIndex < chunkCount; chunkIndex = receivedChunks.nextClearBit(chunkIndex + 1)) {
+            missingChunks.add(chunkIndex);
+        }
+        return missingChunks;
+    }
+
+    // Write a chunk that was already verified, duplicates of a received chunk are ignored
+    public void writeChunk(int chunkIndex, byte[] chunkData) throws IOException {
+        if (chunkData.length != getChunkLength(chunkIndex)) {
+            throw new IllegalArgumentException("Chunk has the wrong length: " + chunkData.length);
+        }
+
+        synchronized (chunkLocks[chunkIndex % LOCK_STRIPES]) {
+            if (isReceived(chunkIndex)) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunkData);
+            long position = (long) chunkIndex * chunkSize;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+            markReceived(chunkIndex);
+        }
+        checkpointIfDue();
+    }
+
+    // Stream a chunk from the socket straight into its region while hashing it.
+    // The chunk only counts as received if leafVerifier accepts its leaf hash, a rejected region is overwritten by the next copy.
+    public boolean receiveChunk(InputStream in, int chunkIndex, LeafVerifier leafVerifier) throws IOException {
+        int length = getChunkLength(chunkIndex);
+        byte[] buffer = new byte[Math.min(length, STREAM_BUFFER_SIZE)];
+
+        synchronized (chunkLocks[chunkIndex % LOCK_STRIPES]) {
+            boolean duplicate = isReceived(chunkIndex);
+            MessageDigest leafDigest = TreeHash.newLeafDigest();
+            long position = (long) chunkIndex * chunkSize;
+
+            int remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (bytesRead < 0) {
+                    throw new EOFException("Connection closed in the middle of a chunk");
+                }
+                if (!duplicate) {
+                    leafDigest.update(buffer, 0, bytesRead);
+                    ByteBuffer region = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (region.hasRemaining()) {
+                        channel.write(region, position + region.position());
+                    }
+                }
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+
+            if (duplicate) {
+                return true;
+            }
+            if (!leafVerifier.verify(leafDigest.digest())) {
+                return false;
+            }
+            markReceived(chunkIndex);
+        }
+        checkpointIfDue();
+        return true;
+    }
+
+    // Flush and move the finished file to its final name in one step
+    public void complete() throws IOException {
+        if (!isComplete()) {
+            throw new IOException(String.format("Download incomplete: %d/%d chunks of %s", getReceivedCount(), chunkCount, targetPath.getFileName()));
+        }
+
+        channel.force(true);
+        channel.close();
+        try {
+            Files.move(partPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        journal.delete();
+    }
+
+    // Keeps the .part file and its journal so that the download can be resumed
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                checkpoint();
+            }
+        } finally {
+            channel.close();
+            journal.close();
+        }
+    }
+
+    // The bitfield is taken before the data is forced, so it only marks chunks that are durable
+    public void checkpoint() throws IOException {
+        BitSet durableChunks;
+        synchronized (this) {
+            durableChunks = (BitSet) receivedChunks.clone();
+            uncheckpointedChunks = 0;
+            lastCheckpointTime = System.currentTimeMillis();
+        }
+        channel.force(false);
+        journal.write(durableChunks);
+    }
+
+    private void checkpointIfDue() throws IOException {
+        boolean due;
+        synchronized (this) {
+            due = uncheckpointedChunks >= CHECKPOINT_CHUNKS || System.currentTimeMillis() - lastCheckpointTime >= CHECKPOINT_INTERVAL;
+        }
+        if (due) {
+            checkpoint();
+        }
+    }
+
+    private synchronized void markReceived(int chunkIndex) {
+        receivedChunks.set(chunkIndex);
+        uncheckpointedChunks++;
+    }
+
+    // Extending the file by its last byte leaves it sparse where the file system supports it
+    private void allocate() throws IOException {
+        if (channel.size() > fileSize) {
+            channel.truncate(fileSize);
+        } else if (channel.size() < fileSize) {
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+
+    public interface LeafVerifier {
+        boolean verify(byte[] leafHash) throws IOException;
+    }
+}
@@ -11,28 +11,77 @@ import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 
 public class PeerFileMetadata implements Serializable, Cloneable {
 
+    // Files are identified by their tree root; -Dp2p.hash.identity=file keeps the whole-file SHA-256 for networks with older peers
+    static final boolean TREE_HASH_IDENTITY = !"file".equalsIgnoreCase(System.getProperty("p2p.hash.identity", "tree"));
     private static final int BUFFER_SIZE = 1024 * 1024;
     
     private final transient Path filePath;
     private final String filename;
     private final long fileSize;
+    private final int chunkSize;
     private final byte[] hash;
+    private final byte[] rootHash;
+    private transient volatile byte[] fileDigest;
 
     public PeerFileMetadata(Path filePath) throws IOException, NoSuchAlgorithmException {
+        this(filePath, filePath.toFile().length(), ForkJoinPool.commonPool(), null);
+    }
+
+    PeerFileMetadata(Path filePath, long fileSize, ForkJoinPool pool, Semaphore ioPermits) throws IOException, NoSuchAlgorithmException {
+        this(filePath, fileSize, computeTreeHash(filePath, fileSize, pool, ioPermits));
+    }
+
+    // Metadata of a file hashed with computeTreeHash
+    PeerFileMetadata(Path filePath, long fileSize, TreeHash treeHash) {
+        this.filePath = filePath;
+        this.filename = filePath.getFileName().toString();
+        this.fileSize = fileSize;
+        this.chunkSize = treeHash.getBlockSize();
+        this.rootHash = treeHash.getRoot();
+        this.fileDigest = treeHash.getFileDigest();
+        this.hash = TREE_HASH_IDENTITY ? rootHash : fileDigest;
+    }
+
+    // Hash the file with the tree hash; the whole-file digest is computed in the same pass unless the root is the identity
+    static TreeHash computeTreeHash(Path filePath, long fileSize, ForkJoinPool pool, Semaphore ioPermits) throws IOException, NoSuchAlgorithmException {
+        int chunkSize = ChunkSizePolicy.chooseChunkSize(fileSize);
+        if (TREE_HASH_IDENTITY) {
+            return TreeHash.compute(filePath, chunkSize, pool, ioPermits);
+        }
+        return TreeHash.computeWithFileDigest(filePath, chunkSize, pool, ioPermits);
+    }
+
+    // Build metadata from digests that were already computed, e.g. ones reused from the FileHashIndex
+    PeerFileMetadata(Path filePath, long fileSize, int chunkSize, byte[] hash, byte[] rootHash) {
         this.filePath = filePath;
         this.filename = filePath.getFileName().toString();
-        this.fileSize = filePath.toFile().length();
-        this.hash = computeFileHash();
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.hash = hash;
+        this.rootHash = rootHash;
     }
 
-    private PeerFileMetadata(String filename, long fileSize, byte[] hash) {
+    private PeerFileMetadata(String filename, long fileSize, int chunkSize, byte[] hash, byte[] rootHash) {
         this.filePath = null;
         this.filename = filename;
         this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
         this.hash = hash;
+        this.rootHash = rootHash;
+    }
+
+    // Metadata of a file described by a peer, e.g. a file reference read from the wire
+    public static PeerFileMetadata of(String filename, long fileSize, int chunkSize, byte[] hash, byte[] rootHash) {
+        return new PeerFileMetadata(filename, fileSize, chunkSize, hash, rootHash);
+    }
+
+    Path getFilePath() {
+        return filePath;
     }
 
     public String getFilename() {
@@ -43,22 +92,51 @@ public class PeerFileMetadata implements Serializable, Cloneable {
         return fileSize;
     }
 
-    private byte[] computeFileHash() throws IOException, NoSuchAlgorithmException {
+    // Identity of the file, used by equals and hashCode
+    public byte[] getHash() {
+        return hash;
+    }
+
+    // Root of the TreeHash over blocks of the chunk size
+    public byte[] getRootHash() {
+        return rootHash;
+    }
+
+    // Whole-file SHA-256 of a local file, read on first use when the tree root is the identity.
+    // Null for a file described by a peer under the tree identity.
+    public byte[] getFileDigest() throws IOException, NoSuchAlgorithmException {
+        if (!TREE_HASH_IDENTITY) {
+            return hash;
+        }
+        byte[] digest = fileDigest;
+        if (digest == null && filePath != null) {
+            digest = computeFileDigest();
+            fileDigest = digest;
+        }
+        return digest;
+    }
+
+    private byte[] computeFileDigest() throws IOException, NoSuchAlgorithmException {
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
         try (FileInputStream fileInputStream = new FileInputStream(filePath.toString())) {
             byte[] buffer = new byte[BUFFER_SIZE];
             int bytesRead;
-            
+
             // Read the file in chunks and update the digest
             while ((bytesRead = fileInputStream.read(buffer)) != -1) {
                 digest.update(buffer, 0, bytesRead);
             }
         }
-        
+
         return digest.digest();
     }
 
+    // Chunks of this file are transferred and verified in blocks of this size, chosen by ChunkSizePolicy
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
     public byte[] serialize() throws IOException {
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
              ObjectOutputStream oos = new ObjectOutputStream(bos)) {
@@ -86,7 +164,9 @@ public class PeerFileMetadata implements Serializable, Cloneable {
             return new PeerFileMetadata(
                 this.filename,
                 this.fileSize,
-                this.hash
+                this.chunkSize,
+                this.hash,
+                this.rootHash
             );
         } catch (Exception e) {
             throw new AssertionError("Cloning PeerFileMetadata failed");
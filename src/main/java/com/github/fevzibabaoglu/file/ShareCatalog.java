@@ -0,0 +1,537 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Live view of the shared files, kept up to date from WatchService events.
+// A full reconciliation walk runs at startup, on event overflow and periodically as a fallback.
+// Every change bumps the version and is kept in a bounded log, so that peers holding an older version of the catalog
+// can be sent only the changes since. The epoch tells catalogs apart whose versions would otherwise collide, e.g. after a restart;
+// it is the start time, so the catalog of the latest run is the newest one whatever the versions.
+public class ShareCatalog {
+
+    private static final long RECONCILE_INTERVAL = 10 * 60 * 1000;
+    private static final long SETTLE_DELAY = 500;
+    private static final long POLL_TIMEOUT = 250;
+    private static final int MAX_LOGGED_CHANGES = Integer.getInteger("p2p.catalog.maxLoggedChanges", 4096);
+
+    private final Path root;
+    private final FileHashIndex hashIndex;
+    private final HashingEngine hashingEngine;
+    private final Predicate<Path> excludedFilter;
+
+    private final Map<Path, PeerFileMetadata> files;
+    // Identical content may be shared under several paths, a file stays shared until the last of them is gone
+    private final Map<PeerFileMetadata, Set<Path>> paths;
+    private final Map<WatchKey, Path> watchedDirectories;
+    private final Set<Path> watchedPaths;
+    private final Map<Path, Long> pendingPaths;
+
+    private final AtomicLong version;
+    private final long epoch;
+    private final Deque<Change> changes;
+    // Latest version whose changes were trimmed from the log, guarded by changes
+    private long trimmedVersion;
+
+    private WatchService watchService;
+    private Thread watcherThread;
+    private volatile Snapshot snapshot;
+    private volatile boolean running;
+    private volatile Consumer<PeerFileMetadata> removalListener;
+    private long lastReconcileTime;
+
+    public ShareCatalog(Path root, FileHashIndex hashIndex, HashingEngine hashingEngine, Predicate<Path> excludedFilter) {
+        this.root = root;
+        this.hashIndex = hashIndex;
+        this.hashingEngine = hashingEngine;
+        this.excludedFilter = excludedFilter;
+        this.files = new ConcurrentHashMap<>();
+        this.paths = new ConcurrentHashMap<>();
+        this.watchedDirectories = new ConcurrentHashMap<>();
+        this.watchedPaths = ConcurrentHashMap.newKeySet();
+        this.pendingPaths = new ConcurrentHashMap<>();
+        this.version = new AtomicLong();
+        this.epoch = System.currentTimeMillis();
+        this.changes = new ArrayDeque<>();
+        this.trimmedVersion = 0;
+        this.snapshot = new Snapshot(0, Collections.emptySet(), BloomFilter.of(Collections.emptySet()));
+        this.running = false;
+        this.removalListener = null;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    // Called with the old metadata whenever a file stops being shared or its content changes
+    public void setRemovalListener(Consumer<PeerFileMetadata> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    // Build the catalog with a full walk and start following file system events
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        watchService = root.getFileSystem().newWatchService();
+        running = true;
+        reconcile();
+
+        watcherThread = new Thread(this::watchLoop, "share-catalog-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            running = false;
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    // Immutable view of the catalog, rebuilt only after a change
+    public Set<PeerFileMetadata> snapshot() {
+        return currentSnapshot().fileMetadatas;
+    }
+
+    // Summary of the snapshot advertised in discovery, rebuilt with it
+    public BloomFilter filter() {
+        return currentSnapshot().filter;
+    }
+
+    private Snapshot currentSnapshot() {
+        Snapshot currentSnapshot = snapshot;
+        long currentVersion = version.get();
+        if (currentSnapshot.version != currentVersion) {
+            // A change racing with the copy bumps the version again, so a stale copy is never reused
+            Set<PeerFileMetadata> fileMetadatas = new HashSet<>(files.values());
+            currentSnapshot = new Snapshot(currentVersion, Collections.unmodifiableSet(fileMetadatas), BloomFilter.of(fileMetadatas));
+            snapshot = currentSnapshot;
+        }
+        return currentSnapshot;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Net changes from a version to the current one, null if the log no longer reaches back that far
+    public Delta getChanges(long sinceVersion) {
+        Map<PeerFileMetadata, Boolean> lastChanges = new LinkedHashMap<>();
+        long toVersion;
+        synchronized (changes) {
+            toVersion = version.get();
+            if (sinceVersion < 0 || sinceVersion > toVersion || sinceVersion < trimmedVersion) {
+                return null;
+            }
+            for (Change change : changes) {
+                if (change.version > sinceVersion) {
+                    lastChanges.put(change.fileMetadata, change.added);
+                }
+            }
+        }
+
+        // The same content may be shared under several paths, whether it is shared is decided by the current state
+        Set<PeerFileMetadata> added = new HashSet<>();
+        Set<PeerFileMetadata> removed = new HashSet<>();
+        for (Map.Entry<PeerFileMetadata, Boolean> entry : lastChanges.entrySet()) {
+            boolean shared = paths.containsKey(entry.getKey());
+            if (entry.getValue() && shared) {
+                added.add(entry.getKey());
+            } else if (!entry.getValue() && !shared) {
+                removed.add(entry.getKey());
+            }
+        }
+        return new Delta(sinceVersion, toVersion, added, removed);
+    }
+
+    // Local path of a shared file, or null if it is not shared (anymore)
+    public Path findPath(PeerFileMetadata fileMetadata) {
+        Set<Path> filePaths = paths.get(fileMetadata);
+        return (filePaths != null) ? filePaths.iterator().next() : null;
+    }
+
+    // Full walk that repairs anything the watcher missed
+    public synchronized void reconcile() throws IOException {
+        Set<Path> scannedPaths = ConcurrentHashMap.newKeySet();
+        walkSubtree(root, scannedPaths);
+
+        // Remove files that disappeared without an event
+        for (Path path : new ArrayList<>(files.keySet())) {
+            if (!scannedPaths.contains(path)) {
+                removeFile(path);
+            }
+        }
+
+        hashIndex.retainAll(scannedPaths);
+        hashIndex.flush();
+        lastReconcileTime = System.currentTimeMillis();
+    }
+
+    // Drop every file under a newly excluded path without rescanning the share
+    public synchronized void exclude(Path excludedPath) {
+        for (Path path : new ArrayList<>(files.keySet())) {
+            if (path.toAbsolutePath().startsWith(excludedPath.toAbsolutePath())) {
+                removeFile(path);
+            }
+        }
+    }
+
+    // Add back the files under a path that is no longer excluded
+    public synchronized void include(Path includedPath) throws IOException {
+        Path absoluteRoot = root.toAbsolutePath();
+        Path absoluteIncludedPath = includedPath.toAbsolutePath();
+        if (!absoluteIncludedPath.startsWith(absoluteRoot) || !Files.isDirectory(absoluteIncludedPath)) {
+            return;
+        }
+        // Keep paths in the same form as the ones produced by walking the root
+        walkSubtree(root.resolve(absoluteRoot.relativize(absoluteIncludedPath)), ConcurrentHashMap.newKeySet());
+        hashIndex.flush();
+    }
+
+    private void watchLoop() {
+        while (running) {
+            try {
+                WatchKey key = watchService.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleWatchKey(key);
+                }
+                processPendingPaths();
+
+                if (System.currentTimeMillis() - lastReconcileTime > RECONCILE_INTERVAL) {
+                    reconcile();
+                }
+            } catch (InterruptedException | InterruptedIOException | ClosedWatchServiceException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleWatchKey(WatchKey key) throws IOException {
+        Path directory = watchedDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                // Events were lost, only a full walk can tell what changed
+                reconcile();
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                removeSubtree(path);
+            } else {
+                // Wait until writes settle before hashing the file
+                pendingPaths.put(path, System.currentTimeMillis());
+            }
+        }
+
+        if (!key.reset()) {
+            watchedPaths.remove(watchedDirectories.remove(key));
+        }
+    }
+
+    private synchronized void processPendingPaths() throws IOException {
+        long now = System.currentTimeMillis();
+        HashingEngine.Batch batch = null;
+
+        Iterator<Map.Entry<Path, Long>> iterator = pendingPaths.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (now - entry.getValue() < SETTLE_DELAY) {
+                continue;
+            }
+            iterator.remove();
+
+            Path path = entry.getKey();
+            if (excludedFilter.test(path)) {
+                continue;
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                walkSubtree(path, ConcurrentHashMap.newKeySet());
+                continue;
+            }
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isRegularFile()) {
+                    if (batch == null) {
+                        batch = hashingEngine.newBatch();
+                    }
+                    indexFile(batch, path, attributes, ConcurrentHashMap.newKeySet());
+                }
+            } catch (NoSuchFileException e) {
+                removeSubtree(path);
+            }
+        }
+
+        if (batch != null) {
+            awaitBatch(batch);
+            hashIndex.flush();
+        }
+    }
+
+    private synchronized void removeSubtree(Path removedPath) throws IOException {
+        List<Path> removedFiles = new ArrayList<>();
+        for (Path path : files.keySet()) {
+            if (path.startsWith(removedPath)) {
+                removedFiles.add(path);
+            }
+        }
+        for (Path path : removedFiles) {
+            removeFile(path);
+            hashIndex.remove(path);
+        }
+        pendingPaths.remove(removedPath);
+    }
+
+    // Walk a subtree, watching its directories and indexing its files; excluded subtrees are skipped entirely
+    private void walkSubtree(Path start, Set<Path> scannedPaths) throws IOException {
+        HashingEngine.Batch batch = hashingEngine.newBatch();
+
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                if (excludedFilter.test(directory)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchDirectory(directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile()) {
+                    indexFile(batch, path, attributes, scannedPaths);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // Part of the tree vanished or is unreadable, the watcher reports changes separately
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        awaitBatch(batch);
+    }
+
+    private void watchDirectory(Path directory) throws IOException {
+        if (watchService == null || watchedPaths.contains(directory)) {
+            return;
+        }
+        try {
+            WatchKey key = directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(key, directory);
+            watchedPaths.add(directory);
+        } catch (NoSuchFileException | ClosedWatchServiceException e) {
+            // Directory removed before it could be watched
+        }
+    }
+
+    // Reuse the indexed digest if size, mtime and inode are unchanged, else queue the file for hashing.
+    // The attributes are read before hashing so that a write during hashing invalidates the entry.
+    private void indexFile(HashingEngine.Batch batch, Path path, BasicFileAttributes attributes, Set<Path> scannedPaths) throws IOException {
+        if (excludedFilter.test(path)) {
+            removeFile(path);
+            return;
+        }
+
+        PeerFileMetadata indexedMetadata = hashIndex.lookup(path, attributes);
+        if (indexedMetadata != null) {
+            putFile(indexedMetadata);
+            scannedPaths.add(path);
+            return;
+        }
+
+        try {
+            batch.submit(path, attributes, new HashingEngine.HashCallback() {
+                @Override
+                public void onHashed(Path path, BasicFileAttributes attributes, PeerFileMetadata fileMetadata, TreeHash treeHash) {
+                    try {
+                        hashIndex.put(path, attributes, fileMetadata);
+                        hashIndex.putTree(treeHash);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    putFile(fileMetadata);
+                    scannedPaths.add(path);
+                }
+
+                @Override
+                public void onFailed(Path path, Exception e) {
+                    removeFile(path);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Indexing interrupted");
+        }
+    }
+
+    private void awaitBatch(HashingEngine.Batch batch) throws IOException {
+        try {
+            batch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Indexing interrupted");
+        }
+    }
+
+    private void putFile(PeerFileMetadata fileMetadata) {
+        Path path = fileMetadata.getFilePath();
+        PeerFileMetadata previousMetadata = files.put(path, fileMetadata);
+        addPath(fileMetadata, path);
+        if (!fileMetadata.equals(previousMetadata)) {
+            if (previousMetadata != null) {
+                removePath(previousMetadata, path);
+                notifyRemoval(previousMetadata);
+            }
+            logChange(previousMetadata, fileMetadata);
+        }
+    }
+
+    private void removeFile(Path path) {
+        PeerFileMetadata previousMetadata = files.remove(path);
+        if (previousMetadata != null) {
+            removePath(previousMetadata, path);
+            notifyRemoval(previousMetadata);
+            logChange(previousMetadata, null);
+        }
+    }
+
+    // The path sets are replaced rather than changed, so that findPath can read them without locking
+    private void addPath(PeerFileMetadata fileMetadata, Path path) {
+        paths.compute(fileMetadata, (key, filePaths) -> {
+            Set<Path> updatedPaths = (filePaths != null) ? new HashSet<>(filePaths) : new HashSet<>();
+            updatedPaths.add(path);
+            return Collections.unmodifiableSet(updatedPaths);
+        });
+    }
+
+    // Drops the file only with its last path
+    private void removePath(PeerFileMetadata fileMetadata, Path path) {
+        paths.computeIfPresent(fileMetadata, (key, filePaths) -> {
+            Set<Path> updatedPaths = new HashSet<>(filePaths);
+            updatedPaths.remove(path);
+            return updatedPaths.isEmpty() ? null : Collections.unmodifiableSet(updatedPaths);
+        });
+    }
+
+    private void logChange(PeerFileMetadata removedMetadata, PeerFileMetadata addedMetadata) {
+        synchronized (changes) {
+            long changeVersion = version.incrementAndGet();
+            if (removedMetadata != null) {
+                changes.add(new Change(changeVersion, removedMetadata, false));
+            }
+            if (addedMetadata != null) {
+                changes.add(new Change(changeVersion, addedMetadata, true));
+            }
+            // A content change logs two changes of one version, trim whole versions so that none is left half logged
+            while (changes.size() > MAX_LOGGED_CHANGES) {
+                trimmedVersion = changes.poll().version;
+                while (!changes.isEmpty() && changes.peekFirst().version == trimmedVersion) {
+                    changes.poll();
+                }
+            }
+        }
+    }
+
+    private void notifyRemoval(PeerFileMetadata fileMetadata) {
+        Consumer<PeerFileMetadata> listener = removalListener;
+        // The same content may still be shared under another path
+        if (listener != null && !paths.containsKey(fileMetadata)) {
+            listener.accept(fileMetadata);
+        }
+    }
+
+    public static class Delta {
+
+        private final long fromVersion;
+        private final long toVersion;
+        private final Set<PeerFileMetadata> added;
+        private final Set<PeerFileMetadata> removed;
+
+        private Delta(long fromVersion, long toVersion, Set<PeerFileMetadata> added, Set<PeerFileMetadata> removed) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.added = Collections.unmodifiableSet(added);
+            this.removed = Collections.unmodifiableSet(removed);
+        }
+
+        public long getFromVersion() {
+            return fromVersion;
+        }
+
+        public long getToVersion() {
+            return toVersion;
+        }
+
+        public Set<PeerFileMetadata> getAdded() {
+            return added;
+        }
+
+        public Set<PeerFileMetadata> getRemoved() {
+            return removed;
+        }
+    }
+
+    private static class Change {
+
+        private final long version;
+        private final PeerFileMetadata fileMetadata;
+        private final boolean added;
+
+        private Change(long version, PeerFileMetadata fileMetadata, boolean added) {
+            this.version = version;
+            this.fileMetadata = fileMetadata;
+            this.added = added;
+        }
+    }
+
+    private static class Snapshot {
+
+        private final long version;
+        private final Set<PeerFileMetadata> fileMetadatas;
+        private final BloomFilter filter;
+
+        private Snapshot(long version, Set<PeerFileMetadata> fileMetadatas, BloomFilter filter) {
+            this.version = version;
+            this.fileMetadatas = fileMetadatas;
+            this.filter = filter;
+        }
+    }
+}
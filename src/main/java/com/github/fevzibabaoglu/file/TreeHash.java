@@ -0,0 +1,271 @@
+package com.github.fevzibabaoglu.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+// SHA-256 Merkle tree over fixed-size blocks of a file.
+// Leaves are hashed in parallel with positional reads, so one huge file can use every core.
+public class TreeHash {
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final int BLOCKS_PER_TASK = 4;
+    private static final int READ_AHEAD_BLOCKS = 16;
+
+    private final int blockSize;
+    private final byte[][] leaves;
+    private final byte[] root;
+    private final byte[] fileDigest;
+    private final List<byte[][]> levels;
+
+    private TreeHash(int blockSize, byte[][] leaves, byte[] fileDigest) {
+        this.blockSize = blockSize;
+        this.leaves = leaves;
+        this.levels = computeLevels(leaves);
+        this.root = levels.get(levels.size() - 1)[0];
+        this.fileDigest = fileDigest;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return leaves.length;
+    }
+
+    public byte[] getLeaf(int blockIndex) {
+        return leaves[blockIndex];
+    }
+
+    public byte[] getRoot() {
+        return root;
+    }
+
+    // Whole-file SHA-256, only present when computed with computeWithFileDigest
+    public byte[] getFileDigest() {
+        return fileDigest;
+    }
+
+    // Sibling hashes from the leaf up to the root; levels where the node was promoted add nothing
+    public byte[][] getProof(int blockIndex) {
+        List<byte[]> proof = new ArrayList<>();
+        int index = blockIndex;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            byte[][] nodes = levels.get(level);
+            int sibling = index ^ 1;
+            if (sibling < nodes.length) {
+                proof.add(nodes[sibling]);
+            }
+            index >>>= 1;
+        }
+        return proof.toArray(new byte[0][]);
+    }
+
+    // Check that a block with the given leaf hash is part of the tree with this root
+    public static boolean verify(byte[] root, int blockCount, int blockIndex, byte[] leafHash, byte[][] proof) {
+        if (root == null || proof == null || blockIndex < 0 || blockIndex >= blockCount) {
+            return false;
+        }
+
+        byte[] node = leafHash;
+        int index = blockIndex;
+        int nodeCount = blockCount;
+        int proofIndex = 0;
+        while (nodeCount > 1) {
+            if ((index ^ 1) < nodeCount) {
+                if (proofIndex >= proof.length) {
+                    return false;
+                }
+                byte[] sibling = proof[proofIndex++];
+                node = (index & 1) == 0 ? nodeHash(node, sibling) : nodeHash(sibling, node);
+            }
+            index >>>= 1;
+            nodeCount = (nodeCount + 1) / 2;
+        }
+        return proofIndex == proof.length && Arrays.equals(node, root);
+    }
+
+    // Hash all blocks in parallel; the reads of each block hold a permit of ioPermits if given
+    public static TreeHash compute(Path path, int blockSize, ForkJoinPool pool, Semaphore ioPermits) throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            byte[][] leaves = new byte[blockCount(channel.size(), blockSize)][];
+            pool.invoke(new LeafTask(channel, blockSize, ioPermits, leaves, 0, leaves.length));
+            return new TreeHash(blockSize, leaves, null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Read the file once in order for the whole-file digest, hashing the leaves in parallel as blocks arrive
+    public static TreeHash computeWithFileDigest(Path path, int blockSize, ForkJoinPool pool, Semaphore ioPermits) throws IOException, NoSuchAlgorithmException {
+        MessageDigest fileDigest = MessageDigest.getInstance("SHA-256");
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            byte[][] leaves = new byte[blockCount(fileSize, blockSize)][];
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            int joinedTasks = 0;
+
+            for (int blockIndex = 0; blockIndex < leaves.length; blockIndex++) {
+                // Bound the blocks held in memory; joining helps run the task if we are a worker ourselves
+                if (tasks.size() - joinedTasks >= READ_AHEAD_BLOCKS) {
+                    tasks.get(joinedTasks++).join();
+                }
+
+                int index = blockIndex;
+                ByteBuffer block = ByteBuffer.allocate(blockLength(fileSize, blockSize, index));
+                readBlock(channel, block, (long) index * blockSize, ioPermits);
+                fileDigest.update(block.array(), 0, block.limit());
+
+                tasks.add(pool.submit(() -> {
+                    leaves[index] = leafHash(block.array(), 0, block.limit());
+                }));
+            }
+
+            for (int i = joinedTasks; i < tasks.size(); i++) {
+                tasks.get(i).join();
+            }
+            return new TreeHash(blockSize, leaves, fileDigest.digest());
+        }
+    }
+
+    // Tree over leaves that were hashed before, e.g. ones persisted next to the FileHashIndex
+    static TreeHash of(int blockSize, byte[][] leaves) {
+        return new TreeHash(blockSize, leaves, null);
+    }
+
+    public static byte[] leafHash(byte[] data, int offset, int length) {
+        MessageDigest digest = newLeafDigest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    // Digest for hashing a leaf incrementally, e.g. while it streams in from a socket
+    public static MessageDigest newLeafDigest() {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF_PREFIX);
+        return digest;
+    }
+
+    static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = newDigest();
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    // Combine leaves pairwise up to the root, an odd node is promoted to the next level unchanged
+    private static List<byte[][]> computeLevels(byte[][] leaves) {
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = leaves;
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                int left = i * 2;
+                parents[i] = (left + 1 < level.length) ? nodeHash(level[left], level[left + 1]) : level[left];
+            }
+            level = parents;
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    // An empty file still has one (empty) block so that it has a root
+    public static int blockCount(long fileSize, int blockSize) {
+        return (int) Math.max(1, (fileSize + blockSize - 1) / blockSize);
+    }
+
+    static int blockLength(long fileSize, int blockSize, int blockIndex) {
+        return (int) Math.max(0, Math.min(blockSize, fileSize - (long) blockIndex * blockSize));
+    }
+
+    private static void readBlock(FileChannel channel, ByteBuffer block, long position, Semaphore ioPermits) throws IOException {
+        if (ioPermits != null) {
+            ioPermits.acquireUninterruptibly();
+        }
+        try {
+            while (block.hasRemaining()) {
+                int bytesRead = channel.read(block, position + block.position());
+                if (bytesRead < 0) {
+                    throw new EOFException("File shrank while hashing");
+                }
+            }
+            block.flip();
+        } finally {
+            if (ioPermits != null) {
+                ioPermits.release();
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Splits a range of blocks until it is small enough to hash on one worker
+    private static class LeafTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final int blockSize;
+        private final Semaphore ioPermits;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+
+        private LeafTask(FileChannel channel, int blockSize, Semaphore ioPermits, byte[][] leaves, int from, int to) {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.ioPermits = ioPermits;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BLOCKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                    new LeafTask(channel, blockSize, ioPermits, leaves, from, middle),
+                    new LeafTask(channel, blockSize, ioPermits, leaves, middle, to)
+                );
+                return;
+            }
+
+            try {
+                long fileSize = channel.size();
+                ByteBuffer block = ByteBuffer.allocate(blockSize);
+                for (int blockIndex = from; blockIndex < to; blockIndex++) {
+                    block.clear().limit(blockLength(fileSize, blockSize, blockIndex));
+                    readBlock(channel, block, (long) blockIndex * blockSize, ioPermits);
+                    leaves[blockIndex] = leafHash(block.array(), 0, block.limit());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -3,16 +3,8 @@ package com.github.fevzibabaoglu.gui;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import javax.swing.*;
@@ -47,6 +39,7 @@ public class DownloadPanel extends JPanel {
         configurePeerTree();
 
         downloadTableModel = new DownloadTableModel();
+        app.getDownloadManager().setProgressListener(downloadTableModel::updateDownloadProgress);
 
         JPanel foundPanel = new JPanel(new BorderLayout());
         foundPanel.setBorder(BorderFactory.createTitledBorder("Found files"));
@@ -115,79 +108,7 @@ public class DownloadPanel extends JPanel {
 
     private void handleDownloadAction(DefaultMutableTreeNode node) throws IOException {
         PeerFileMetadata requestedFileMetadata = (PeerFileMetadata) node.getUserObject();
-        List<Peer> peersPossessingFile = new ArrayList<>();
-        List<PeerFileMetadata> fileMetadatas = new ArrayList<>();
-        List<String> chunkFilenames = new ArrayList<>();
-
-        for (Peer peer : app.getLocalPeer().getReachablePeers()) {
-            for (PeerFileMetadata fileMetadata : peer.getFileMetadatas()) {
-                if (fileMetadata.equals(requestedFileMetadata)) {
-                    peersPossessingFile.add(peer);
-                    fileMetadatas.add(fileMetadata);
-                    break;
-                }
-            }
-        }
-
-        int numChunks = (int) Math.ceil((double) requestedFileMetadata.getFileSize() / App.CHUNK_SIZE);
-        int numPeer = peersPossessingFile.size();
-        int baseChunksPerPeer = numChunks / numPeer;
-        int extraChunks = numChunks % numPeer;
-
-        List<Integer> chunkIndices = IntStream.range(0, numChunks).boxed().collect(Collectors.toList());
-        Collections.shuffle(chunkIndices);
-
-        List<List<Integer>> chunksPerPeer = IntStream.range(0, numPeer)
-            .mapToObj(i -> {
-                int startIndex = i * baseChunksPerPeer + Math.min(i, extraChunks);
-                int endIndex = startIndex + baseChunksPerPeer + (i < extraChunks ? 1 : 0);
-                return chunkIndices.subList(startIndex, endIndex);
-            })
-            .collect(Collectors.toList());
-
-        for (int i = 0; i < numPeer; i++) {
-            Peer peer = peersPossessingFile.get(i);
-            PeerFileMetadata fileMetadata = fileMetadatas.get(i);
-            List<Integer> chunks = chunksPerPeer.get(i);
-            if (!chunks.isEmpty()) {
-                fileTransferManager.requestChunks(peer, fileMetadata, new HashSet<>(chunks));
-                chunkFilenames.addAll(chunks.stream().map(chunk -> String.format("%s.%s", fileMetadata.getFilename(), chunk)).toList());
-            }
-        }
-
-        new Thread(() -> {
-            try {
-                handleDownloadProgress(requestedFileMetadata, chunkFilenames);
-                fileManager.mergeChunks(chunkFilenames, requestedFileMetadata.getFilename());
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-            }
-        }).start();
-    }
-
-    private void handleDownloadProgress(PeerFileMetadata requestedFileMetadata, List<String> chunkFilenames) throws IOException {
-        int numChunks = (int) Math.ceil((double) requestedFileMetadata.getFileSize() / App.CHUNK_SIZE);
-        Download download = new Download(requestedFileMetadata.getFilename(), numChunks);
-        downloadTableModel.addDownload(download);
-
-        ForkJoinPool forkJoinPool = new ForkJoinPool();
-        for (String chunkFilename : chunkFilenames) {
-            forkJoinPool.submit(() -> {
-                Path chunkPath = Paths.get(fileManager.getDestinationPath(), chunkFilename);
-                try {
-                    while (!Files.exists(chunkPath)) {
-                        Thread.sleep(500);
-                    }
-                } catch (InterruptedException e) {}
-                downloadTableModel.updateDownloadProgress(download);
-            });
-        }
-
-
-        try {
-            forkJoinPool.shutdown();
-            forkJoinPool.awaitTermination(60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {}
+        app.getDownloadManager().startDownload(requestedFileMetadata);
     }
 
     public void updatePeerFileTree() {
@@ -246,22 +167,27 @@ public class DownloadPanel extends JPanel {
 
     private static class Download {
 
-        private final String filename;
-        private final int numTotalChunks;
+        private final PeerFileMetadata fileMetadata;
+        private int numTotalChunks;
         private int numCurrentChunks;
     
-        public Download(String filename, int numTotalChunks) {
-            this.filename = filename;
-            this.numTotalChunks = numTotalChunks;
+        public Download(PeerFileMetadata fileMetadata) {
+            this.fileMetadata = fileMetadata;
+            this.numTotalChunks = 1;
             this.numCurrentChunks = 0;
         }
 
+        public PeerFileMetadata getFileMetadata() {
+            return fileMetadata;
+        }
+
         public String getFilename() {
-            return filename;
+            return fileMetadata.getFilename();
         }
 
-        public void incrementNumChunks() {
-            numCurrentChunks++;
+        public void setNumChunks(int numCurrentChunks, int numTotalChunks) {
+            this.numCurrentChunks = numCurrentChunks;
+            this.numTotalChunks = Math.max(1, numTotalChunks);
         }
     
         public int getProgress() {
@@ -278,14 +204,20 @@ public class DownloadPanel extends JPanel {
         private final String[] columnNames = {"File Name", "Progress"};
         private final List<Download> downloads = new ArrayList<>();
 
-        public void addDownload(Download download) {
-            downloads.add(download);
-            fireTableRowsInserted(downloads.size() - 1, downloads.size() - 1);
-        }
+        // Resumed downloads show up with the chunks they already had
+        public synchronized void updateDownloadProgress(PeerFileMetadata fileMetadata, int receivedChunks, int totalChunks) {
+            int rowIndex = IntStream.range(0, downloads.size())
+                .filter(i -> downloads.get(i).getFileMetadata().equals(fileMetadata))
+                .findFirst()
+                .orElse(-1);
+            if (rowIndex == -1) {
+                downloads.add(new Download(fileMetadata));
+                rowIndex = downloads.size() - 1;
+                fireTableRowsInserted(rowIndex, rowIndex);
+            }
 
-        public synchronized void updateDownloadProgress(Download download) {
-            int rowIndex = downloads.indexOf(download);
-            download.incrementNumChunks();
+            Download download = downloads.get(rowIndex);
+            download.setNumChunks(receivedChunks, totalChunks);
 
             if (download.isFinished()) {
                 downloads.remove(rowIndex);
@@ -299,7 +231,6 @@ public class DownloadPanel extends JPanel {
         public int getRowCount() {
             return downloads.size();
         }
-
         @Override
         public int getColumnCount() {
             return columnNames.length;
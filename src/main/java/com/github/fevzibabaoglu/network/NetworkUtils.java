@@ -45,18 +45,19 @@ public class NetworkUtils {
         int subnetMask = 0xFFFFFFFF << (32 - prefixLength);
 
         // Convert IP addresses to integers
-        int targetIpInt = ipToInt(targetIPAddress.getHostAddress());
-        int localIpInt = ipToInt(localIPAddress.getHostAddress());
+        int targetIpInt = ipToInt(targetIPAddress);
+        int localIpInt = ipToInt(localIPAddress);
 
         // Check if the target IP is within the same subnet
         return ((targetIpInt & subnetMask) == (localIpInt & subnetMask));
     }
 
-    private static int ipToInt(String ipAddress) {
-        String[] octets = ipAddress.split("\\.");
+    // From the raw address bytes, routing calls this for every edge of the network
+    private static int ipToInt(InetAddress ipAddress) {
+        byte[] octets = ipAddress.getAddress();
         int result = 0;
         for (int i = 0; i < 4; i++) {
-            result |= (Integer.parseInt(octets[i]) & 0xFF) << (24 - (i * 8));
+            result |= (octets[i] & 0xFF) << (24 - (i * 8));
         }
         return result;
     }
@@ -9,16 +9,24 @@ import java.io.Serializable;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import com.github.fevzibabaoglu.file.BloomFilter;
 import com.github.fevzibabaoglu.file.PeerFileMetadata;
 
 public class Peer implements Serializable, Cloneable {
@@ -27,7 +35,19 @@ public class Peer implements Serializable, Cloneable {
 
     private final Set<String> macAddresses;
     private final Map<PeerNetworkInterface, Set<Peer>> interfacePeersMap;
-    private Set<PeerFileMetadata> fileMetadatas;
+
+    // Discovery only carries the version of a peer's catalog and a Bloom filter of its files,
+    // the files themselves are fetched over TCP when it changes
+    private long catalogEpoch;
+    private long catalogVersion;
+    private BloomFilter fileFilter;
+    private transient Set<PeerFileMetadata> fileMetadatas;
+
+    // Bumped whenever this peer's view of the network changes, the routing table is rebuilt lazily on the next lookup
+    private transient volatile long topologyVersion;
+    private transient volatile RoutingTable routingTable;
+    // Hashed from the MAC addresses on first use, they never change afterwards
+    private transient volatile Long peerId;
 
     public Peer() throws SocketException {
         interfacePeersMap = new ConcurrentHashMap<>();
@@ -51,14 +71,77 @@ public class Peer implements Serializable, Cloneable {
         this.fileMetadatas = fileMetadatas;
     }
 
+    // A peer as described by discovery, known by its MAC addresses and interfaces, e.g. in tests
+    static Peer of(Set<String> macAddresses, Collection<PeerNetworkInterface> peerNetworkInterfaces) {
+        Map<PeerNetworkInterface, Set<Peer>> interfacePeersMap = new ConcurrentHashMap<>();
+        for (PeerNetworkInterface peerNetworkInterface : peerNetworkInterfaces) {
+            interfacePeersMap.put(peerNetworkInterface, new CopyOnWriteArraySet<>());
+        }
+        return new Peer(interfacePeersMap, new CopyOnWriteArraySet<>(macAddresses), null);
+    }
+
+    // Empty until the catalog of the peer is known
     public Set<PeerFileMetadata> getFileMetadatas() {
-        return fileMetadatas;
+        return (fileMetadatas != null) ? fileMetadatas : Collections.emptySet();
     }
 
     public void setFileMetadatas(Set<PeerFileMetadata> fileMetadatas) {
         this.fileMetadatas = fileMetadatas;
     }
 
+    public long getCatalogEpoch() {
+        return catalogEpoch;
+    }
+
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public void setCatalogVersion(long catalogEpoch, long catalogVersion) {
+        this.catalogEpoch = catalogEpoch;
+        this.catalogVersion = catalogVersion;
+    }
+
+    // Epochs are start times of the peer, versions count the changes within one
+    public static boolean isNewerCatalog(long epoch, long version, long thanEpoch, long thanVersion) {
+        return epoch > thanEpoch || (epoch == thanEpoch && version > thanVersion);
+    }
+
+    // Null if the peer did not advertise one
+    public BloomFilter getFileFilter() {
+        return fileFilter;
+    }
+
+    public void setFileFilter(BloomFilter fileFilter) {
+        this.fileFilter = fileFilter;
+    }
+
+    // Whether the peer may share the file: listed in its known catalog, or not ruled out by its filter.
+    // Only a listed file is certain, anything else has to be confirmed with the peer.
+    public boolean mightHaveFile(PeerFileMetadata fileMetadata) {
+        return getFileMetadatas().contains(fileMetadata) || (fileFilter != null && fileFilter.mightContain(fileMetadata));
+    }
+
+    // Compact identity used on the wire, derived from the same MAC addresses as equals
+    public long getPeerId() {
+        Long peerId = this.peerId;
+        if (peerId != null) {
+            return peerId;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String macAddress : new TreeSet<>(macAddresses)) {
+                digest.update(macAddress.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            peerId = ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.peerId = peerId;
+        return peerId;
+    }
+
     public Set<PeerNetworkInterface> getPeerNetworkInterfaces() {
         return interfacePeersMap.keySet();
     }
@@ -70,47 +153,30 @@ public class Peer implements Serializable, Cloneable {
     public void addKnownPeerToInterface(PeerNetworkInterface peerNetworkInterface, Peer peer) {
         if (interfacePeersMap.containsKey(peerNetworkInterface) && !(interfacePeersMap.get(peerNetworkInterface).contains(peer))) {
             interfacePeersMap.get(peerNetworkInterface).add(peer);
+            topologyVersion++;
         }
     }
 
-    // Find the route from thisPeer to targetPeer
-    public List<PeerNetworkInterface> getRouteToPeer(Peer targetPeer) throws SocketException, UnknownHostException {
-        List<PeerNetworkInterface> route = new ArrayList<>();
-        Set<Peer> visitedPeers = new HashSet<>();
-        if (findRouteRecursive(this, targetPeer, route, visitedPeers)) {
-            return route;
+    public void removeKnownPeerFromInterface(PeerNetworkInterface peerNetworkInterface, Peer peer) {
+        Set<Peer> knownPeers = interfacePeersMap.get(peerNetworkInterface);
+        if (knownPeers != null && knownPeers.remove(peer)) {
+            topologyVersion++;
         }
-        return null;
     }
 
-    private static boolean findRouteRecursive(Peer currentPeer, Peer targetPeer, List<PeerNetworkInterface> route, Set<Peer> visitedPeers) throws SocketException, UnknownHostException {
-        // Avoid revisiting peers
-        if (!visitedPeers.add(currentPeer)) {
-            return false;
-        }
+    // Find the shortest route from thisPeer to targetPeer
+    public List<PeerNetworkInterface> getRouteToPeer(Peer targetPeer) throws SocketException, UnknownHostException {
+        return getRoutingTable().getRoute(targetPeer);
+    }
 
-        // Check if the current peer is the target
-        if (currentPeer.equals(targetPeer)) {
-            return true;
+    public RoutingTable getRoutingTable() throws SocketException, UnknownHostException {
+        RoutingTable table = routingTable;
+        long version = topologyVersion;
+        if (table == null || table.getTopologyVersion() != version) {
+            table = RoutingTable.build(this, version);
+            routingTable = table;
         }
-
-        // Process all known peers of the current peer
-        for (Map.Entry<PeerNetworkInterface, Set<Peer>> entry : currentPeer.interfacePeersMap.entrySet()) {
-            for (Peer knownPeer : entry.getValue()) {
-                // Find the in-interface of the knownPeer that connects it to the currentPeer
-                PeerNetworkInterface inInterface = NetworkUtils.subnetMatch(knownPeer, entry.getKey().getLocalIPAddress());
-                if (inInterface != null) {
-                    route.add(inInterface);
-                    if (findRouteRecursive(knownPeer, targetPeer, route, visitedPeers)) {
-                        return true;
-                    }
-
-                    // Backtrack
-                    route.remove(route.size() - 1);
-                }
-            }
-        }
-        return false;
+        return table;
     }
 
     // DFS traversal
@@ -141,21 +207,42 @@ public class Peer implements Serializable, Cloneable {
     }
 
     // Assuming no circular references
-    public void mergePeer(Peer newPeer) {
-        newPeer.interfacePeersMap.forEach((networkInterface, newPeers) -> {
-            this.interfacePeersMap.merge(networkInterface, new CopyOnWriteArraySet<>(newPeers), (existingPeers, incomingPeers) -> {
-                incomingPeers.forEach(incomingPeer -> 
-                    existingPeers.stream()
-                        .filter(existingPeer -> existingPeer.equals(incomingPeer))
-                        .findFirst()
-                        .ifPresentOrElse(
-                            existingPeer -> existingPeer.mergePeer(incomingPeer),
-                            () -> existingPeers.add(incomingPeer)
-                        )
-                );
-                return existingPeers;
-            });
-        });
+    // Returns whether the view of the network changed; only then the routing table is invalidated
+    public boolean mergePeer(Peer newPeer) {
+        // Only a newer catalog is adopted, a delayed response must not take the peer back to an older one
+        if (isNewerCatalog(newPeer.catalogEpoch, newPeer.catalogVersion, catalogEpoch, catalogVersion)) {
+            setCatalogVersion(newPeer.catalogEpoch, newPeer.catalogVersion);
+            fileFilter = newPeer.fileFilter;
+        } else if (fileFilter == null) {
+            fileFilter = newPeer.fileFilter;
+        }
+
+        boolean changed = false;
+        for (Map.Entry<PeerNetworkInterface, Set<Peer>> entry : newPeer.interfacePeersMap.entrySet()) {
+            Set<Peer> existingPeers = interfacePeersMap.putIfAbsent(entry.getKey(), new CopyOnWriteArraySet<>(entry.getValue()));
+            if (existingPeers == null) {
+                changed = true;
+                continue;
+            }
+
+            for (Peer incomingPeer : entry.getValue()) {
+                Peer existingPeer = existingPeers.stream()
+                    .filter(peer -> peer.equals(incomingPeer))
+                    .findFirst()
+                    .orElse(null);
+                if (existingPeer != null) {
+                    changed |= existingPeer.mergePeer(incomingPeer);
+                } else {
+                    existingPeers.add(incomingPeer);
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed) {
+            topologyVersion++;
+        }
+        return changed;
     }
 
     // Assuming no circular references
@@ -194,11 +281,18 @@ public class Peer implements Serializable, Cloneable {
             for (String mac : macAddresses) {
                 clonedMACs.add(mac);
             }
-            Set<PeerFileMetadata> clonedFileMetadatas = new CopyOnWriteArraySet<>();
-            for (PeerFileMetadata fileMetadata : fileMetadatas) {
-                clonedFileMetadatas.add(fileMetadata.clone());
+            Set<PeerFileMetadata> clonedFileMetadatas = null;
+            if (fileMetadatas != null) {
+                clonedFileMetadatas = new CopyOnWriteArraySet<>();
+                for (PeerFileMetadata fileMetadata : fileMetadatas) {
+                    clonedFileMetadatas.add(fileMetadata.clone());
+                }
             }
-            return new Peer(clonedMap, clonedMACs, clonedFileMetadatas);
+            Peer clonedPeer = new Peer(clonedMap, clonedMACs, clonedFileMetadatas);
+            clonedPeer.setCatalogVersion(catalogEpoch, catalogVersion);
+            // Immutable, shared between the clones
+            clonedPeer.setFileFilter(fileFilter);
+            return clonedPeer;
         } catch (Exception e) {
             throw new AssertionError("Cloning Peer failed");
         }
@@ -55,6 +55,11 @@ public class PeerNetworkInterface implements Serializable, Cloneable {
         this.localIPAddress = localIPAddress;
     }
 
+    // An interface as described by discovery, without a local network interface behind it, e.g. in tests
+    static PeerNetworkInterface of(InetAddress localIPAddress, short maskLength, InetAddress broadcastIPAddress) {
+        return new PeerNetworkInterface(null, maskLength, broadcastIPAddress, localIPAddress);
+    }
+
     public boolean isUpIPv4Interface() {
         return ((broadcastIPAddress != null) && (localIPAddress != null));
     } 
@@ -0,0 +1,171 @@
+package com.github.fevzibabaoglu.network;
+
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+
+// Long-lived view of the network from the local peer, replacing the view that was rebuilt from scratch every broadcast round.
+// Every discovery response is merged into it as a delta and refreshes the links it describes; a link that no response
+// confirmed for PEER_TTL expires, so a peer whose response is late stays until it misses several rounds.
+// Readers get snapshots: copies of the view that the table never changes afterwards, taken again only after a change.
+// The cached catalogs of the peers are attached while a snapshot is built, a new catalog makes the next snapshot a new copy.
+public class PeerTable {
+
+    private static final long PEER_TTL = Long.getLong("p2p.discovery.peerTtl", 60000);
+
+    private Peer root;
+    private final Map<Link, Long> lastSeenTimes;
+    private Peer snapshot;
+    private boolean changed;
+    private volatile CatalogSource catalogSource;
+
+    public PeerTable() throws SocketException {
+        this.lastSeenTimes = new HashMap<>();
+        clear();
+    }
+
+    // Forget every peer, e.g. when the app stops
+    public synchronized void clear() throws SocketException {
+        root = new Peer();
+        lastSeenTimes.clear();
+        snapshot = root.clone();
+        changed = false;
+    }
+
+    // Apply the local peer's view of the network carried back by a discovery response
+    public synchronized void merge(Peer localPeerView, long now) {
+        root.mergePeer(localPeerView);
+        changed = true;
+
+        Deque<Peer> stack = new ArrayDeque<>();
+        stack.push(localPeerView);
+        while (!stack.isEmpty()) {
+            Peer peer = stack.pop();
+            for (PeerNetworkInterface peerNetworkInterface : peer.getPeerNetworkInterfaces()) {
+                for (Peer knownPeer : peer.getKnownPeerList(peerNetworkInterface)) {
+                    lastSeenTimes.put(new Link(peer, peerNetworkInterface, knownPeer), now);
+                    stack.push(knownPeer);
+                }
+            }
+        }
+    }
+
+    public void setCatalogSource(CatalogSource catalogSource) {
+        this.catalogSource = catalogSource;
+    }
+
+    // A catalog of a peer changed, the next snapshot carries it
+    public synchronized void onCatalogUpdated() {
+        changed = true;
+    }
+
+    // The current view without expired links, the same instance as long as nothing changed
+    public synchronized Peer snapshot(long now) {
+        expire(now);
+        if (changed) {
+            Peer newSnapshot = root.clone();
+            attachCatalogs(newSnapshot);
+            snapshot = newSnapshot;
+            changed = false;
+        }
+        return snapshot;
+    }
+
+    // Every copy of a peer in the view gets its catalog, before the snapshot is handed out
+    private void attachCatalogs(Peer view) {
+        CatalogSource source = catalogSource;
+        if (source == null) {
+            return;
+        }
+
+        Deque<Peer> stack = new ArrayDeque<>();
+        stack.push(view);
+        while (!stack.isEmpty()) {
+            Peer peer = stack.pop();
+            for (PeerNetworkInterface peerNetworkInterface : peer.getPeerNetworkInterfaces()) {
+                for (Peer knownPeer : peer.getKnownPeerList(peerNetworkInterface)) {
+                    Set<PeerFileMetadata> fileMetadatas = source.getCatalog(knownPeer);
+                    if (fileMetadatas != null) {
+                        knownPeer.setFileMetadatas(fileMetadatas);
+                    }
+                    stack.push(knownPeer);
+                }
+            }
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Long> iterator = lastSeenTimes.values().iterator();
+        boolean expired = false;
+        while (iterator.hasNext()) {
+            if (now - iterator.next() > PEER_TTL) {
+                iterator.remove();
+                expired = true;
+            }
+        }
+        if (!expired) {
+            return;
+        }
+
+        // Cut the links that are no longer confirmed, the peers behind them go with them unless reachable otherwise
+        Deque<Peer> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Peer peer = stack.pop();
+            for (PeerNetworkInterface peerNetworkInterface : peer.getPeerNetworkInterfaces()) {
+                Set<Peer> knownPeers = peer.getKnownPeerList(peerNetworkInterface);
+                for (Peer knownPeer : knownPeers) {
+                    if (lastSeenTimes.containsKey(new Link(peer, peerNetworkInterface, knownPeer))) {
+                        stack.push(knownPeer);
+                    } else {
+                        peer.removeKnownPeerFromInterface(peerNetworkInterface, knownPeer);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    public interface CatalogSource {
+        // Null if the catalog of the peer is not known yet
+        Set<PeerFileMetadata> getCatalog(Peer peer);
+    }
+
+    // A peer's interface and a peer known on it, equal wherever the two peers appear in the view
+    private static class Link {
+
+        private final Peer peer;
+        private final PeerNetworkInterface peerNetworkInterface;
+        private final Peer knownPeer;
+
+        private Link(Peer peer, PeerNetworkInterface peerNetworkInterface, Peer knownPeer) {
+            this.peer = peer;
+            this.peerNetworkInterface = peerNetworkInterface;
+            this.knownPeer = knownPeer;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Link other = (Link) obj;
+            return peer.equals(other.peer) && peerNetworkInterface.equals(other.peerNetworkInterface) && knownPeer.equals(other.knownPeer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(peer, peerNetworkInterface, knownPeer);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.fevzibabaoglu.network;
+
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Shortest routes (by hop count) from a peer to every peer reachable in its view of the network.
+// Built once with a breadth-first search per topology version; lookups are a single map access.
+// A route is the list of in-interfaces of the peers along the path, its first entry is the next hop.
+public class RoutingTable {
+
+    private final long topologyVersion;
+    private final Map<Peer, List<PeerNetworkInterface>> routes;
+
+    private RoutingTable(long topologyVersion, Map<Peer, List<PeerNetworkInterface>> routes) {
+        this.topologyVersion = topologyVersion;
+        this.routes = routes;
+    }
+
+    public long getTopologyVersion() {
+        return topologyVersion;
+    }
+
+    // Null if the peer is not reachable, an empty route for the source peer itself
+    public List<PeerNetworkInterface> getRoute(Peer targetPeer) {
+        return routes.get(targetPeer);
+    }
+
+    public PeerNetworkInterface getNextHop(Peer targetPeer) {
+        List<PeerNetworkInterface> route = routes.get(targetPeer);
+        return (route == null || route.isEmpty()) ? null : route.get(0);
+    }
+
+    public Set<Peer> getPeers() {
+        return Collections.unmodifiableSet(routes.keySet());
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    public static RoutingTable build(Peer sourcePeer, long topologyVersion) throws SocketException, UnknownHostException {
+        Map<Peer, List<PeerNetworkInterface>> routes = new HashMap<>();
+        Deque<Peer> queue = new ArrayDeque<>();
+        routes.put(sourcePeer, Collections.emptyList());
+        queue.add(sourcePeer);
+
+        while (!queue.isEmpty()) {
+            Peer currentPeer = queue.poll();
+            List<PeerNetworkInterface> currentRoute = routes.get(currentPeer);
+
+            for (PeerNetworkInterface outInterface : currentPeer.getPeerNetworkInterfaces()) {
+                Set<Peer> knownPeers = currentPeer.getKnownPeerList(outInterface);
+                if (knownPeers == null) {
+                    continue;
+                }
+                for (Peer knownPeer : knownPeers) {
+                    if (routes.containsKey(knownPeer)) {
+                        continue;
+                    }
+
+                    // Find the in-interface of the knownPeer that connects it to the currentPeer
+                    PeerNetworkInterface inInterface = NetworkUtils.subnetMatch(knownPeer, outInterface.getLocalIPAddress());
+                    if (inInterface == null) {
+                        continue;
+                    }
+
+                    List<PeerNetworkInterface> route = new ArrayList<>(currentRoute.size() + 1);
+                    route.addAll(currentRoute);
+                    route.add(inInterface);
+                    routes.put(knownPeer, Collections.unmodifiableList(route));
+                    queue.add(knownPeer);
+                }
+            }
+        }
+        return new RoutingTable(topologyVersion, routes);
+    }
+}
@@ -5,6 +5,7 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.fevzibabaoglu.App;
@@ -12,43 +13,74 @@ import com.github.fevzibabaoglu.file.FileManager;
 import com.github.fevzibabaoglu.network.NetworkUtils;
 import com.github.fevzibabaoglu.network.Peer;
 import com.github.fevzibabaoglu.network.PeerNetworkInterface;
+import com.github.fevzibabaoglu.network.PeerTable;
 
 public class BroadcastManager {
 
     private static final int BROADCAST_PORT = 8000;
     private static final int RESPONSE_PORT = 8001;
-    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Messages arrive in fragments of at most a datagram, the socket buffers hold the bursts of large ones
+    private static final int BUFFER_SIZE = 65535;
+    private static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
 
     private final App app;
     private final FileManager fileManager;
     private final int ttl;
+    private final FloodControl floodControl;
 
-    private final AtomicReference<Peer> localPeerRef;
+    private final PeerTable peerTable;
     private final AtomicReference<Peer> tempLocalPeerRef;
 
     public BroadcastManager(App app, FileManager fileManager, int ttl) throws IOException {
         this.app = app;
         this.fileManager = fileManager;
         this.ttl = ttl;
-        localPeerRef = new AtomicReference<>();
+        this.floodControl = new FloodControl();
+        peerTable = new PeerTable();
         tempLocalPeerRef = new AtomicReference<>();
-        clearPeerCache();
+        refreshLocalPeer();
     }
 
+    // Forget the discovered peers, e.g. when the app stops
     public synchronized void clearPeerCache() throws IOException {
-        localPeerRef.set(new Peer());
+        peerTable.clear();
+        refreshLocalPeer();
+    }
+
+    // What the next broadcasts announce of the local peer: its current interfaces and catalog.
+    // The discovered peers are kept, they expire from the peer table when they stop answering.
+    public synchronized void refreshLocalPeer() throws IOException {
         tempLocalPeerRef.set(new Peer());
+        // Only the catalog version and a filter of the files are broadcast, peers fetch the files over TCP when it changed
         tempLocalPeerRef.get().setFileMetadatas(fileManager.listSharedFiles());
+        tempLocalPeerRef.get().setCatalogVersion(fileManager.getCatalogEpoch(), fileManager.getCatalogVersion());
+        tempLocalPeerRef.get().setFileFilter(fileManager.getCatalogFilter());
     }
 
+    // Where the snapshots get the catalogs of the discovered peers from
+    public void setCatalogSource(PeerTable.CatalogSource catalogSource) {
+        peerTable.setCatalogSource(catalogSource);
+    }
+
+    // A catalog arrived, the next snapshot is a new copy that carries it
+    public void onCatalogUpdated() {
+        peerTable.onCatalogUpdated();
+    }
+
+    // Snapshot of the discovered network, the peer table does not change it once returned
     public Peer getLocalPeer() {
-        return localPeerRef.get();
+        return peerTable.snapshot(System.currentTimeMillis());
+    }
+
+    public FloodControl getFloodControl() {
+        return floodControl;
     }
 
     // Broadcast a discovery message on all network interfaces
     public synchronized void sendBroadcasts(DiscoveryMessage message) throws IOException {
         if (message == null) {
             message = new DiscoveryMessage(ttl, tempLocalPeerRef.get());
+            floodControl.onSent(message.getOwner().getPeerId(), message.getMessageId(), System.currentTimeMillis());
         }
 
         try (DatagramSocket socket = new DatagramSocket()) {
@@ -73,8 +105,9 @@ public class BroadcastManager {
 
                 // Send broadcast
                 byte[] messageByte = copyMessage.serialize();
-                DatagramPacket packet = new DatagramPacket(messageByte, messageByte.length, broadcastIPAddress, BROADCAST_PORT);
-                socket.send(packet);
+                for (byte[] datagram : DatagramFragmenter.fragment(messageByte)) {
+                    socket.send(new DatagramPacket(datagram, datagram.length, broadcastIPAddress, BROADCAST_PORT));
+                }
             }
         }
     }
@@ -86,14 +119,20 @@ public class BroadcastManager {
             socket = new DatagramSocket(BROADCAST_PORT);
             socket.setBroadcast(true);
             socket.setSoTimeout(5000);
+            socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
 
             byte[] buffer = new byte[BUFFER_SIZE];
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            DatagramReassembler reassembler = new DatagramReassembler();
 
             while (app.isThreadsRunning()) {
                 try {
                     socket.receive(packet);
-                    DiscoveryMessage receivedMessage = DiscoveryMessage.deserialize(packet.getData(), packet.getLength());
+                    byte[] messageByte = reassembler.receive(packet.getData(), packet.getLength(), packet.getAddress(), System.currentTimeMillis());
+                    if (messageByte == null) {
+                        continue;
+                    }
+                    DiscoveryMessage receivedMessage = DiscoveryMessage.deserialize(messageByte, messageByte.length);
     
                     InetAddress receiveIPAddress = packet.getAddress();
                     PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(tempLocalPeerRef.get(), receiveIPAddress);
@@ -103,6 +142,13 @@ public class BroadcastManager {
                     if (receiveIPAddress.getHostAddress().equals(localIPAddress.getHostAddress())){
                         continue;
                     }
+
+                    // Every copy is answered so that the owner learns each link it crossed, but only the first is forwarded
+                    FloodControl.Verdict verdict = floodControl.onReceived(receivedMessage.getOwner().getPeerId(), receivedMessage.getMessageId(), receivedMessage.getTtl(), System.currentTimeMillis());
+                    if (verdict == FloodControl.Verdict.DROP) {
+                        System.out.printf("[%s] Broadcast of %s over the rate limit dropped, %d so far\n", localIPAddress, receivedMessage.getOwner().getPeerNetworkInterfaces(), floodControl.getRateLimitedCount());
+                        continue;
+                    }
     
                     // Add the in interface to route list
                     receivedMessage.addToInterfaceList(localPeerNetworkInterface);
@@ -115,7 +161,9 @@ public class BroadcastManager {
     
                     // Forward broadcast
                     receivedMessage.decreaseTtl();
-                    if (receivedMessage.getTtl() > 0) {
+                    if (verdict == FloodControl.Verdict.DUPLICATE) {
+                        System.out.printf("[%s] Duplicate broadcast of %s not forwarded, %d suppressed so far\n", localIPAddress, receivedMessage.getOwner().getPeerNetworkInterfaces(), floodControl.getDuplicateCount());
+                    } else if (receivedMessage.getTtl() > 0) {
                         sendBroadcasts(receivedMessage);
                     }
     
@@ -136,14 +184,20 @@ public class BroadcastManager {
         try {
             socket = new DatagramSocket(RESPONSE_PORT);
             socket.setSoTimeout(5000);
+            socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
 
             byte[] buffer = new byte[BUFFER_SIZE];
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            DatagramReassembler reassembler = new DatagramReassembler();
 
             while (app.isThreadsRunning()) {
                 try {
                     socket.receive(packet);
-                    DiscoveryMessage receivedMessage = DiscoveryMessage.deserialize(packet.getData(), packet.getLength());
+                    byte[] messageByte = reassembler.receive(packet.getData(), packet.getLength(), packet.getAddress(), System.currentTimeMillis());
+                    if (messageByte == null) {
+                        continue;
+                    }
+                    DiscoveryMessage receivedMessage = DiscoveryMessage.deserialize(messageByte, messageByte.length);
     
                     InetAddress receivedIPAddress = packet.getAddress();
                     PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(tempLocalPeerRef.get(), receivedIPAddress);
@@ -151,9 +205,7 @@ public class BroadcastManager {
     
                     // If receivedMessage owner is the localPeer, update the localPeer with new info, else forward response
                     if (NetworkUtils.ipMatch(receivedMessage.getOwner(), localIPAddress) != null) {
-                        synchronized (this) {
-                            getLocalPeer().mergePeer(receivedMessage.getOwner());
-                        }
+                        peerTable.merge(receivedMessage.getOwner(), System.currentTimeMillis());
                         System.out.printf("[%s] Discovered new peers\n", localIPAddress);
                     } else {
                         sendResponse(receivedMessage);
@@ -182,10 +234,11 @@ public class BroadcastManager {
 
         System.out.printf("[%s] Response for %s sent/forwarded to %s\n", localIPAddress, message.getOwner().getPeerNetworkInterfaces(), sendIPAddress);
 
-        byte[] messageByte = message.serialize();
-        DatagramPacket responsePacket = new DatagramPacket(messageByte, messageByte.length, sendIPAddress, RESPONSE_PORT);
+        List<byte[]> datagrams = DatagramFragmenter.fragment(message.serialize());
         try (DatagramSocket responseSocket = new DatagramSocket()) {
-            responseSocket.send(responsePacket);
+            for (byte[] datagram : datagrams) {
+                responseSocket.send(new DatagramPacket(datagram, datagram.length, sendIPAddress, RESPONSE_PORT));
+            }
         }
     }
 }
@@ -0,0 +1,75 @@
+package com.github.fevzibabaoglu.network.broadcast;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+// Splits a serialized discovery message into datagrams that each fit in one packet of a typical MTU, so that no message
+// depends on IP fragmentation or exceeds the 64 KB UDP limit. Every datagram is [MAGIC][VERSION][flags][message ID]
+// [fragment index][fragment count][payload]; the message is deflated first when that makes it smaller.
+// Datagrams without MAGIC are whole serialized messages from peers that do not fragment (see DatagramReassembler).
+public class DatagramFragmenter {
+
+    public static final short MAGIC = 0x5046;
+    public static final byte VERSION = 1;
+    public static final byte FLAG_COMPRESSED = 1;
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+    public static final int DATAGRAM_SIZE = Integer.getInteger("p2p.discovery.datagramSize", 1400);
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("p2p.discovery.compression", "true"));
+
+    private static final AtomicInteger nextMessageId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    private DatagramFragmenter() {}
+
+    public static List<byte[]> fragment(byte[] message) {
+        byte flags = 0;
+        byte[] payload = message;
+        if (COMPRESSION) {
+            byte[] compressed = deflate(message);
+            if (compressed.length < message.length) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        int fragmentPayloadSize = DATAGRAM_SIZE - HEADER_LENGTH;
+        int fragmentCount = Math.max(1, (payload.length + fragmentPayloadSize - 1) / fragmentPayloadSize);
+        if (fragmentCount > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message too large for fragmentation: " + message.length + " bytes");
+        }
+
+        int messageId = nextMessageId.getAndIncrement();
+        List<byte[]> datagrams = new ArrayList<>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            int offset = i * fragmentPayloadSize;
+            int length = Math.min(fragmentPayloadSize, payload.length - offset);
+            ByteBuffer datagram = ByteBuffer.allocate(HEADER_LENGTH + length);
+            datagram.putShort(MAGIC).put(VERSION).put(flags).putInt(messageId).putShort((short) i).putShort((short) fragmentCount);
+            datagram.put(payload, offset, length);
+            datagrams.add(datagram.array());
+        }
+        return datagrams;
+    }
+
+    // Serialized messages repeat class descriptors and interface addresses, they usually shrink to a fraction
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.fevzibabaoglu.network.broadcast;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Puts the datagrams of DatagramFragmenter back together, one reassembler per receiving socket.
+// Incomplete messages are dropped after REASSEMBLY_TIMEOUT, and the oldest ones first once the fragments held
+// exceed MAX_PENDING_BYTES; a lost fragment costs the whole message, which the next broadcast round replaces anyway.
+// Messages larger than MAX_MESSAGE_SIZE, also after inflating, are dropped.
+public class DatagramReassembler {
+
+    private static final long REASSEMBLY_TIMEOUT = Long.getLong("p2p.discovery.reassemblyTimeout", 5000);
+    private static final int MAX_PENDING_BYTES = Integer.getInteger("p2p.discovery.maxPendingBytes", 4 * 1024 * 1024);
+    private static final int MAX_MESSAGE_SIZE = Integer.getInteger("p2p.discovery.maxMessageSize", 1024 * 1024);
+
+    private final Map<String, PartialMessage> partialMessages;
+    private int pendingBytes;
+
+    public DatagramReassembler() {
+        this.partialMessages = new LinkedHashMap<>();
+        this.pendingBytes = 0;
+    }
+
+    public int getPendingMessageCount() {
+        return partialMessages.size();
+    }
+
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    // The complete message once its last missing fragment arrived, null until then or if the datagram is dropped
+    public byte[] receive(byte[] data, int length, InetAddress source, long now) {
+        if (!isFragment(data, length)) {
+            return Arrays.copyOf(data, length);
+        }
+        expire(now);
+
+        ByteBuffer datagram = ByteBuffer.wrap(data, 0, length);
+        datagram.getShort();
+        byte version = datagram.get();
+        byte flags = datagram.get();
+        int messageId = datagram.getInt();
+        int fragmentIndex = datagram.getShort() & 0xFFFF;
+        int fragmentCount = datagram.getShort() & 0xFFFF;
+        if (version != DatagramFragmenter.VERSION || fragmentCount == 0 || fragmentIndex >= fragmentCount) {
+            System.out.printf("[%s] Malformed discovery datagram dropped.\n", source.getHostAddress());
+            return null;
+        }
+        byte[] payload = Arrays.copyOfRange(data, DatagramFragmenter.HEADER_LENGTH, length);
+        boolean compressed = (flags & DatagramFragmenter.FLAG_COMPRESSED) != 0;
+
+        if (fragmentCount == 1) {
+            return decode(payload, compressed, source);
+        }
+
+        String key = source.getHostAddress() + "/" + messageId;
+        PartialMessage partialMessage = partialMessages.get(key);
+        if (partialMessage == null) {
+            partialMessage = new PartialMessage(fragmentCount, compressed, now);
+            partialMessages.put(key, partialMessage);
+        } else if (partialMessage.fragments.length != fragmentCount) {
+            return null;
+        }
+        if (partialMessage.fragments[fragmentIndex] != null) {
+            return null;
+        }
+        if (partialMessage.size + payload.length > MAX_MESSAGE_SIZE) {
+            System.out.printf("[%s] Discovery message over %d bytes dropped.\n", source.getHostAddress(), MAX_MESSAGE_SIZE);
+            remove(key);
+            return null;
+        }
+
+        partialMessage.fragments[fragmentIndex] = payload;
+        partialMessage.received++;
+        partialMessage.size += payload.length;
+        pendingBytes += payload.length;
+        evictOldest(key);
+
+        if (partialMessage.received < fragmentCount) {
+            return null;
+        }
+        remove(key);
+        ByteArrayOutputStream message = new ByteArrayOutputStream(partialMessage.size);
+        for (byte[] fragment : partialMessage.fragments) {
+            message.write(fragment, 0, fragment.length);
+        }
+        return decode(message.toByteArray(), partialMessage.compressed, source);
+    }
+
+    private static boolean isFragment(byte[] data, int length) {
+        return length >= DatagramFragmenter.HEADER_LENGTH && ByteBuffer.wrap(data).getShort(0) == DatagramFragmenter.MAGIC;
+    }
+
+    private void expire(long now) {
+        Iterator<PartialMessage> iterator = partialMessages.values().iterator();
+        while (iterator.hasNext()) {
+            PartialMessage partialMessage = iterator.next();
+            // Insertion order, the rest started later
+            if (now - partialMessage.startTime < REASSEMBLY_TIMEOUT) {
+                break;
+            }
+            pendingBytes -= partialMessage.size;
+            iterator.remove();
+        }
+    }
+
+    // Over the memory limit, drop the oldest messages but the one just added to
+    private void evictOldest(String currentKey) {
+        Iterator<Map.Entry<String, PartialMessage>> iterator = partialMessages.entrySet().iterator();
+        while (pendingBytes > MAX_PENDING_BYTES && iterator.hasNext()) {
+            Map.Entry<String, PartialMessage> entry = iterator.next();
+            if (!entry.getKey().equals(currentKey)) {
+                pendingBytes -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        PartialMessage partialMessage = partialMessages.remove(key);
+        if (partialMessage != null) {
+            pendingBytes -= partialMessage.size;
+        }
+    }
+
+    private static byte[] decode(byte[] payload, boolean compressed, InetAddress source) {
+        if (!compressed) {
+            return payload;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed message");
+                }
+                out.write(buffer, 0, count);
+                if (out.size() > MAX_MESSAGE_SIZE) {
+                    throw new DataFormatException("Inflated message over " + MAX_MESSAGE_SIZE + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            System.out.printf("[%s] Discovery message dropped: %s\n", source.getHostAddress(), e.getMessage());
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static class PartialMessage {
+
+        private final byte[][] fragments;
+        private final boolean compressed;
+        private final long startTime;
+        private int received;
+        private int size;
+
+        private PartialMessage(int fragmentCount, boolean compressed, long startTime) {
+            this.fragments = new byte[fragmentCount][];
+            this.compressed = compressed;
+            this.startTime = startTime;
+            this.received = 0;
+            this.size = 0;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.github.fevzibabaoglu.network.Peer;
@@ -19,17 +20,25 @@ public class DiscoveryMessage implements Serializable, Cloneable {
     private int ttl;
     private final Peer owner;
     private final List<PeerNetworkInterface> interfaceList;
+    // Random per message of an owner, the copies forwarded and answered along the way keep it
+    private final long messageId;
 
     public DiscoveryMessage(int ttl, Peer owner) {
         this.ttl = ttl;
         this.owner = owner;
         this.interfaceList = new CopyOnWriteArrayList<>();
+        this.messageId = ThreadLocalRandom.current().nextLong();
     }
 
-    private DiscoveryMessage(int ttl, Peer owner, List<PeerNetworkInterface> interfaceList) {
+    private DiscoveryMessage(int ttl, Peer owner, List<PeerNetworkInterface> interfaceList, long messageId) {
         this.ttl = ttl;
         this.owner = owner;
         this.interfaceList = interfaceList;
+        this.messageId = messageId;
+    }
+
+    public long getMessageId() {
+        return messageId;
     }
 
     public int getTtl() {
@@ -155,7 +164,8 @@ public class DiscoveryMessage implements Serializable, Cloneable {
             return new DiscoveryMessage(
                 this.ttl,
                 this.owner.clone(),
-                new CopyOnWriteArrayList<>(this.interfaceList.stream().map(PeerNetworkInterface::clone).toList())
+                new CopyOnWriteArrayList<>(this.interfaceList.stream().map(PeerNetworkInterface::clone).toList()),
+                this.messageId
             );
         } catch (Exception e) {
             throw new AssertionError("Cloning DiscoveryMessage failed");
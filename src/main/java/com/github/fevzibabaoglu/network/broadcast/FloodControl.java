@@ -0,0 +1,160 @@
+package com.github.fevzibabaoglu.network.broadcast;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Decides which received broadcasts are forwarded. In a meshed network the same discovery message arrives over several
+// paths; each peer forwards it only once, identified by its origin and message ID, and answers the other copies without
+// flooding them again. A copy that arrives with more TTL left than the one forwarded is forwarded too, so that a message
+// first seen over a long path still reaches as far as it would have.
+// New messages of each origin are limited by a token bucket, a peer flooding discovery messages is dropped beyond it.
+// The seen messages are kept for SEEN_EXPIRY and at most SEEN_CACHE_SIZE of them, the buckets of the MAX_TRACKED_ORIGINS
+// origins that sent last.
+public class FloodControl {
+
+    private static final long SEEN_EXPIRY = Long.getLong("p2p.discovery.seenExpiry", 60000);
+    private static final int SEEN_CACHE_SIZE = Integer.getInteger("p2p.discovery.seenCacheSize", 4096);
+    private static final double ORIGIN_BURST = Integer.getInteger("p2p.discovery.originBurst", 5);
+    private static final double ORIGIN_RATE = Integer.getInteger("p2p.discovery.originRatePerMinute", 12) / 60000.0;
+    private static final int MAX_TRACKED_ORIGINS = 1024;
+
+    private final Map<String, SeenMessage> seenMessages;
+    private final Map<Long, TokenBucket> originBuckets;
+    private long forwardedCount;
+    private long duplicateCount;
+    private long rateLimitedCount;
+
+    public FloodControl() {
+        this.seenMessages = new LinkedHashMap<>();
+        this.originBuckets = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TokenBucket> eldest) {
+                return size() > MAX_TRACKED_ORIGINS;
+            }
+        };
+        this.forwardedCount = 0;
+        this.duplicateCount = 0;
+        this.rateLimitedCount = 0;
+    }
+
+    // Messages of the local peer are never forwarded when they come back, and are not rate limited
+    public synchronized void onSent(long originId, long messageId, long now) {
+        expire(now);
+        seenMessages.put(key(originId, messageId), new SeenMessage(Integer.MAX_VALUE, false, now));
+    }
+
+    public synchronized Verdict onReceived(long originId, long messageId, int ttl, long now) {
+        expire(now);
+        String key = key(originId, messageId);
+        SeenMessage seenMessage = seenMessages.get(key);
+        if (seenMessage != null) {
+            if (seenMessage.dropped) {
+                rateLimitedCount++;
+                return Verdict.DROP;
+            }
+            if (ttl <= seenMessage.forwardedTtl) {
+                duplicateCount++;
+                return Verdict.DUPLICATE;
+            }
+            seenMessage.forwardedTtl = ttl;
+            forwardedCount++;
+            return Verdict.FORWARD;
+        }
+
+        boolean allowed = acquire(originId, now);
+        seenMessages.put(key, new SeenMessage(ttl, !allowed, now));
+        if (seenMessages.size() > SEEN_CACHE_SIZE) {
+            Iterator<SeenMessage> iterator = seenMessages.values().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        if (!allowed) {
+            rateLimitedCount++;
+            return Verdict.DROP;
+        }
+        forwardedCount++;
+        return Verdict.FORWARD;
+    }
+
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    // Copies of already forwarded messages that were answered but not forwarded again
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public synchronized long getRateLimitedCount() {
+        return rateLimitedCount;
+    }
+
+    public synchronized int getTrackedOriginCount() {
+        return originBuckets.size();
+    }
+
+    private boolean acquire(long originId, long now) {
+        TokenBucket bucket = originBuckets.computeIfAbsent(originId, id -> new TokenBucket(now));
+        double tokens = bucket.getTokens(now);
+        bucket.lastTime = now;
+        if (tokens < 1) {
+            bucket.tokens = tokens;
+            return false;
+        }
+        bucket.tokens = tokens - 1;
+        return true;
+    }
+
+    // Insertion order, the rest were seen later
+    private void expire(long now) {
+        Iterator<SeenMessage> iterator = seenMessages.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().firstSeenTime < SEEN_EXPIRY) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private static String key(long originId, long messageId) {
+        return originId + "/" + messageId;
+    }
+
+    public enum Verdict {
+        // New, or with more TTL left than the copy forwarded before
+        FORWARD,
+        // Answered but not forwarded
+        DUPLICATE,
+        // Over the rate limit of its origin, neither answered nor forwarded
+        DROP
+    }
+
+    private static class SeenMessage {
+
+        private final boolean dropped;
+        private final long firstSeenTime;
+        private int forwardedTtl;
+
+        private SeenMessage(int forwardedTtl, boolean dropped, long firstSeenTime) {
+            this.forwardedTtl = forwardedTtl;
+            this.dropped = dropped;
+            this.firstSeenTime = firstSeenTime;
+        }
+    }
+
+    private static class TokenBucket {
+
+        private double tokens;
+        private long lastTime;
+
+        private TokenBucket(long now) {
+            this.tokens = ORIGIN_BURST;
+            this.lastTime = now;
+        }
+
+        private double getTokens(long now) {
+            return Math.min(ORIGIN_BURST, tokens + (now - lastTime) * ORIGIN_RATE);
+        }
+    }
+}
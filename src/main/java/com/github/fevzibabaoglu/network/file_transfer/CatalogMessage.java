@@ -0,0 +1,79 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Set;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Catalog of the sender from one version to another: the files added and removed in between,
+// or the whole catalog as added files if fromVersion is negative
+public class CatalogMessage implements Message, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Peer sender;
+    private final Peer receiver;
+    private final long catalogEpoch;
+    private final long fromVersion;
+    private final long toVersion;
+    private final Set<PeerFileMetadata> added;
+    private final Set<PeerFileMetadata> removed;
+
+    public CatalogMessage(Peer sender, Peer receiver, long catalogEpoch, long fromVersion, long toVersion, Set<PeerFileMetadata> added, Set<PeerFileMetadata> removed) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.catalogEpoch = catalogEpoch;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public Peer getSender() {
+        return sender;
+    }
+
+    public Peer getReceiver() {
+        return receiver;
+    }
+
+    public PeerFileMetadata getFileMetadata() {
+        return null;
+    }
+
+    public long getCatalogEpoch() {
+        return catalogEpoch;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public boolean isFull() {
+        return fromVersion < 0;
+    }
+
+    public Set<PeerFileMetadata> getAdded() {
+        return added;
+    }
+
+    public Set<PeerFileMetadata> getRemoved() {
+        return removed;
+    }
+
+    public byte[] serialize() throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(this);
+            return bos.toByteArray();
+        }
+    }
+}
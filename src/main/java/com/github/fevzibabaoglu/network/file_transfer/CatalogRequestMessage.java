@@ -0,0 +1,55 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Asks a peer for the changes of its catalog since the version the sender has cached, a negative version asks for all of it
+public class CatalogRequestMessage implements Message, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Peer sender;
+    private final Peer receiver;
+    private final long catalogEpoch;
+    private final long sinceVersion;
+
+    public CatalogRequestMessage(Peer sender, Peer receiver, long catalogEpoch, long sinceVersion) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.catalogEpoch = catalogEpoch;
+        this.sinceVersion = sinceVersion;
+    }
+
+    public Peer getSender() {
+        return sender;
+    }
+
+    public Peer getReceiver() {
+        return receiver;
+    }
+
+    public PeerFileMetadata getFileMetadata() {
+        return null;
+    }
+
+    public long getCatalogEpoch() {
+        return catalogEpoch;
+    }
+
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    public byte[] serialize() throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(this);
+            return bos.toByteArray();
+        }
+    }
+}
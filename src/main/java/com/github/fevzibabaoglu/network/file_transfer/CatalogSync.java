@@ -0,0 +1,121 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.ShareCatalog;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Cached catalogs of the other peers. Discovery only advertises the epoch and version of each peer's catalog;
+// a peer whose cached catalog is older is asked for the changes since the cached version,
+// and answers with the whole catalog if it no longer has them or the epoch changed.
+public class CatalogSync {
+
+    private static final long REQUEST_TIMEOUT = 10000;
+    private static final long CACHE_EXPIRY = 10 * 60 * 1000;
+
+    private final FileManager fileManager;
+    private final Map<Peer, CachedCatalog> catalogs;
+    private final Map<Peer, Long> requestTimes;
+
+    public CatalogSync(FileManager fileManager) {
+        this.fileManager = fileManager;
+        this.catalogs = new ConcurrentHashMap<>();
+        this.requestTimes = new ConcurrentHashMap<>();
+    }
+
+    // Cached catalog of a peer, null if none was received yet
+    public Set<PeerFileMetadata> getCatalog(Peer peer) {
+        CachedCatalog catalog = catalogs.get(peer);
+        return (catalog != null) ? catalog.fileMetadatas : null;
+    }
+
+    // Requests for the outdated catalogs of the peers in a view of the network; the view itself is left unchanged
+    public List<CatalogRequestMessage> refresh(Peer localPeer, long now) {
+        List<CatalogRequestMessage> requests = new ArrayList<>();
+        for (Peer peer : localPeer.getReachablePeers()) {
+            CachedCatalog catalog = catalogs.get(peer);
+            if (catalog != null) {
+                catalog.lastSeenTime = now;
+            }
+            if (catalog != null && !Peer.isNewerCatalog(peer.getCatalogEpoch(), peer.getCatalogVersion(), catalog.epoch, catalog.version)) {
+                continue;
+            }
+
+            Long requestTime = requestTimes.get(peer);
+            if (requestTime != null && now - requestTime < REQUEST_TIMEOUT) {
+                continue;
+            }
+            requestTimes.put(peer, now);
+            boolean sameEpoch = catalog != null && catalog.epoch == peer.getCatalogEpoch();
+            requests.add(new CatalogRequestMessage(localPeer, peer, peer.getCatalogEpoch(), sameEpoch ? catalog.version : -1));
+        }
+
+        catalogs.values().removeIf(catalog -> now - catalog.lastSeenTime > CACHE_EXPIRY);
+        return requests;
+    }
+
+    // Changes since the requested version if the local catalog still has them, the whole catalog otherwise
+    public CatalogMessage answer(CatalogRequestMessage request, Peer localPeer) throws IOException {
+        long epoch = fileManager.getCatalogEpoch();
+        if (request.getCatalogEpoch() == epoch && request.getSinceVersion() >= 0) {
+            ShareCatalog.Delta delta = fileManager.getCatalogChanges(request.getSinceVersion());
+            if (delta != null) {
+                return new CatalogMessage(localPeer, request.getSender(), epoch, delta.getFromVersion(), delta.getToVersion(), delta.getAdded(), delta.getRemoved());
+            }
+        }
+
+        // Read the version first, the listing is then at least as new and re-applying later changes to it is harmless
+        long version = fileManager.getCatalogVersion();
+        return new CatalogMessage(localPeer, request.getSender(), epoch, -1, version, fileManager.listSharedFiles(), Collections.emptySet());
+    }
+
+    // Returns the updated catalog of the sender, null if the message did not apply to the cached one
+    public Set<PeerFileMetadata> receive(CatalogMessage message, long now) {
+        Peer peer = message.getSender();
+        CachedCatalog catalog = catalogs.get(peer);
+        requestTimes.remove(peer);
+
+        Set<PeerFileMetadata> fileMetadatas;
+        if (catalog != null && !Peer.isNewerCatalog(message.getCatalogEpoch(), message.getToVersion(), catalog.epoch, catalog.version)) {
+            // A late answer to an earlier request, the cached catalog is already as new
+            return null;
+        } else if (message.isFull()) {
+            fileMetadatas = new HashSet<>(message.getAdded());
+        } else if (catalog != null && catalog.epoch == message.getCatalogEpoch() && catalog.version == message.getFromVersion()) {
+            fileMetadatas = new HashSet<>(catalog.fileMetadatas);
+            fileMetadatas.removeAll(message.getRemoved());
+            fileMetadatas.addAll(message.getAdded());
+        } else {
+            // Out of order, the next refresh asks again from the cached version
+            return null;
+        }
+
+        CachedCatalog updatedCatalog = new CachedCatalog(message.getCatalogEpoch(), message.getToVersion(), Collections.unmodifiableSet(fileMetadatas), now);
+        catalogs.put(peer, updatedCatalog);
+        return updatedCatalog.fileMetadatas;
+    }
+
+    private static class CachedCatalog {
+
+        private final long epoch;
+        private final long version;
+        private final Set<PeerFileMetadata> fileMetadatas;
+        private volatile long lastSeenTime;
+
+        private CachedCatalog(long epoch, long version, Set<PeerFileMetadata> fileMetadatas, long lastSeenTime) {
+            this.epoch = epoch;
+            this.version = version;
+            this.fileMetadatas = fileMetadatas;
+            this.lastSeenTime = lastSeenTime;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Hands out the missing chunks of one download to its sources on demand instead of splitting them up front.
+// Every source pulls small batches from one shared queue as its RequestWindow frees credits, so fast sources take
+// most of the work and a slow or silent one only ever holds a window of chunks. Chunks that time out or are rejected
+// go back to the front of the queue for whichever source asks next. Once the queue is empty, idle sources also request
+// chunks still in flight elsewhere (endgame), so the last chunks do not wait for the slowest source.
+// A Ranking weights the sources: no source holds more than its share of the remaining chunks by score, windows are
+// topped up best source first.
+// S identifies a source, a Peer in the DownloadManager.
+public class ChunkScheduler<S> {
+
+    private static final int MIN_BATCH = 4;
+    private static final int ENDGAME_COPIES = Integer.getInteger("p2p.transfer.endgameCopies", 2);
+    private static final double SHARE_SLACK = 4.0;
+
+    private final Deque<Integer> pendingChunks;
+    private final Map<Integer, Set<S>> inFlightChunks;
+    private final Map<Integer, Set<S>> rejectedChunks;
+    private final Set<Integer> receivedChunks;
+    private final Map<S, RequestWindow> windows;
+    private final Ranking<S> ranking;
+    private final int totalChunks;
+
+    public ChunkScheduler(Collection<Integer> missingChunks) {
+        this(missingChunks, source -> 1.0);
+    }
+
+    public ChunkScheduler(Collection<Integer> missingChunks, Ranking<S> ranking) {
+        this.pendingChunks = new ArrayDeque<>(missingChunks);
+        this.inFlightChunks = new LinkedHashMap<>();
+        this.rejectedChunks = new HashMap<>();
+        this.receivedChunks = new HashSet<>();
+        this.windows = new LinkedHashMap<>();
+        this.ranking = ranking;
+        this.totalChunks = pendingChunks.size();
+    }
+
+    public synchronized void addSource(S source) {
+        windows.putIfAbsent(source, new RequestWindow());
+    }
+
+    // Best ranked first
+    public synchronized List<S> getSources() {
+        List<S> sources = new ArrayList<>(windows.keySet());
+        Map<S, Double> scores = new HashMap<>();
+        for (S source : sources) {
+            scores.put(source, ranking.getScore(source));
+        }
+        sources.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return sources;
+    }
+
+    public synchronized RequestWindow getWindow(S source) {
+        return windows.get(source);
+    }
+
+    public synchronized int getRemainingCount() {
+        return totalChunks - receivedChunks.size();
+    }
+
+    public synchronized boolean isComplete() {
+        return receivedChunks.size() == totalChunks;
+    }
+
+    // Every remaining chunk is requested from some source
+    public synchronized boolean isEndgame() {
+        return pendingChunks.isEmpty() && !isComplete();
+    }
+
+    // Chunks to request from the source now, already counted as in flight.
+    // Waits until a few credits are free so that arrivals are answered by batches rather than single requests.
+    public synchronized List<Integer> nextBatch(S source, long now) {
+        List<Integer> batch = new ArrayList<>();
+        RequestWindow window = windows.get(source);
+        if (window == null) {
+            return batch;
+        }
+        int credits = Math.min(window.getCredits(), getShare(source) - window.getInFlightCount());
+        int minBatch = Math.min(MIN_BATCH, Math.max(1, window.getWindow() / 4));
+        if (credits <= 0 || (credits < minBatch && window.getInFlightCount() > 0)) {
+            return batch;
+        }
+
+        // Chunks this source rejected go to the others, unless no other source is left to try
+        List<Integer> skipped = new ArrayList<>();
+        while (batch.size() < credits && !pendingChunks.isEmpty()) {
+            int chunkIndex = pendingChunks.poll();
+            if (receivedChunks.contains(chunkIndex) || inFlightChunks.containsKey(chunkIndex)) {
+                continue;
+            }
+            Set<S> rejectedBy = rejectedChunks.get(chunkIndex);
+            if (rejectedBy != null && rejectedBy.contains(source) && rejectedBy.size() < windows.size()) {
+                skipped.add(chunkIndex);
+                continue;
+            }
+            batch.add(chunkIndex);
+        }
+        for (int i = skipped.size() - 1; i >= 0; i--) {
+            pendingChunks.addFirst(skipped.get(i));
+        }
+
+        if (batch.size() < credits && pendingChunks.isEmpty()) {
+            // Endgame: duplicate the oldest requests held by other sources
+            for (Map.Entry<Integer, Set<S>> entry : inFlightChunks.entrySet()) {
+                if (batch.size() >= credits) {
+                    break;
+                }
+                Set<S> requesters = entry.getValue();
+                if (requesters.size() < ENDGAME_COPIES && !requesters.contains(source) && !batch.contains(entry.getKey())) {
+                    batch.add(entry.getKey());
+                }
+            }
+        }
+
+        for (int chunkIndex : batch) {
+            window.onRequested(chunkIndex, now);
+            inFlightChunks.computeIfAbsent(chunkIndex, k -> new LinkedHashSet<>()).add(source);
+        }
+        return batch;
+    }
+
+    // Returns false for a chunk that had already arrived, e.g. the slower copy of an endgame request
+    public synchronized boolean onReceived(S source, int chunkIndex, long now) {
+        RequestWindow window = windows.get(source);
+        if (window != null) {
+            window.onReceived(chunkIndex, now);
+        }
+
+        // The other copies will not be waited for, they no longer hold credits of their sources
+        Set<S> requesters = inFlightChunks.remove(chunkIndex);
+        if (requesters != null) {
+            for (S requester : requesters) {
+                if (!requester.equals(source)) {
+                    windows.get(requester).cancel(chunkIndex);
+                }
+            }
+        }
+        rejectedChunks.remove(chunkIndex);
+        return receivedChunks.add(chunkIndex);
+    }
+
+    public synchronized void onRejected(S source, int chunkIndex, long now) {
+        RequestWindow window = windows.get(source);
+        if (window != null) {
+            window.onLost(chunkIndex, now);
+        }
+        rejectedChunks.computeIfAbsent(chunkIndex, k -> new HashSet<>()).add(source);
+        release(source, chunkIndex);
+    }
+
+    // A batch that could not be sent to the source, requested again by whichever source asks next
+    public synchronized void onRequestFailed(S source, Collection<Integer> chunkIndices, long now) {
+        RequestWindow window = windows.get(source);
+        for (int chunkIndex : chunkIndices) {
+            if (window != null) {
+                window.onLost(chunkIndex, now);
+            }
+            release(source, chunkIndex);
+        }
+    }
+
+    // Requeue the chunks whose request timed out; the windows of their sources shrink
+    public synchronized void expire(long now) {
+        for (Map.Entry<S, RequestWindow> entry : windows.entrySet()) {
+            for (int chunkIndex : entry.getValue().expire(now)) {
+                release(entry.getKey(), chunkIndex);
+            }
+        }
+    }
+
+    // Most chunks the source may hold in flight: its share of the remaining chunks by score, with some slack for
+    // scores that are not measured precisely, and at least one
+    private int getShare(S source) {
+        double totalScore = 0;
+        for (S other : windows.keySet()) {
+            totalScore += ranking.getScore(other);
+        }
+        double share = (totalScore > 0) ? ranking.getScore(source) / totalScore : 1.0 / windows.size();
+        return (int) Math.max(1, Math.ceil(getRemainingCount() * share * SHARE_SLACK));
+    }
+
+    private void release(S source, int chunkIndex) {
+        Set<S> requesters = inFlightChunks.get(chunkIndex);
+        if (requesters == null || !requesters.remove(source)) {
+            return;
+        }
+        if (requesters.isEmpty()) {
+            inFlightChunks.remove(chunkIndex);
+            if (!receivedChunks.contains(chunkIndex)) {
+                pendingChunks.addFirst(chunkIndex);
+            }
+        }
+    }
+
+    public interface Ranking<S> {
+        // Higher is better; only the ratios between the sources of a download matter
+        double getScore(S source);
+    }
+}
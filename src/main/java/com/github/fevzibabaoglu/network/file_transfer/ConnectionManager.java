@@ -0,0 +1,169 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Long-lived binary connections to neighbouring peers, one per next-hop address.
+// Frames of different transfers are interleaved on the same connection, each frame is written under the connection lock.
+// Connections idle for longer than IDLE_TIMEOUT are closed; broken ones are detected before use and reconnected.
+public class ConnectionManager {
+
+    private static final long IDLE_TIMEOUT = Long.getLong("p2p.connection.idleTimeout", 60000);
+    private static final long HEALTH_CHECK_INTERVAL = Long.getLong("p2p.connection.healthCheckInterval", 5000);
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final int port;
+    private final Map<InetAddress, Connection> connections;
+
+    public ConnectionManager(int port) {
+        this.port = port;
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    // Write frames to the peer at the target address, reconnecting once if the pooled connection turns out to be broken
+    public void send(InetAddress targetIPAddress, FrameWriter writer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Connection connection = getConnection(targetIPAddress);
+            IOException failure;
+
+            connection.lock.lock();
+            try {
+                if (connection.isHealthy()) {
+                    writer.write(connection.channel);
+                    connection.lastUsedTime = System.currentTimeMillis();
+                    return;
+                }
+                failure = new IOException("Connection to " + targetIPAddress + " was closed by the peer");
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                connection.lock.unlock();
+            }
+
+            discard(targetIPAddress, connection);
+            if (attempt >= MAX_ATTEMPTS) {
+                throw failure;
+            }
+        }
+    }
+
+    // Close connections that have not carried a frame for IDLE_TIMEOUT, skipping those in use
+    public void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<InetAddress, Connection> entry : connections.entrySet()) {
+            Connection connection = entry.getValue();
+            if (now - connection.lastUsedTime < IDLE_TIMEOUT || !connection.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (now - connection.lastUsedTime >= IDLE_TIMEOUT) {
+                    discard(entry.getKey(), connection);
+                }
+            } finally {
+                connection.lock.unlock();
+            }
+        }
+    }
+
+    public void closeAll() {
+        for (Map.Entry<InetAddress, Connection> entry : connections.entrySet()) {
+            discard(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    private Connection getConnection(InetAddress targetIPAddress) throws IOException {
+        Connection connection = connections.get(targetIPAddress);
+        if (connection != null) {
+            return connection;
+        }
+
+        // Connect outside the map so a slow peer does not block the others; a concurrent winner is kept
+        Connection newConnection = connect(targetIPAddress);
+        connection = connections.putIfAbsent(targetIPAddress, newConnection);
+        if (connection != null) {
+            newConnection.close();
+            return connection;
+        }
+        return newConnection;
+    }
+
+    private Connection connect(InetAddress targetIPAddress) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.socket().connect(new InetSocketAddress(targetIPAddress, port), CONNECT_TIMEOUT);
+            WireProtocol.writePreamble(channel);
+            return new Connection(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void discard(InetAddress targetIPAddress, Connection connection) {
+        connections.remove(targetIPAddress, connection);
+        connection.close();
+    }
+
+    public interface FrameWriter {
+        void write(SocketChannel channel) throws IOException;
+    }
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final ReentrantLock lock;
+        private volatile long lastUsedTime;
+        private long lastCheckTime;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.lock = new ReentrantLock();
+            this.lastUsedTime = System.currentTimeMillis();
+            this.lastCheckTime = lastUsedTime;
+        }
+
+        // Receivers never write back, so a readable connection means the peer closed or reset it.
+        // Called with the lock held; probing is throttled to once per HEALTH_CHECK_INTERVAL.
+        private boolean isHealthy() {
+            if (!channel.isOpen() || !channel.isConnected()) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastCheckTime < HEALTH_CHECK_INTERVAL) {
+                return true;
+            }
+            lastCheckTime = now;
+
+            try {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.fevzibabaoglu.App;
+import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Runs downloads independently of the GUI: requests the missing chunks of a file from the peers possessing it,
+// hands them out to those peers on demand as their request windows allow (see ChunkScheduler and RequestWindow),
+// favouring the peers ranked best by measured throughput and route length (see SourceRanking),
+// and completes the file once every chunk is on disk.
+// Downloads interrupted by a restart are resumed from their journal once a peer possessing the file is found.
+// Peers whose catalog is not known to list the file but whose advertised Bloom filter matches it are queried,
+// and added as sources of the running download once they confirm.
+public class DownloadManager {
+
+    private static final long TICK_INTERVAL = 100;
+    private static final long STALL_TIMEOUT = 60000;
+
+    private final App app;
+    private final FileManager fileManager;
+    private final FileTransferManager fileTransferManager;
+    private final Set<PeerFileMetadata> activeDownloads;
+    private final Map<PeerFileMetadata, Download> runningDownloads;
+    private final SourceRanking sourceRanking;
+
+    private volatile ProgressListener progressListener;
+
+    public DownloadManager(App app, FileManager fileManager, FileTransferManager fileTransferManager) {
+        this.app = app;
+        this.fileManager = fileManager;
+        this.fileTransferManager = fileTransferManager;
+        this.activeDownloads = ConcurrentHashMap.newKeySet();
+        this.runningDownloads = new ConcurrentHashMap<>();
+        this.sourceRanking = new SourceRanking(app);
+        this.progressListener = null;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // Request the chunks of a file that are not on disk yet, returns false if it is already downloading or no peer may have it
+    public boolean startDownload(PeerFileMetadata requestedFileMetadata) throws IOException {
+        Peer localPeer = app.getLocalPeer();
+        if (localPeer == null || app.getTaskScope().isClosed() || !activeDownloads.add(requestedFileMetadata)) {
+            return false;
+        }
+
+        List<Peer> peersPossessingFile = new ArrayList<>();
+        List<PeerFileMetadata> fileMetadatas = new ArrayList<>();
+        List<Peer> peersToQuery = new ArrayList<>();
+        for (Peer peer : localPeer.getReachablePeers()) {
+            for (PeerFileMetadata fileMetadata : peer.getFileMetadatas()) {
+                if (fileMetadata.equals(requestedFileMetadata)) {
+                    peersPossessingFile.add(peer);
+                    fileMetadatas.add(fileMetadata);
+                    break;
+                }
+            }
+            if (!peersPossessingFile.contains(peer) && peer.mightHaveFile(requestedFileMetadata)) {
+                peersToQuery.add(peer);
+            }
+        }
+        if (peersPossessingFile.isEmpty() && peersToQuery.isEmpty()) {
+            activeDownloads.remove(requestedFileMetadata);
+            return false;
+        }
+
+        int totalChunks = TreeHash.blockCount(requestedFileMetadata.getFileSize(), fileManager.getChunkSize(requestedFileMetadata));
+        Download download;
+        try {
+            fileManager.startDownload(requestedFileMetadata);
+
+            // Random order, so that peers downloading the same file at once do not all ask for the same chunks
+            List<Integer> chunkIndices = fileManager.getMissingChunks(requestedFileMetadata);
+            Collections.shuffle(chunkIndices);
+            download = new Download(requestedFileMetadata, chunkIndices, fileManager.getChunkSize(requestedFileMetadata));
+            for (int i = 0; i < peersPossessingFile.size(); i++) {
+                download.addSource(peersPossessingFile.get(i), fileMetadatas.get(i));
+            }
+
+            runningDownloads.put(requestedFileMetadata, download);
+            fileTransferManager.registerDownload(requestedFileMetadata, download);
+            download.requestChunks();
+        } catch (IOException | RuntimeException e) {
+            stopDownload(requestedFileMetadata);
+            throw e;
+        }
+
+        for (Peer peer : peersToQuery) {
+            try {
+                fileTransferManager.queryFile(peer, requestedFileMetadata);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        app.getTaskScope().fork(() -> {
+            try {
+                if (awaitChunks(download, totalChunks)) {
+                    fileManager.completeDownload(requestedFileMetadata, new ArrayList<>(download.chunkFilenames.values()));
+                    System.out.printf("[%s] Download completed.\n", requestedFileMetadata);
+                } else {
+                    // Clear a cancellation first, I/O on an interrupted thread would close the channel of the partial file
+                    boolean cancelled = Thread.interrupted();
+                    fileManager.suspendDownload(requestedFileMetadata);
+                    System.out.printf("[%s] Download %s, suspended until it can be resumed.\n", requestedFileMetadata, cancelled ? "cancelled" : "stalled");
+                    if (cancelled) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                stopDownload(requestedFileMetadata);
+            }
+        });
+        return true;
+    }
+
+    // Pick up downloads that have a journal but are not running, e.g. after a restart
+    public void resumeDownloads() {
+        try {
+            for (PeerFileMetadata fileMetadata : fileManager.listResumableDownloads()) {
+                if (!activeDownloads.contains(fileMetadata) && startDownload(fileMetadata)) {
+                    System.out.printf("[%s] Download resumed.\n", fileMetadata);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // A queried peer that shares the file becomes a source of its download, if that is still running
+    public void onFileQueryAnswered(Peer peer, PeerFileMetadata fileMetadata, boolean found) {
+        Download download = runningDownloads.get(fileMetadata);
+        if (!found || download == null) {
+            return;
+        }
+        System.out.printf("[%s] Source %s confirmed.\n", fileMetadata, peer.getPeerNetworkInterfaces());
+        download.addSource(peer, fileMetadata);
+        download.requestChunks(peer);
+    }
+
+    private void stopDownload(PeerFileMetadata fileMetadata) {
+        fileTransferManager.unregisterDownload(fileMetadata);
+        runningDownloads.remove(fileMetadata);
+        activeDownloads.remove(fileMetadata);
+    }
+
+    // Wait until every requested chunk is on disk, gives up once no chunk arrived for STALL_TIMEOUT.
+    // Every tick re-requests chunks whose request timed out and tops up the windows.
+    private boolean awaitChunks(Download download, int totalChunks) {
+        PeerFileMetadata fileMetadata = download.fileMetadata;
+        Set<Integer> missingChunks = new HashSet<>(download.chunkFilenames.keySet());
+        long lastProgressTime = System.currentTimeMillis();
+        int lastReceivedChunks = -1;
+
+        while (true) {
+            missingChunks.removeIf(chunkIndex -> fileManager.hasChunk(fileMetadata, chunkIndex, download.chunkFilenames.get(chunkIndex)));
+            int receivedChunks = totalChunks - missingChunks.size();
+
+            long now = System.currentTimeMillis();
+            if (receivedChunks != lastReceivedChunks) {
+                lastReceivedChunks = receivedChunks;
+                lastProgressTime = now;
+                ProgressListener listener = progressListener;
+                if (listener != null) {
+                    listener.onProgress(fileMetadata, receivedChunks, totalChunks);
+                }
+            }
+
+            if (missingChunks.isEmpty()) {
+                return true;
+            }
+            if (now - lastProgressTime >= STALL_TIMEOUT) {
+                return false;
+            }
+            download.tick(now);
+
+            try {
+                Thread.sleep(TICK_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(PeerFileMetadata fileMetadata, int receivedChunks, int totalChunks);
+    }
+
+    // Pulls batches from the scheduler for each source whenever an arrival or a tick frees credits of its window
+    private class Download implements FileTransferManager.DownloadListener {
+
+        private final PeerFileMetadata fileMetadata;
+        private final int chunkSize;
+        private final ChunkScheduler<Peer> scheduler;
+        private final Map<Peer, PeerFileMetadata> sourceFileMetadatas;
+        private final Map<Integer, String> chunkFilenames;
+
+        private Download(PeerFileMetadata fileMetadata, List<Integer> missingChunks, int chunkSize) {
+            this.fileMetadata = fileMetadata;
+            this.chunkSize = chunkSize;
+            this.scheduler = new ChunkScheduler<>(missingChunks, sourceRanking);
+            this.sourceFileMetadatas = new ConcurrentHashMap<>();
+            this.chunkFilenames = new ConcurrentHashMap<>();
+            for (int chunkIndex : missingChunks) {
+                chunkFilenames.put(chunkIndex, chunkFilename(chunkIndex));
+            }
+        }
+
+        private void addSource(Peer peer, PeerFileMetadata sourceFileMetadata) {
+            sourceFileMetadatas.put(peer, sourceFileMetadata);
+            scheduler.addSource(peer);
+        }
+
+        private void requestChunks() {
+            for (Peer peer : scheduler.getSources()) {
+                requestChunks(peer);
+            }
+        }
+
+        private void requestChunks(Peer peer) {
+            long now = System.currentTimeMillis();
+            List<Integer> batch = scheduler.nextBatch(peer, now);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                fileTransferManager.requestChunks(peer, sourceFileMetadatas.get(peer), new LinkedHashSet<>(batch));
+            } catch (IOException e) {
+                e.printStackTrace();
+                // Asked again, possibly from another peer
+                scheduler.onRequestFailed(peer, batch, now);
+            }
+        }
+
+        @Override
+        public void onChunkReceived(PeerFileMetadata fileMetadata, int chunkIndex, Peer sender) {
+            if (!sourceFileMetadatas.containsKey(sender)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (scheduler.onReceived(sender, chunkIndex, now)) {
+                chunkFilenames.put(chunkIndex, chunkFilename(chunkIndex));
+            }
+            sourceRanking.onChunkReceived(sender, chunkSize, scheduler.getWindow(sender).getLatestRtt(), now);
+            requestChunks(sender);
+        }
+
+        // The chunk goes back to the queue, to be requested from any other peer possessing the file
+        @Override
+        public void onChunkRejected(PeerFileMetadata fileMetadata, int chunkIndex, Peer sender) {
+            if (!sourceFileMetadatas.containsKey(sender)) {
+                return;
+            }
+            scheduler.onRejected(sender, chunkIndex, System.currentTimeMillis());
+            requestChunks();
+        }
+
+        // Requeue timed out requests, update the ranking of peers that are not delivering and top up every window
+        private void tick(long now) {
+            scheduler.expire(now);
+            for (Peer peer : scheduler.getSources()) {
+                sourceRanking.refresh(peer, chunkSize, scheduler.getWindow(peer).getOldestRequestTime(), now);
+            }
+            requestChunks();
+        }
+
+        // Name of the chunk file when a download is stored as separate chunks, sources may share the file under other names
+        private String chunkFilename(int chunkIndex) {
+            return String.format("%s.%s", fileMetadata.getFilename(), chunkIndex);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
 import com.github.fevzibabaoglu.network.Peer;
 
 public class FileChunkMessage implements Message, Serializable {
@@ -19,13 +20,19 @@ public class FileChunkMessage implements Message, Serializable {
     private final PeerFileMetadata fileMetadata;
     private final int chunkIndex;
     private final byte[] chunkData;
+    private final byte[][] proof;
 
     public FileChunkMessage(Peer sender, Peer receiver, PeerFileMetadata fileMetadata, int chunkIndex, byte[] chunkData) {
+        this(sender, receiver, fileMetadata, chunkIndex, chunkData, null);
+    }
+
+    public FileChunkMessage(Peer sender, Peer receiver, PeerFileMetadata fileMetadata, int chunkIndex, byte[] chunkData, byte[][] proof) {
         this.sender = sender;
         this.receiver = receiver;
         this.fileMetadata = fileMetadata;
         this.chunkIndex = chunkIndex;
         this.chunkData = chunkData;
+        this.proof = proof;
     }
 
     public Peer getSender() {
@@ -52,6 +59,35 @@ public class FileChunkMessage implements Message, Serializable {
         return chunkData;
     }
 
+    // Same message carrying the given data, used once a raw payload was read after its header
+    public FileChunkMessage withChunkData(byte[] chunkData) {
+        return new FileChunkMessage(sender, receiver, fileMetadata, chunkIndex, chunkData, proof);
+    }
+
+    // Same message for the given file, e.g. the one the receiver asked for instead of the name the sender shares it under
+    public FileChunkMessage withFileMetadata(PeerFileMetadata fileMetadata) {
+        return new FileChunkMessage(sender, receiver, fileMetadata, chunkIndex, chunkData, proof);
+    }
+
+    // Merkle proof of the chunk against the tree root of the file
+    public byte[][] getProof() {
+        return proof;
+    }
+
+    // Check the chunk data against the given tree root, e.g. the one of the file the receiver asked for
+    public boolean verify(PeerFileMetadata expectedFileMetadata, int chunkSize) throws IOException {
+        if (chunkData == null) {
+            return false;
+        }
+        return verifyLeaf(expectedFileMetadata, chunkSize, TreeHash.leafHash(chunkData, 0, chunkData.length));
+    }
+
+    // Same check for a payload that was hashed while it was streamed to disk
+    public boolean verifyLeaf(PeerFileMetadata expectedFileMetadata, int chunkSize, byte[] leafHash) throws IOException {
+        int blockCount = TreeHash.blockCount(expectedFileMetadata.getFileSize(), chunkSize);
+        return TreeHash.verify(expectedFileMetadata.getRootHash(), blockCount, chunkIndex, leafHash, proof);
+    }
+
     public byte[] serialize() throws IOException {
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
              ObjectOutputStream oos = new ObjectOutputStream(bos)) {
@@ -0,0 +1,58 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Asks a peer whose Bloom filter matched a file whether it really shares it, and carries the answer back
+public class FileQueryMessage implements Message, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Peer sender;
+    private final Peer receiver;
+    private final PeerFileMetadata fileMetadata;
+    private final boolean reply;
+    private final boolean found;
+
+    public FileQueryMessage(Peer sender, Peer receiver, PeerFileMetadata fileMetadata, boolean reply, boolean found) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.fileMetadata = fileMetadata;
+        this.reply = reply;
+        this.found = found;
+    }
+
+    public Peer getSender() {
+        return sender;
+    }
+
+    public Peer getReceiver() {
+        return receiver;
+    }
+
+    public PeerFileMetadata getFileMetadata() {
+        return fileMetadata;
+    }
+
+    public boolean isReply() {
+        return reply;
+    }
+
+    // Only meaningful in a reply
+    public boolean isFound() {
+        return found;
+    }
+
+    public byte[] serialize() throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(this);
+            return bos.toByteArray();
+        }
+    }
+}
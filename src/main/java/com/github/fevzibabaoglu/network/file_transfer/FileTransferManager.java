@@ -1,21 +1,36 @@
 package com.github.fevzibabaoglu.network.file_transfer;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.fevzibabaoglu.App;
+import com.github.fevzibabaoglu.TaskScope;
+import com.github.fevzibabaoglu.file.ChunkCache;
 import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PartialFile;
 import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
 import com.github.fevzibabaoglu.network.NetworkUtils;
 import com.github.fevzibabaoglu.network.Peer;
 import com.github.fevzibabaoglu.network.PeerNetworkInterface;
@@ -23,80 +38,172 @@ import com.github.fevzibabaoglu.network.PeerNetworkInterface;
 public class FileTransferManager {
     
     private static final int LISTENING_PORT = 8002;
+    private static final boolean BINARY_PROTOCOL = !"serialized".equalsIgnoreCase(System.getProperty("p2p.transfer.wireProtocol", "binary"));
+    private static final int SENDER_THREADS = Integer.getInteger("p2p.transfer.senders", TaskScope.isVirtualThreads() ? 256 : 8);
+    private static final int SENDER_QUEUE_CAPACITY = Integer.getInteger("p2p.transfer.senderQueue", 256);
+    private static final long MAX_QUEUED_BYTES = Long.getLong("p2p.transfer.maxQueuedBytes", 64L * 1024 * 1024);
+    private static final long SENDER_KEEP_ALIVE = 60;
 
     private final App app;
     private final FileManager fileManager;
+    private final Map<PeerFileMetadata, ExpectedFile> expectedFiles;
+    private final Map<Long, Peer> peersById;
+    private final WireProtocol.Resolver resolver;
+    private final ConnectionManager connectionManager;
+    private final CatalogSync catalogSync;
+    private final AtomicLong unreachableHopCount;
+    private final ThreadPoolExecutor senders;
+    private final AtomicLong queuedBytes;
+    private final AtomicLong droppedSendCount;
+    private volatile CatalogListener catalogListener;
+    private volatile FileQueryListener fileQueryListener;
     private Peer localPeer;
 
     public FileTransferManager(App app, FileManager fileManager) throws SocketException {
         this.app = app;
         this.fileManager = fileManager;
-        localPeer = new Peer();
+        this.expectedFiles = new ConcurrentHashMap<>();
+        this.peersById = new ConcurrentHashMap<>();
+        this.resolver = new WireProtocol.Resolver() {
+            @Override
+            public Peer resolvePeer(long peerId) {
+                return FileTransferManager.this.resolvePeer(peerId);
+            }
+
+            @Override
+            public PeerFileMetadata resolveFile(PeerFileMetadata fileReference) {
+                // Files are equal by hash, use the full metadata of a file we are downloading
+                ExpectedFile expectedFile = expectedFiles.get(fileReference);
+                return (expectedFile != null) ? expectedFile.fileMetadata : fileReference;
+            }
+        };
+        this.connectionManager = new ConnectionManager(LISTENING_PORT);
+        this.catalogSync = new CatalogSync(fileManager);
+        this.unreachableHopCount = new AtomicLong();
+        this.senders = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, SENDER_KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<>(SENDER_QUEUE_CAPACITY), TaskScope.newThreadFactory("transfer-sender"));
+        this.senders.allowCoreThreadTimeOut(true);
+        this.queuedBytes = new AtomicLong();
+        this.droppedSendCount = new AtomicLong();
+        this.catalogListener = null;
+        this.fileQueryListener = null;
+        setLocalPeer(new Peer());
     }
 
     public void setLocalPeer(Peer localPeer) {
         this.localPeer = localPeer;
+        indexPeers(localPeer);
+    }
+
+    // Peer IDs on the wire are resolved against the local view of the network
+    private Peer resolvePeer(long peerId) {
+        Peer peer = peersById.get(peerId);
+        if (peer == null) {
+            // The topology may have changed since the local peer was set
+            indexPeers(localPeer);
+            peer = peersById.get(peerId);
+        }
+        return peer;
+    }
+
+    private void indexPeers(Peer localPeer) {
+        Map<Long, Peer> peers = new HashMap<>();
+        if (localPeer != null) {
+            peers.put(localPeer.getPeerId(), localPeer);
+            for (Peer peer : localPeer.getReachablePeers()) {
+                peers.put(peer.getPeerId(), peer);
+            }
+        }
+        peersById.keySet().retainAll(peers.keySet());
+        peersById.putAll(peers);
+    }
+
+    // Incoming chunks of this file are verified against its tree root, accepted and rejected chunks are reported to the listener
+    public void registerDownload(PeerFileMetadata fileMetadata, DownloadListener listener) {
+        expectedFiles.put(fileMetadata, new ExpectedFile(fileMetadata, listener));
+    }
+
+    public void unregisterDownload(PeerFileMetadata fileMetadata) {
+        expectedFiles.remove(fileMetadata);
+    }
+
+    public void setCatalogListener(CatalogListener catalogListener) {
+        this.catalogListener = catalogListener;
+    }
+
+    public void setFileQueryListener(FileQueryListener fileQueryListener) {
+        this.fileQueryListener = fileQueryListener;
+    }
+
+    // Source-routed frames whose listed next hop could not be reached, and were routed locally instead
+    public long getUnreachableHopCount() {
+        return unreachableHopCount.get();
+    }
+
+    // Sends caused by incoming frames that were dropped because the senders were saturated
+    public long getDroppedSendCount() {
+        return droppedSendCount.get();
+    }
+
+    // Ask a peer whose filter matched the file whether it shares it, the answer goes to the file query listener
+    public void queryFile(Peer receiver, PeerFileMetadata fileMetadata) throws IOException {
+        InetAddress localIPAddress = sendMessage(new FileQueryMessage(localPeer, receiver, fileMetadata, false, false));
+        if (localIPAddress != null) {
+            System.out.printf("[%s] %s queried from %s.\n", localIPAddress, fileMetadata, receiver.getPeerNetworkInterfaces());
+        }
+    }
+
+    // Cached catalog of a peer, attached to the peer in the snapshots of the network
+    public Set<PeerFileMetadata> getCatalog(Peer peer) {
+        return catalogSync.getCatalog(peer);
+    }
+
+    // Ask the peers in the current view whose catalog changed for the changes
+    public void syncCatalogs() {
+        for (CatalogRequestMessage request : catalogSync.refresh(localPeer, System.currentTimeMillis())) {
+            try {
+                InetAddress localIPAddress = sendMessage(request);
+                if (localIPAddress != null) {
+                    System.out.printf("[%s] Catalog of %s requested from version %d.\n", localIPAddress, request.getReceiver().getPeerNetworkInterfaces(), request.getSinceVersion());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void closeIdleConnections() {
+        connectionManager.closeIdleConnections();
+    }
+
+    public void closeConnections() {
+        connectionManager.closeAll();
     }
 
     // Starts the listener to accept incoming connections
     public void listen() throws IOException {
-        ServerSocket serverSocket = null;
-        try {
-            serverSocket = new ServerSocket(LISTENING_PORT);
-            serverSocket.setSoTimeout(5000);
+        new TransferServer(LISTENING_PORT, new TransferServer.Handler() {
+            @Override
+            public void handleFrame(byte[] frame, InetAddress remoteIPAddress) throws IOException, NoSuchAlgorithmException {
+                FileTransferManager.this.handleFrame(frame, getLocalIPAddress(remoteIPAddress));
+            }
 
-            while (app.isThreadsRunning()) {
-                try {
-                    Socket incomingSocket = serverSocket.accept();
-                    new Thread(() -> {
-                        try {
-                            handleIncomingConnection(incomingSocket);
-                        } catch (ClassNotFoundException | IOException | NoSuchAlgorithmException e) {
-                            e.printStackTrace();
-                        } finally {
-                            try {
-                                incomingSocket.close();
-                            } catch (IOException e) {}
-                        }
-                    }).start();
-                } catch (SocketTimeoutException e) {}
-            } 
-        } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        }
-    }
-
-    // Handles an incoming connection by receiving chunks and processing them
-    private void handleIncomingConnection(Socket incomingSocket) throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
-        try (ObjectInputStream objectInputStream = new ObjectInputStream(incomingSocket.getInputStream())) {
-            InetAddress receiveIPAddress = incomingSocket.getInetAddress();
-            PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(localPeer, receiveIPAddress);
-            InetAddress localIPAddress = localPeerNetworkInterface.getLocalIPAddress();
+            @Override
+            public void handleObjectStream(InputStream inputStream, InetAddress remoteIPAddress) throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
+                FileTransferManager.this.handleObjectStream(inputStream, getLocalIPAddress(remoteIPAddress));
+            }
+        }).run(app::isThreadsRunning);
+    }
+
+    private InetAddress getLocalIPAddress(InetAddress remoteIPAddress) throws IOException {
+        PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(localPeer, remoteIPAddress);
+        return localPeerNetworkInterface.getLocalIPAddress();
+    }
 
+    private void handleObjectStream(InputStream inputStream, InetAddress localIPAddress) throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
             while (true) {
                 try {
-                    Object object = objectInputStream.readObject();
-                    if (object instanceof FileChunkMessage) {
-                        FileChunkMessage chunkMessage = (FileChunkMessage) object;
-    
-                        if (chunkMessage.getReceiver().equals(localPeer)) {
-                            System.out.printf("[%s] %s.%d received from %s successfully.\n", localIPAddress, chunkMessage.getFileMetadata(), chunkMessage.getChunkIndex(), chunkMessage.getSender().getPeerNetworkInterfaces());
-                            fileManager.saveChunk(chunkMessage);
-                        } else {
-                            forwardMessage(chunkMessage);
-                        }
-                    } else if (object instanceof PeerFileMetadataRequestMessage) {
-                        PeerFileMetadataRequestMessage metadataRequestMessage = (PeerFileMetadataRequestMessage) object;
-
-                        if (metadataRequestMessage.getReceiver().equals(localPeer)) { 
-                            System.out.printf("[%s] File request received from %s successfully.\n", localIPAddress, metadataRequestMessage.getSender().getPeerNetworkInterfaces());
-                            sendChunks(metadataRequestMessage.getSender(), metadataRequestMessage.getFileMetadata(), metadataRequestMessage.getChunkIndices());
-                        } else {
-                            forwardMessage(metadataRequestMessage);
-                        }
-                    }
+                    handleMessage(objectInputStream.readObject(), localIPAddress);
                 } catch (EOFException e) {
                     // End of file/stream
                     break;
@@ -105,11 +212,286 @@ public class FileTransferManager {
         }
     }
 
+    // A binary frame read in full by the transfer server, a chunk payload follows its header as raw bytes.
+    // Frames for other peers are relayed without decoding them.
+    void handleFrame(byte[] frameBytes, InetAddress localIPAddress) throws IOException, NoSuchAlgorithmException {
+        if (frameBytes[0] != WireProtocol.FRAME_ROUTED) {
+            routeFrame(frameBytes, 0, localIPAddress);
+            return;
+        }
+
+        // The hop count is not changed by advanceRoute, the routed frame still starts right after the listed hops
+        int offset = WireProtocol.getRouteLength(frameBytes);
+        if (WireProtocol.getRouteNextHop(frameBytes) < WireProtocol.getRouteHopCount(frameBytes)) {
+            forwardRoutedFrame(frameBytes, offset, localIPAddress);
+        } else {
+            routeFrame(frameBytes, offset, localIPAddress);
+        }
+    }
+
+    // Without a route, at the end of a route computed from a stale view of the network, or past an unreachable listed hop
+    private void routeFrame(byte[] frameBytes, int offset, InetAddress localIPAddress) throws IOException, NoSuchAlgorithmException {
+        long receiverId = WireProtocol.peekReceiverId(frameBytes, offset);
+        if (receiverId != localPeer.getPeerId()) {
+            relayFrame(frameBytes, offset, receiverId, localIPAddress);
+            return;
+        }
+
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(frameBytes, offset, frameBytes.length - offset));
+        byte frameType = WireProtocol.readFrameType(frame);
+        if (frameType == WireProtocol.FRAME_REQUEST) {
+            PeerFileMetadataRequestMessage metadataRequestMessage = WireProtocol.readRequest(frame, resolver);
+            if (metadataRequestMessage.getSender() == null || metadataRequestMessage.getReceiver() == null) {
+                System.out.printf("[%s] File request between unknown peers dropped.\n", localIPAddress);
+                return;
+            }
+            handleMessage(metadataRequestMessage, localIPAddress);
+        } else if (frameType == WireProtocol.FRAME_CHUNK) {
+            FileChunkMessage header = WireProtocol.readChunkHeader(frame, resolver);
+            int payloadLength = WireProtocol.readPayloadLength(frame);
+            if (header.getSender() == null || header.getReceiver() == null) {
+                System.out.printf("[%s] %s.%d between unknown peers dropped.\n", localIPAddress, header.getFileMetadata(), header.getChunkIndex());
+                return;
+            }
+            if (!receiveChunkInPlace(header, payloadLength, frame, localIPAddress)) {
+                handleMessage(header.withChunkData(WireProtocol.readPayload(frame, payloadLength)), localIPAddress);
+            }
+        } else if (frameType == WireProtocol.FRAME_CATALOG_REQUEST || frameType == WireProtocol.FRAME_CATALOG) {
+            Message message = (frameType == WireProtocol.FRAME_CATALOG) ? WireProtocol.readCatalog(frame, resolver) : WireProtocol.readCatalogRequest(frame, resolver);
+            if (message.getSender() == null || message.getReceiver() == null) {
+                System.out.printf("[%s] Catalog message between unknown peers dropped.\n", localIPAddress);
+                return;
+            }
+            handleMessage(message, localIPAddress);
+        } else if (frameType == WireProtocol.FRAME_FILE_QUERY) {
+            FileQueryMessage fileQueryMessage = WireProtocol.readFileQuery(frame, resolver);
+            if (fileQueryMessage.getSender() == null || fileQueryMessage.getReceiver() == null) {
+                System.out.printf("[%s] File query between unknown peers dropped.\n", localIPAddress);
+                return;
+            }
+            handleMessage(fileQueryMessage, localIPAddress);
+        } else {
+            throw new IOException("Unknown frame type: " + frameType);
+        }
+    }
+
+    // Source-routed relay: pop the next listed hop and pass the frame on.
+    // If that hop is unreachable, the frame is routed locally like one without a route.
+    private void forwardRoutedFrame(byte[] frame, int offset, InetAddress localIPAddress) throws IOException, NoSuchAlgorithmException {
+        InetAddress nextHopIPAddress = WireProtocol.getRouteHop(frame, WireProtocol.getRouteNextHop(frame));
+        if (NetworkUtils.subnetMatch(localPeer, nextHopIPAddress) == null) {
+            System.out.printf("[%s] Listed hop %s not on a local subnet, routing locally.\n", localIPAddress, nextHopIPAddress);
+            unreachableHopCount.incrementAndGet();
+            routeFrame(frame, offset, localIPAddress);
+            return;
+        }
+
+        WireProtocol.advanceRoute(frame);
+        sendLater(localIPAddress, frame.length, () -> {
+            try {
+                connectionManager.send(nextHopIPAddress, socketChannel -> WireProtocol.writeFrame(socketChannel, frame));
+                System.out.printf("[%s] Frame of %d bytes relayed to %s successfully.\n", localIPAddress, frame.length, nextHopIPAddress);
+            } catch (IOException e) {
+                System.out.printf("[%s] Listed hop %s unreachable, routing locally: %s\n", localIPAddress, nextHopIPAddress, e.getMessage());
+                unreachableHopCount.incrementAndGet();
+                routeFrame(frame, offset, localIPAddress);
+            }
+        });
+    }
+
+    // Cut-through relay with a route of our own: only the receiver ID is read, header and payload go on as they arrived
+    private void relayFrame(byte[] frame, int offset, long receiverId, InetAddress localIPAddress) throws IOException {
+        Peer receiver = resolvePeer(receiverId);
+        if (receiver == null) {
+            System.out.printf("[%s] Frame for unknown peer dropped.\n", localIPAddress);
+            return;
+        }
+        List<PeerNetworkInterface> route = localPeer.getRouteToPeer(receiver);
+        if (route == null) {
+            return;
+        }
+
+        sendLater(localIPAddress, frame.length, () -> {
+            sendRouted(route, socketChannel -> WireProtocol.writeFrame(socketChannel, frame, offset, frame.length - offset));
+            System.out.printf("[%s] Frame of %d bytes relayed to %s successfully.\n", localIPAddress, frame.length - offset, receiver.getPeerNetworkInterfaces());
+        });
+    }
+
+    // Sends caused by an incoming frame run on the sender threads, so transfer workers never block writing to a peer.
+    // Otherwise two relays whose workers all wait on writes to each other stop reading, and neither write completes.
+    // Relayed frames hold their bytes against MAX_QUEUED_BYTES; past it or with the queue full the send is dropped,
+    // and the requester times it out like a lost chunk.
+    private void sendLater(InetAddress localIPAddress, int frameLength, Send send) {
+        long queued = queuedBytes.addAndGet(frameLength);
+        if (queued > MAX_QUEUED_BYTES && queued != frameLength) {
+            queuedBytes.addAndGet(-frameLength);
+            droppedSendCount.incrementAndGet();
+            System.out.printf("[%s] Send of %d bytes dropped, %d bytes already queued.\n", localIPAddress, frameLength, queued - frameLength);
+            return;
+        }
+
+        try {
+            senders.execute(() -> {
+                try {
+                    send.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    queuedBytes.addAndGet(-frameLength);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedBytes.addAndGet(-frameLength);
+            droppedSendCount.incrementAndGet();
+            System.out.printf("[%s] Send dropped, senders are saturated.\n", localIPAddress);
+        }
+    }
+
+    // Send to the first hop of the route, listing every hop so that relays do not have to route again
+    private void sendRouted(List<PeerNetworkInterface> route, ConnectionManager.FrameWriter writer) throws IOException {
+        List<InetAddress> hops = new ArrayList<>(route.size());
+        for (PeerNetworkInterface hop : route) {
+            hops.add(hop.getLocalIPAddress());
+        }
+        connectionManager.send(hops.get(0), socketChannel -> {
+            WireProtocol.writeRoute(socketChannel, hops);
+            writer.write(socketChannel);
+        });
+    }
+
+    private void handleMessage(Object object, InetAddress localIPAddress) throws IOException, NoSuchAlgorithmException {
+        if (object instanceof FileChunkMessage) {
+            FileChunkMessage chunkMessage = (FileChunkMessage) object;
+
+            if (chunkMessage.getReceiver().equals(localPeer)) {
+                receiveChunk(chunkMessage, localIPAddress);
+            } else {
+                sendLater(localIPAddress, chunkMessage.getChunkData().length, () -> forwardMessage(chunkMessage));
+            }
+        } else if (object instanceof PeerFileMetadataRequestMessage) {
+            PeerFileMetadataRequestMessage metadataRequestMessage = (PeerFileMetadataRequestMessage) object;
+
+            if (metadataRequestMessage.getReceiver().equals(localPeer)) { 
+                System.out.printf("[%s] File request received from %s successfully.\n", localIPAddress, metadataRequestMessage.getSender().getPeerNetworkInterfaces());
+                sendLater(localIPAddress, 0, () -> sendChunks(metadataRequestMessage.getSender(), metadataRequestMessage.getFileMetadata(), metadataRequestMessage.getChunkIndices()));
+            } else {
+                sendLater(localIPAddress, 0, () -> forwardMessage(metadataRequestMessage));
+            }
+        } else if (object instanceof CatalogRequestMessage) {
+            CatalogRequestMessage catalogRequestMessage = (CatalogRequestMessage) object;
+
+            if (catalogRequestMessage.getReceiver().equals(localPeer)) {
+                CatalogMessage catalogMessage = catalogSync.answer(catalogRequestMessage, localPeer);
+                System.out.printf("[%s] Catalog from version %d sent to %s, %d added and %d removed.\n", localIPAddress, catalogMessage.getFromVersion(), catalogRequestMessage.getSender().getPeerNetworkInterfaces(), catalogMessage.getAdded().size(), catalogMessage.getRemoved().size());
+                sendLater(localIPAddress, 0, () -> sendMessage(catalogMessage));
+            } else {
+                sendLater(localIPAddress, 0, () -> forwardMessage(catalogRequestMessage));
+            }
+        } else if (object instanceof CatalogMessage) {
+            CatalogMessage catalogMessage = (CatalogMessage) object;
+
+            if (catalogMessage.getReceiver().equals(localPeer)) {
+                receiveCatalog(catalogMessage, localIPAddress);
+            } else {
+                sendLater(localIPAddress, 0, () -> forwardMessage(catalogMessage));
+            }
+        } else if (object instanceof FileQueryMessage) {
+            FileQueryMessage fileQueryMessage = (FileQueryMessage) object;
+
+            if (!fileQueryMessage.getReceiver().equals(localPeer)) {
+                sendLater(localIPAddress, 0, () -> forwardMessage(fileQueryMessage));
+            } else if (!fileQueryMessage.isReply()) {
+                boolean found = fileManager.isShared(fileQueryMessage.getFileMetadata());
+                System.out.printf("[%s] Query for %s from %s answered, %s.\n", localIPAddress, fileQueryMessage.getFileMetadata(), fileQueryMessage.getSender().getPeerNetworkInterfaces(), found ? "shared" : "not shared");
+                sendLater(localIPAddress, 0, () -> sendMessage(new FileQueryMessage(localPeer, fileQueryMessage.getSender(), fileQueryMessage.getFileMetadata(), true, found)));
+            } else {
+                FileQueryListener listener = fileQueryListener;
+                if (listener != null) {
+                    listener.onFileQueryAnswered(fileQueryMessage.getSender(), fileQueryMessage.getFileMetadata(), fileQueryMessage.isFound());
+                }
+            }
+        }
+    }
+
+    // Apply the catalog to the cached one, the listener publishes a view of the network that carries it
+    private void receiveCatalog(CatalogMessage catalogMessage, InetAddress localIPAddress) {
+        Set<PeerFileMetadata> fileMetadatas = catalogSync.receive(catalogMessage, System.currentTimeMillis());
+        if (fileMetadatas == null) {
+            return;
+        }
+        Peer sender = resolvePeer(catalogMessage.getSender().getPeerId());
+        if (sender == null) {
+            return;
+        }
+        System.out.printf("[%s] Catalog of %s updated to version %d, %d files.\n", localIPAddress, sender.getPeerNetworkInterfaces(), catalogMessage.getToVersion(), fileMetadatas.size());
+
+        CatalogListener listener = catalogListener;
+        if (listener != null) {
+            listener.onCatalogUpdated(sender);
+        }
+    }
+
+    // Verify a chunk addressed to the local peer before it is written to disk
+    private void receiveChunk(FileChunkMessage chunkMessage, InetAddress localIPAddress) throws IOException {
+        // Trust the root of the file we asked for, not the one the sender put in the message
+        ExpectedFile expectedFile = expectedFiles.get(chunkMessage.getFileMetadata());
+        PeerFileMetadata expectedFileMetadata = (expectedFile != null) ? expectedFile.fileMetadata : chunkMessage.getFileMetadata();
+
+        if (!chunkMessage.verify(expectedFileMetadata, fileManager.getChunkSize(expectedFileMetadata))) {
+            System.out.printf("[%s] %s.%d received from %s failed verification, rejected.\n", localIPAddress, chunkMessage.getFileMetadata(), chunkMessage.getChunkIndex(), chunkMessage.getSender().getPeerNetworkInterfaces());
+            if (expectedFile != null) {
+                expectedFile.listener.onChunkRejected(expectedFileMetadata, chunkMessage.getChunkIndex(), chunkMessage.getSender());
+            }
+            return;
+        }
+
+        System.out.printf("[%s] %s.%d received from %s successfully.\n", localIPAddress, chunkMessage.getFileMetadata(), chunkMessage.getChunkIndex(), chunkMessage.getSender().getPeerNetworkInterfaces());
+        // Stored under the name of the requested file, where the download looks for it
+        fileManager.saveChunk(chunkMessage.withFileMetadata(expectedFileMetadata));
+        if (expectedFile != null) {
+            expectedFile.listener.onChunkReceived(expectedFileMetadata, chunkMessage.getChunkIndex(), chunkMessage.getSender());
+        }
+    }
+
+    // Stream the payload of a chunk for a preallocated download straight into its file region.
+    // Returns false if the chunk has to be read into memory instead, the payload is then still unread.
+    private boolean receiveChunkInPlace(FileChunkMessage header, int payloadLength, InputStream inputStream, InetAddress localIPAddress) throws IOException {
+        if (!header.getReceiver().equals(localPeer)) {
+            return false;
+        }
+        ExpectedFile expectedFile = expectedFiles.get(header.getFileMetadata());
+        PartialFile partialFile = fileManager.getPartialFile(header.getFileMetadata());
+        int chunkIndex = header.getChunkIndex();
+        if (expectedFile == null || partialFile == null
+                || chunkIndex < 0 || chunkIndex >= partialFile.getChunkCount() || partialFile.getChunkLength(chunkIndex) != payloadLength) {
+            return false;
+        }
+
+        PeerFileMetadata expectedFileMetadata = expectedFile.fileMetadata;
+        if (!partialFile.receiveChunk(inputStream, chunkIndex, leafHash -> header.verifyLeaf(expectedFileMetadata, fileManager.getChunkSize(expectedFileMetadata), leafHash))) {
+            System.out.printf("[%s] %s.%d received from %s failed verification, rejected.\n", localIPAddress, header.getFileMetadata(), chunkIndex, header.getSender().getPeerNetworkInterfaces());
+            expectedFile.listener.onChunkRejected(expectedFileMetadata, chunkIndex, header.getSender());
+            return true;
+        }
+
+        System.out.printf("[%s] %s.%d received from %s successfully.\n", localIPAddress, header.getFileMetadata(), chunkIndex, header.getSender().getPeerNetworkInterfaces());
+        expectedFile.listener.onChunkReceived(expectedFileMetadata, chunkIndex, header.getSender());
+        return true;
+    }
+
     // Forwards a message to the next peer
     private void forwardMessage(Message message) throws IOException {
+        InetAddress localIPAddress = sendMessage(message);
+        if (localIPAddress != null) {
+            System.out.printf("[%s] Message of %s forwarded to %s successfully.\n", localIPAddress, message.getSender().getPeerNetworkInterfaces(), message.getReceiver().getPeerNetworkInterfaces());
+        }
+    }
+
+    // Sends a message along the route to its receiver, returns the local address it left from or null if there is no route
+    private InetAddress sendMessage(Message message) throws IOException {
         List<PeerNetworkInterface> route = localPeer.getRouteToPeer(message.getReceiver());
         if (route == null) {
-            return;
+            return null;
         }
 
         PeerNetworkInterface targetPeerNetworkInterface = route.get(0);
@@ -118,18 +500,21 @@ public class FileTransferManager {
         PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(localPeer, targetIPAddress);
         InetAddress localIPAddress = localPeerNetworkInterface.getLocalIPAddress();
 
+        if (BINARY_PROTOCOL) {
+            sendRouted(route, socketChannel -> WireProtocol.writeMessage(socketChannel, message));
+            return localIPAddress;
+        }
+
         try (Socket outputSocket = new Socket(targetIPAddress, LISTENING_PORT);
              ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputSocket.getOutputStream())) {
-
-            System.out.printf("[%s] Message of %s forwarded to %s successfully.\n", localIPAddress, message.getSender().getPeerNetworkInterfaces(), message.getReceiver().getPeerNetworkInterfaces());
-
             objectOutputStream.writeObject(message);
             objectOutputStream.flush();
         }
+        return localIPAddress;
     }
 
     // Sends a file to a target peer
-    private void sendChunks(Peer receiver, PeerFileMetadata fileMetadata, Set<Integer> chunkIndices) throws IOException {
+    private void sendChunks(Peer receiver, PeerFileMetadata fileMetadata, Set<Integer> chunkIndices) throws IOException, NoSuchAlgorithmException {
         List<PeerNetworkInterface> route = localPeer.getRouteToPeer(receiver);
         if (route == null) {
             return;
@@ -141,12 +526,18 @@ public class FileTransferManager {
         PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(localPeer, targetIPAddress);
         InetAddress localIPAddress = localPeerNetworkInterface.getLocalIPAddress();
 
+        TreeHash treeHash = fileManager.getTreeHash(fileMetadata);
+        if (BINARY_PROTOCOL) {
+            sendChunksBinary(route, localIPAddress, receiver, fileMetadata, chunkIndices, treeHash);
+            return;
+        }
+
         try (Socket outputSocket = new Socket(targetIPAddress, LISTENING_PORT);
              ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputSocket.getOutputStream())) {
 
             for (int chunkIndex : chunkIndices) {
                 byte[] chunkData = fileManager.loadChunk(fileMetadata, chunkIndex);
-                FileChunkMessage chunkMessage = new FileChunkMessage(localPeer, receiver, fileMetadata, chunkIndex, chunkData);
+                FileChunkMessage chunkMessage = new FileChunkMessage(localPeer, receiver, fileMetadata, chunkIndex, chunkData, treeHash.getProof(chunkIndex));
                 
                 System.out.printf("[%s] %s.%d sent to %s successfully.\n", localIPAddress, fileMetadata, chunkIndex, receiver.getPeerNetworkInterfaces());
 
@@ -156,6 +547,29 @@ public class FileTransferManager {
         }
     }
 
+    // Only a small binary header is encoded, the payload is written from the off-heap chunk cache without a heap copy.
+    // When the cache has no buffer to spare it goes from the page cache to the socket with transferTo.
+    // Each chunk is a separate frame on the pooled connection, so other transfers to the same peer are interleaved.
+    private void sendChunksBinary(List<PeerNetworkInterface> route, InetAddress localIPAddress, Peer receiver, PeerFileMetadata fileMetadata, Set<Integer> chunkIndices, TreeHash treeHash) throws IOException {
+        try (FileChannel fileChannel = fileManager.openChunkChannel(fileMetadata)) {
+            for (int chunkIndex : chunkIndices) {
+                FileChunkMessage header = new FileChunkMessage(localPeer, receiver, fileMetadata, chunkIndex, null, treeHash.getProof(chunkIndex));
+
+                try (ChunkCache.Lease cachedChunk = fileManager.leaseChunk(fileMetadata, fileChannel, chunkIndex)) {
+                    if (cachedChunk != null) {
+                        sendRouted(route, socketChannel -> WireProtocol.writeChunk(socketChannel, header, cachedChunk.getData()));
+                    } else {
+                        int chunkLength = fileManager.getChunkLength(fileMetadata, fileChannel, chunkIndex);
+                        long chunkPosition = fileManager.getChunkPosition(fileMetadata, chunkIndex);
+                        sendRouted(route, socketChannel -> WireProtocol.writeChunk(socketChannel, header, fileChannel, chunkPosition, chunkLength));
+                    }
+                }
+
+                System.out.printf("[%s] %s.%d sent to %s successfully.\n", localIPAddress, fileMetadata, chunkIndex, receiver.getPeerNetworkInterfaces());
+            }
+        }
+    }
+
     public void requestChunks(Peer receiver, PeerFileMetadata fileMetadata, Set<Integer> chunkIndices) throws IOException {
         List<PeerNetworkInterface> route = localPeer.getRouteToPeer(receiver);
         if (route == null) {
@@ -168,14 +582,46 @@ public class FileTransferManager {
         PeerNetworkInterface localPeerNetworkInterface = NetworkUtils.subnetMatch(localPeer, targetIPAddress);
         InetAddress localIPAddress = localPeerNetworkInterface.getLocalIPAddress();
 
-        try (Socket outputSocket = new Socket(targetIPAddress, LISTENING_PORT);
-             ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputSocket.getOutputStream())) {
+        PeerFileMetadataRequestMessage metadataRequestMessage = new PeerFileMetadataRequestMessage(localPeer, receiver, fileMetadata, chunkIndices);
+        System.out.printf("[%s] File request sent to %s successfully.\n", localIPAddress, receiver.getPeerNetworkInterfaces());
 
-            PeerFileMetadataRequestMessage metadataRequestMessage = new PeerFileMetadataRequestMessage(localPeer, receiver, fileMetadata, chunkIndices);
-            System.out.printf("[%s] File request sent to %s successfully.\n", localIPAddress, receiver.getPeerNetworkInterfaces());
+        if (BINARY_PROTOCOL) {
+            sendRouted(route, socketChannel -> WireProtocol.writeRequest(socketChannel, metadataRequestMessage));
+            return;
+        }
 
+        try (Socket outputSocket = new Socket(targetIPAddress, LISTENING_PORT);
+             ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputSocket.getOutputStream())) {
             objectOutputStream.writeObject(metadataRequestMessage);
             objectOutputStream.flush();
         }
     }
+
+    private interface Send {
+        void run() throws IOException, NoSuchAlgorithmException;
+    }
+
+    public interface CatalogListener {
+        void onCatalogUpdated(Peer peer);
+    }
+
+    public interface FileQueryListener {
+        void onFileQueryAnswered(Peer peer, PeerFileMetadata fileMetadata, boolean found);
+    }
+
+    public interface DownloadListener {
+        void onChunkReceived(PeerFileMetadata fileMetadata, int chunkIndex, Peer sender);
+        void onChunkRejected(PeerFileMetadata fileMetadata, int chunkIndex, Peer sender);
+    }
+
+    private static class ExpectedFile {
+
+        private final PeerFileMetadata fileMetadata;
+        private final DownloadListener listener;
+
+        private ExpectedFile(PeerFileMetadata fileMetadata, DownloadListener listener) {
+            this.fileMetadata = fileMetadata;
+            this.listener = listener;
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Credits of one download towards one source: the downloader only requests as many chunks as the window allows,
+// so the uploader never has more than a window of chunks to send. The window grows by slow start and then by one
+// chunk per round trip (AIMD), stops growing while the round trip time shows a queue building up, and is halved
+// when a chunk times out or is rejected. The fastest round trip is forgotten after a while, so a source whose path
+// got slower for good is not seen as queueing forever. The timeout follows the measured round trip time like TCP's RTO.
+public class RequestWindow {
+
+    private static final int INITIAL_WINDOW = 2;
+    private static final int MIN_WINDOW = 1;
+    private static final int MAX_WINDOW = Integer.getInteger("p2p.transfer.maxWindow", 64);
+    private static final long INITIAL_TIMEOUT = 5000;
+    private static final long MIN_TIMEOUT = 1000;
+    private static final long MAX_TIMEOUT = 60000;
+    private static final double QUEUEING_FACTOR = 2.0;
+    private static final long MIN_RTT_WINDOW = Long.getLong("p2p.transfer.minRttWindow", 10000);
+
+    private final Map<Integer, Long> inFlight;
+    private double window;
+    private double slowStartThreshold;
+    private double smoothedRtt;
+    private double latestRtt;
+    private double rttVariance;
+    private double minRtt;
+    private long minRttTime;
+    private long lastDecreaseTime;
+
+    public RequestWindow() {
+        this.inFlight = new LinkedHashMap<>();
+        this.window = INITIAL_WINDOW;
+        this.slowStartThreshold = MAX_WINDOW;
+        this.smoothedRtt = -1;
+        this.latestRtt = -1;
+        this.rttVariance = 0;
+        this.minRtt = Double.MAX_VALUE;
+        this.minRttTime = 0;
+        this.lastDecreaseTime = 0;
+    }
+
+    // Number of chunks that may be requested now
+    public synchronized int getCredits() {
+        return Math.max(0, (int) window - inFlight.size());
+    }
+
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized boolean isInFlight(int chunkIndex) {
+        return inFlight.containsKey(chunkIndex);
+    }
+
+    // Smoothed round trip time in milliseconds, -1 before the first chunk arrived
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    // Round trip time of the last chunk that arrived, -1 before the first one
+    public synchronized double getLatestRtt() {
+        return latestRtt;
+    }
+
+    // Fastest round trip time seen in the last minimum RTT window, -1 before the first chunk arrived
+    public synchronized double getMinRtt() {
+        return (minRtt == Double.MAX_VALUE) ? -1 : minRtt;
+    }
+
+    // Request time of the chunk waited for the longest, -1 if none is in flight
+    public synchronized long getOldestRequestTime() {
+        return inFlight.isEmpty() ? -1 : inFlight.values().iterator().next();
+    }
+
+    public synchronized long getTimeout() {
+        if (smoothedRtt < 0) {
+            return INITIAL_TIMEOUT;
+        }
+        long timeout = (long) (smoothedRtt + 4 * rttVariance);
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    public synchronized void onRequested(int chunkIndex, long now) {
+        inFlight.put(chunkIndex, now);
+    }
+
+    // Returns false for chunks that were not in flight, e.g. ones that arrived after timing out
+    public synchronized boolean onReceived(int chunkIndex, long now) {
+        Long requestTime = inFlight.remove(chunkIndex);
+        if (requestTime == null) {
+            return false;
+        }
+
+        double rtt = Math.max(1, now - requestTime);
+        latestRtt = rtt;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+        if (rtt <= minRtt || now - minRttTime >= MIN_RTT_WINDOW) {
+            // An old minimum starts over from the latest sample, lower ones follow within the next window
+            minRtt = rtt;
+            minRttTime = now;
+        }
+
+        boolean queueing = smoothedRtt >= minRtt * QUEUEING_FACTOR;
+        if (window < slowStartThreshold && queueing) {
+            // Leave slow start before a slow source has a large queue of requested chunks
+            slowStartThreshold = window;
+        }
+        if (window < slowStartThreshold) {
+            window += 1;
+        } else if (!queueing) {
+            // A growing round trip time means the path is already full, more credits would only queue up
+            window += 1 / window;
+        }
+        window = Math.min(window, MAX_WINDOW);
+        return true;
+    }
+
+    // A chunk that will not arrive from this source, e.g. because it failed verification
+    public synchronized void onLost(int chunkIndex, long now) {
+        if (inFlight.remove(chunkIndex) != null) {
+            decrease(now);
+        }
+    }
+
+    // A request that is no longer waited for because the chunk arrived from another source; not a congestion signal
+    public synchronized void cancel(int chunkIndex) {
+        inFlight.remove(chunkIndex);
+    }
+
+    // Chunks in flight for longer than the timeout; they are no longer counted against the window
+    public synchronized List<Integer> expire(long now) {
+        List<Integer> expired = new ArrayList<>();
+        long timeout = getTimeout();
+        Iterator<Map.Entry<Integer, Long>> iterator = inFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Long> entry = iterator.next();
+            if (now - entry.getValue() >= timeout) {
+                expired.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+        if (!expired.isEmpty()) {
+            decrease(now);
+        }
+        return expired;
+    }
+
+    // Halve at most once per round trip, losses of one window are one congestion event
+    private void decrease(long now) {
+        double roundTrip = (smoothedRtt < 0) ? INITIAL_TIMEOUT : smoothedRtt;
+        if (now - lastDecreaseTime < roundTrip) {
+            return;
+        }
+        lastDecreaseTime = now;
+        slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+        window = slowStartThreshold;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.fevzibabaoglu.App;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.PeerNetworkInterface;
+
+// Ranks the peers a file can be downloaded from by the throughput and round trip time they delivered chunks with,
+// both as exponentially weighted moving averages, and by the length of the route to them: every relay hop uses the
+// bandwidth of another peer and adds a link that may be congested. Kept across downloads, so that a download starts
+// from what the earlier ones measured. Peers not measured yet are ranked as the best measured one, to be tried out,
+// until they keep a request waiting for longer than the best one takes per chunk.
+public class SourceRanking implements ChunkScheduler.Ranking<Peer> {
+
+    private static final double SMOOTHING = 0.125;
+    private static final double HOP_PENALTY = Double.parseDouble(System.getProperty("p2p.transfer.hopPenalty", "0.5"));
+    private static final int UNREACHABLE_HOPS = 16;
+
+    private final App app;
+    private final Map<Peer, Stats> stats;
+
+    public SourceRanking(App app) {
+        this.app = app;
+        this.stats = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public double getScore(Peer peer) {
+        Stats peerStats = stats.get(peer);
+        double throughput = (peerStats != null && peerStats.throughput > 0) ? peerStats.throughput : getBestThroughput();
+        return throughput / (1 + HOP_PENALTY * (getHopCount(peer) - 1));
+    }
+
+    // Bytes per second, -1 if nothing was received from the peer yet
+    public double getThroughput(Peer peer) {
+        Stats peerStats = stats.get(peer);
+        return (peerStats == null || peerStats.samples == 0) ? -1 : peerStats.throughput;
+    }
+
+    // Milliseconds, -1 if nothing was received from the peer yet
+    public double getRtt(Peer peer) {
+        Stats peerStats = stats.get(peer);
+        return (peerStats == null) ? -1 : peerStats.rtt;
+    }
+
+    public int getHopCount(Peer peer) {
+        Peer localPeer = app.getLocalPeer();
+        if (localPeer == null) {
+            return 1;
+        }
+        try {
+            List<PeerNetworkInterface> route = localPeer.getRouteToPeer(peer);
+            return (route == null) ? UNREACHABLE_HOPS : Math.max(1, route.size());
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+
+    // The throughput sample spans the time since the previous chunk from the peer, or since the request
+    // if the peer had nothing to send before it
+    public void onChunkReceived(Peer peer, int bytes, double rtt, long now) {
+        Stats peerStats = stats.computeIfAbsent(peer, k -> new Stats());
+        synchronized (peerStats) {
+            long requestTime = now - (long) rtt;
+            long interval = Math.max(1, now - Math.max(peerStats.lastArrivalTime, requestTime));
+            double throughput = bytes * 1000.0 / interval;
+
+            boolean first = peerStats.samples++ == 0;
+            peerStats.throughput = first ? throughput : (1 - SMOOTHING) * peerStats.throughput + SMOOTHING * throughput;
+            peerStats.rtt = first ? rtt : (1 - SMOOTHING) * peerStats.rtt + SMOOTHING * rtt;
+            peerStats.lastArrivalTime = now;
+        }
+    }
+
+    // Called periodically while chunks are requested from the peer, with the time of the oldest request still waited for:
+    // a peer that stopped delivering loses rank before its requests time out
+    public void refresh(Peer peer, int chunkBytes, long oldestRequestTime, long now) {
+        if (oldestRequestTime < 0) {
+            return;
+        }
+        Stats peerStats = stats.computeIfAbsent(peer, k -> new Stats());
+        synchronized (peerStats) {
+            long silence = now - Math.max(peerStats.lastArrivalTime, oldestRequestTime);
+            double throughput = chunkBytes * 1000.0 / Math.max(1, silence);
+            if (peerStats.samples == 0) {
+                // Replaced by the first measurement
+                if (throughput < getBestThroughput()) {
+                    peerStats.throughput = throughput;
+                }
+            } else if (throughput < peerStats.throughput) {
+                peerStats.throughput = (1 - SMOOTHING) * peerStats.throughput + SMOOTHING * throughput;
+            }
+        }
+    }
+
+    private double getBestThroughput() {
+        double best = -1;
+        for (Stats peerStats : stats.values()) {
+            if (peerStats.samples > 0) {
+                best = Math.max(best, peerStats.throughput);
+            }
+        }
+        return (best > 0) ? best : 1;
+    }
+
+    private static class Stats {
+
+        private volatile double throughput = -1;
+        private volatile double rtt = -1;
+        private volatile int samples = 0;
+        private long lastArrivalTime = 0;
+    }
+}
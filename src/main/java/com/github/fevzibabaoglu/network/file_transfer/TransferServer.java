@@ -0,0 +1,393 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import com.github.fevzibabaoglu.TaskScope;
+import com.github.fevzibabaoglu.file.ChunkSizePolicy;
+
+// Event-driven listener for file transfer connections.
+// One selector thread accepts connections and reads frames without blocking; complete frames are handled on a bounded worker pool.
+// When a connection has MAX_IN_FLIGHT_FRAMES frames being handled, or the pool queue is full, reading from it pauses,
+// so TCP flow control pushes back on the sender. Beyond MAX_CONNECTIONS no more connections are accepted until one closes.
+// Frames over MAX_FRAME_SIZE close the connection before anything is allocated for them. Frames larger than the read buffer
+// hold their size against MAX_BUFFERED_BYTES from the moment their buffer grows until they are handled; while the server
+// holds more than that, reading from the connections waiting on a large frame pauses as well.
+public class TransferServer {
+
+    // Virtual threads make blocking handlers cheap, so far more of them may run at once
+    private static final int WORKER_THREADS = Integer.getInteger("p2p.transfer.workers", TaskScope.isVirtualThreads() ? 256 : Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int WORKER_QUEUE_CAPACITY = Integer.getInteger("p2p.transfer.workerQueue", 64);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("p2p.transfer.maxConnections", 256);
+    private static final int MAX_IN_FLIGHT_FRAMES = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME_SIZE = Integer.getInteger("p2p.transfer.maxFrameSize", ChunkSizePolicy.MAX_CHUNK_SIZE + 1024 * 1024);
+    private static final long MAX_BUFFERED_BYTES = Long.getLong("p2p.transfer.maxBufferedBytes", 64L * 1024 * 1024);
+    private static final int SELECT_TIMEOUT = 1000;
+    private static final int STALLED_SELECT_TIMEOUT = 50;
+
+    private final int port;
+    private final Handler handler;
+    private final Queue<Connection> resumableConnections;
+    private final AtomicLong bufferedBytes;
+
+    private Selector selector;
+    private SelectionKey serverKey;
+    private ThreadPoolExecutor workers;
+    private int connectionCount;
+
+    public TransferServer(int port, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.resumableConnections = new ConcurrentLinkedQueue<>();
+        this.bufferedBytes = new AtomicLong();
+    }
+
+    // Bytes held by frames larger than the read buffer, being buffered or handled
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    // Serve on the calling thread until running returns false
+    public void run(BooleanSupplier running) throws IOException {
+        workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY), TaskScope.newThreadFactory("transfer-worker"));
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = Selector.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            List<Connection> stalledConnections = new ArrayList<>();
+            List<Connection> legacyConnections = new ArrayList<>();
+            while (running.getAsBoolean()) {
+                selector.select(stalledConnections.isEmpty() ? SELECT_TIMEOUT : STALLED_SELECT_TIMEOUT);
+
+                // Connections paused by back-pressure get another chance once workers have made progress
+                List<Connection> retryConnections = new ArrayList<>(stalledConnections);
+                stalledConnections.clear();
+                for (Connection connection; (connection = resumableConnections.poll()) != null; ) {
+                    retryConnections.add(connection);
+                }
+                for (Connection connection : retryConnections) {
+                    processFrames(connection, stalledConnections, legacyConnections);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else if (key.isReadable()) {
+                            read((Connection) key.attachment(), stalledConnections, legacyConnections);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        if (key.attachment() != null) {
+                            close((Connection) key.attachment());
+                        }
+                    }
+                }
+
+                if (!legacyConnections.isEmpty()) {
+                    handOffLegacyConnections(legacyConnections);
+                }
+            }
+        } finally {
+            // Let frames being handled finish, interrupting them would close the channels of partial files
+            workers.shutdown();
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).closeChannel();
+                    }
+                }
+                selector.close();
+                selector = null;
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        // Senders keep connections open, keep-alive notices peers that vanished without closing them
+        channel.socket().setKeepAlive(true);
+        channel.configureBlocking(false);
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connectionCount++;
+        if (connectionCount >= MAX_CONNECTIONS) {
+            serverKey.interestOps(0);
+        }
+    }
+
+    private void read(Connection connection, List<Connection> stalledConnections, List<Connection> legacyConnections) throws IOException {
+        int bytesRead = connection.channel.read(connection.buffer);
+        if (bytesRead < 0) {
+            close(connection);
+            return;
+        }
+        processFrames(connection, stalledConnections, legacyConnections);
+    }
+
+    // Dispatch every complete frame in the buffer, then read more only if the connection is not held back
+    private void processFrames(Connection connection, List<Connection> stalledConnections, List<Connection> legacyConnections) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+
+        ByteBuffer buffer = connection.buffer;
+        buffer.flip();
+        boolean stalled = false;
+        try {
+            if (!connection.preambleRead) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                if (!WireProtocol.isBinaryConnection(buffer.get(buffer.position()))) {
+                    legacyConnections.add(connection);
+                    return;
+                }
+                if (!WireProtocol.readPreamble(buffer)) {
+                    return;
+                }
+                connection.preambleRead = true;
+            }
+
+            while (connection.inFlightFrames.get() < MAX_IN_FLIGHT_FRAMES) {
+                int frameLength = WireProtocol.bufferedFrameLength(buffer);
+                if (frameLength > MAX_FRAME_SIZE) {
+                    throw new IOException("Frame over " + MAX_FRAME_SIZE + " bytes: " + frameLength);
+                }
+                if (buffer.remaining() < frameLength) {
+                    if (!reserve(connection, frameLength)) {
+                        stalled = true;
+                        stalledConnections.add(connection);
+                    }
+                    break;
+                }
+
+                byte[] frame;
+                boolean handedOver = buffer != connection.readBuffer && buffer.position() == 0 && frameLength == buffer.capacity();
+                if (handedOver) {
+                    // A buffer grown for this frame holds nothing else, it becomes the frame instead of being copied
+                    frame = buffer.array();
+                    buffer = connection.readBuffer.clear().flip();
+                    connection.buffer = buffer;
+                } else {
+                    frame = new byte[frameLength];
+                    buffer.get(frame);
+                }
+                if (!dispatch(connection, frame)) {
+                    if (handedOver) {
+                        buffer = ByteBuffer.wrap(frame);
+                        connection.buffer = buffer;
+                    } else {
+                        buffer.position(buffer.position() - frameLength);
+                    }
+                    stalled = true;
+                    stalledConnections.add(connection);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Framing errors leave the stream unusable
+            e.printStackTrace();
+            close(connection);
+            return;
+        } finally {
+            connection.buffer.compact();
+        }
+
+        boolean readable = !stalled && connection.inFlightFrames.get() < MAX_IN_FLIGHT_FRAMES;
+        if (readable) {
+            connection.shrink();
+        }
+        connection.key.interestOps(readable ? SelectionKey.OP_READ : 0);
+    }
+
+    // Grow the buffer (in read mode) so that a whole frame fits, false while the server holds too many bytes to grow it.
+    // A connection that is the only one holding bytes may always grow, so a single frame never waits for itself.
+    private boolean reserve(Connection connection, int frameLength) {
+        if (frameLength <= connection.buffer.capacity()) {
+            return true;
+        }
+        long growth = frameLength - connection.reservedBytes;
+        while (true) {
+            long held = bufferedBytes.get();
+            if (held + growth > MAX_BUFFERED_BYTES && held != connection.reservedBytes) {
+                return false;
+            }
+            if (bufferedBytes.compareAndSet(held, held + growth)) {
+                break;
+            }
+        }
+        connection.reservedBytes = frameLength;
+
+        ByteBuffer grown = ByteBuffer.allocate(frameLength);
+        grown.put(connection.buffer);
+        grown.flip();
+        connection.buffer = grown;
+        return true;
+    }
+
+    // False if the worker pool is saturated, the frame is then left for a later attempt.
+    // The bytes reserved for the frame move with it to the worker, which gives them back once it is handled.
+    private boolean dispatch(Connection connection, byte[] frame) {
+        long frameReservedBytes = connection.reservedBytes;
+        connection.reservedBytes = 0;
+        connection.inFlightFrames.incrementAndGet();
+        try {
+            workers.execute(() -> {
+                try {
+                    handler.handleFrame(frame, connection.remoteIPAddress);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    bufferedBytes.addAndGet(-frameReservedBytes);
+                    // Wake the selector if this connection was paused on its in-flight limit
+                    if (connection.inFlightFrames.getAndDecrement() == MAX_IN_FLIGHT_FRAMES) {
+                        resumableConnections.add(connection);
+                        Selector selector = this.selector;
+                        if (selector != null) {
+                            selector.wakeup();
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            connection.reservedBytes = frameReservedBytes;
+            connection.inFlightFrames.decrementAndGet();
+            return false;
+        }
+    }
+
+    // Serialized object streams cannot be framed without blocking; they come one connection per message,
+    // so each is handed to a worker as a blocking stream, or dropped while the pool is saturated
+    private void handOffLegacyConnections(List<Connection> legacyConnections) throws IOException {
+        for (Connection connection : legacyConnections) {
+            connection.key.cancel();
+        }
+        // Deregister the cancelled keys before switching the channels back to blocking mode
+        selector.selectNow();
+
+        for (Connection connection : legacyConnections) {
+            releaseConnectionSlot();
+            try {
+                connection.channel.configureBlocking(true);
+                ByteBuffer buffer = connection.buffer;
+                buffer.flip();
+                InputStream inputStream = new SequenceInputStream(
+                    new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()),
+                    connection.channel.socket().getInputStream()
+                );
+                workers.execute(() -> {
+                    try {
+                        handler.handleObjectStream(inputStream, connection.remoteIPAddress);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        connection.closeChannel();
+                    }
+                });
+            } catch (IOException | RejectedExecutionException e) {
+                System.out.printf("[%s] Serialized connection dropped, transfer workers are saturated.\n", connection.remoteIPAddress);
+                connection.closeChannel();
+            }
+        }
+        legacyConnections.clear();
+    }
+
+    private void close(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        connection.key.cancel();
+        connection.closeChannel();
+        bufferedBytes.addAndGet(-connection.reservedBytes);
+        connection.reservedBytes = 0;
+        releaseConnectionSlot();
+    }
+
+    private void releaseConnectionSlot() {
+        connectionCount--;
+        if (serverKey.isValid() && connectionCount < MAX_CONNECTIONS) {
+            serverKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    public interface Handler {
+        // A complete binary frame, starting with its frame type
+        void handleFrame(byte[] frame, InetAddress remoteIPAddress) throws Exception;
+
+        // A serialized object stream, read until it ends
+        void handleObjectStream(InputStream inputStream, InetAddress remoteIPAddress) throws Exception;
+    }
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final InetAddress remoteIPAddress;
+        private final AtomicInteger inFlightFrames;
+        // Reused whenever no large frame is being buffered, its bytes were moved to the grown buffer otherwise
+        private final ByteBuffer readBuffer;
+        private SelectionKey key;
+        private ByteBuffer buffer;
+        private boolean preambleRead;
+        // Held against MAX_BUFFERED_BYTES for the frame being buffered, selector thread only
+        private long reservedBytes;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteIPAddress = channel.socket().getInetAddress();
+            this.inFlightFrames = new AtomicInteger();
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.buffer = readBuffer;
+            this.preambleRead = false;
+            this.reservedBytes = 0;
+        }
+
+        // Give back a buffer grown for a large chunk once it is drained (in write mode)
+        private void shrink() {
+            if (buffer != readBuffer && buffer.position() == 0) {
+                buffer = readBuffer.clear();
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
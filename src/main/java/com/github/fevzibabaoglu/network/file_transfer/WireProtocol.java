@@ -0,0 +1,493 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+
+// Versioned binary framing for file transfer connections, replacing Java serialization of whole Peer graphs.
+// A connection starts with [MAGIC][VERSION], followed by frames of [type][body length][body].
+// Peers are referenced by their peer ID and files by their hashes; a chunk frame is followed by
+// [payload length][payload] so that the payload can be sent with transferTo and streamed to disk on arrival.
+// A frame may be preceded by a source route, [ROUTED][hop count][next hop][IPv4 address of each hop], listing the
+// in-interface of every peer on the path; relays forward to the next listed hop without consulting their own routes.
+// Catalog frames carry the file lists that discovery only advertises by version, file queries confirm a match of a peer's
+// advertised Bloom filter: [query flags][file reference], the flags telling a query from a positive or negative reply.
+public class WireProtocol {
+
+    public static final int MAGIC = 0x50324246;
+    public static final byte VERSION = 2;
+    public static final byte FRAME_REQUEST = 1;
+    public static final byte FRAME_CHUNK = 2;
+    public static final byte FRAME_ROUTED = 3;
+    public static final byte FRAME_CATALOG_REQUEST = 4;
+    public static final byte FRAME_CATALOG = 5;
+    public static final byte FRAME_FILE_QUERY = 6;
+    public static final int PREAMBLE_LENGTH = 5;
+    private static final int FRAME_HEADER_LENGTH = 5;
+    private static final byte QUERY_REPLY = 1;
+    private static final byte QUERY_FOUND = 2;
+    private static final int ROUTE_HEADER_LENGTH = 3;
+    private static final int MAX_ROUTE_HOPS = 64;
+    private static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private WireProtocol() {}
+
+    // Object streams start with 0xACED, binary connections with MAGIC
+    public static boolean isBinaryConnection(InputStream in) throws IOException {
+        in.mark(4);
+        DataInputStream dataInputStream = new DataInputStream(in);
+        try {
+            return dataInputStream.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    // Object streams start with 0xAC, so the first byte is enough to tell the formats apart
+    public static boolean isBinaryConnection(byte firstByte) {
+        return firstByte == (byte) (MAGIC >>> 24);
+    }
+
+    public static void writePreamble(WritableByteChannel channel) throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH).putInt(MAGIC).put(VERSION);
+        preamble.flip();
+        writeFully(channel, preamble);
+    }
+
+    public static void readPreamble(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary file transfer connection");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire protocol version: " + version);
+        }
+    }
+
+    // Non-blocking counterpart of readPreamble, false while the preamble is not fully buffered
+    public static boolean readPreamble(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < PREAMBLE_LENGTH) {
+            return false;
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary file transfer connection");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire protocol version: " + version);
+        }
+        return true;
+    }
+
+    public static void writeRequest(WritableByteChannel channel, PeerFileMetadataRequestMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(message.getSender().getPeerId());
+            out.writeLong(message.getReceiver().getPeerId());
+            writeFileReference(out, message.getFileMetadata(), true);
+            out.writeInt(message.getChunkIndices().size());
+            for (int chunkIndex : message.getChunkIndices()) {
+                out.writeInt(chunkIndex);
+            }
+        }
+        writeBodyFrame(channel, FRAME_REQUEST, bytes.toByteArray());
+    }
+
+    public static void writeCatalogRequest(WritableByteChannel channel, CatalogRequestMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(message.getSender().getPeerId());
+            out.writeLong(message.getReceiver().getPeerId());
+            out.writeLong(message.getCatalogEpoch());
+            out.writeLong(message.getSinceVersion());
+        }
+        writeBodyFrame(channel, FRAME_CATALOG_REQUEST, bytes.toByteArray());
+    }
+
+    public static void writeCatalog(WritableByteChannel channel, CatalogMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(message.getSender().getPeerId());
+            out.writeLong(message.getReceiver().getPeerId());
+            out.writeLong(message.getCatalogEpoch());
+            out.writeLong(message.getFromVersion());
+            out.writeLong(message.getToVersion());
+            writeFileReferences(out, message.getAdded());
+            writeFileReferences(out, message.getRemoved());
+        }
+        writeBodyFrame(channel, FRAME_CATALOG, bytes.toByteArray());
+    }
+
+    public static void writeFileQuery(WritableByteChannel channel, FileQueryMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(message.getSender().getPeerId());
+            out.writeLong(message.getReceiver().getPeerId());
+            out.writeByte((message.isReply() ? QUERY_REPLY : 0) | (message.isFound() ? QUERY_FOUND : 0));
+            writeFileReference(out, message.getFileMetadata(), true);
+        }
+        writeBodyFrame(channel, FRAME_FILE_QUERY, bytes.toByteArray());
+    }
+
+    // Any message but a chunk, whose payload is written separately
+    public static void writeMessage(WritableByteChannel channel, Message message) throws IOException {
+        if (message instanceof FileChunkMessage) {
+            writeChunk(channel, (FileChunkMessage) message);
+        } else if (message instanceof PeerFileMetadataRequestMessage) {
+            writeRequest(channel, (PeerFileMetadataRequestMessage) message);
+        } else if (message instanceof CatalogRequestMessage) {
+            writeCatalogRequest(channel, (CatalogRequestMessage) message);
+        } else if (message instanceof CatalogMessage) {
+            writeCatalog(channel, (CatalogMessage) message);
+        } else if (message instanceof FileQueryMessage) {
+            writeFileQuery(channel, (FileQueryMessage) message);
+        } else {
+            throw new IOException("No frame for " + message.getClass().getSimpleName());
+        }
+    }
+
+    // Write the header from memory and the chunk payload straight from the file (sendfile where supported)
+    public static void writeChunk(WritableByteChannel channel, FileChunkMessage header, FileChannel fileChannel, long position, int length) throws IOException {
+        writeFully(channel, chunkFrame(header, length));
+
+        long transferred = 0;
+        while (transferred < length) {
+            long count = fileChannel.transferTo(position + transferred, length - transferred, channel);
+            if (count <= 0 && position + transferred >= fileChannel.size()) {
+                throw new IOException("File shrank while sending a chunk");
+            }
+            transferred += count;
+        }
+    }
+
+    // Write a chunk whose payload is already in memory, e.g. when relaying it to the next peer
+    public static void writeChunk(WritableByteChannel channel, FileChunkMessage message) throws IOException {
+        writeChunk(channel, message, ByteBuffer.wrap(message.getChunkData()));
+    }
+
+    // Write the header and a payload buffer as it is, e.g. a chunk from the off-heap cache
+    public static void writeChunk(WritableByteChannel channel, FileChunkMessage header, ByteBuffer chunkData) throws IOException {
+        writeFully(channel, chunkFrame(header, chunkData.remaining()));
+        writeFully(channel, chunkData);
+    }
+
+    // Forward a complete frame unchanged, e.g. at a relay peer
+    public static void writeFrame(WritableByteChannel channel, byte[] frame) throws IOException {
+        writeFrame(channel, frame, 0, frame.length);
+    }
+
+    public static void writeFrame(WritableByteChannel channel, byte[] frame, int offset, int length) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(frame, offset, length));
+    }
+
+    // Receiver of a complete frame without decoding it; every frame body starts with the sender and receiver IDs
+    public static long peekReceiverId(byte[] frame) throws IOException {
+        return peekReceiverId(frame, 0);
+    }
+
+    public static long peekReceiverId(byte[] frame, int offset) throws IOException {
+        if (frame.length - offset < FRAME_HEADER_LENGTH + 16) {
+            throw new IOException("Frame too short: " + (frame.length - offset));
+        }
+        return ByteBuffer.wrap(frame).getLong(offset + FRAME_HEADER_LENGTH + 8);
+    }
+
+    // Source route for the frame written next; the connection goes to the first hop, so the next hop to forward to is 1
+    public static void writeRoute(WritableByteChannel channel, List<InetAddress> hops) throws IOException {
+        if (hops.isEmpty() || hops.size() > MAX_ROUTE_HOPS) {
+            throw new IOException("Invalid route length: " + hops.size());
+        }
+        ByteBuffer header = ByteBuffer.allocate(ROUTE_HEADER_LENGTH + 4 * hops.size());
+        header.put(FRAME_ROUTED).put((byte) hops.size()).put((byte) 1);
+        for (InetAddress hop : hops) {
+            byte[] address = hop.getAddress();
+            if (address.length != 4) {
+                throw new IOException("Not an IPv4 hop: " + hop);
+            }
+            header.put(address);
+        }
+        header.flip();
+        writeFully(channel, header);
+    }
+
+    // Length of the source route in front of a complete frame, where the routed frame itself starts
+    public static int getRouteLength(byte[] frame) {
+        return ROUTE_HEADER_LENGTH + 4 * getRouteHopCount(frame);
+    }
+
+    public static int getRouteHopCount(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    // Index of the hop to forward to, equal to the hop count once the frame reached the last listed hop
+    public static int getRouteNextHop(byte[] frame) {
+        return frame[2] & 0xFF;
+    }
+
+    public static InetAddress getRouteHop(byte[] frame, int hopIndex) throws IOException {
+        byte[] address = new byte[4];
+        System.arraycopy(frame, ROUTE_HEADER_LENGTH + 4 * hopIndex, address, 0, 4);
+        return InetAddress.getByAddress(address);
+    }
+
+    // Pop the next hop in place before forwarding the frame to it
+    public static void advanceRoute(byte[] frame) {
+        frame[2]++;
+    }
+
+    // Type of the next frame, EOFException once the connection is closed
+    public static byte readFrameType(DataInputStream in) throws IOException {
+        return in.readByte();
+    }
+
+    // Peers the resolver does not know are returned as null
+    public static PeerFileMetadataRequestMessage readRequest(DataInputStream in, Resolver resolver) throws IOException {
+        DataInputStream body = readBody(in);
+        Peer sender = resolver.resolvePeer(body.readLong());
+        Peer receiver = resolver.resolvePeer(body.readLong());
+        PeerFileMetadata fileMetadata = resolver.resolveFile(readFileReference(body));
+
+        int count = body.readInt();
+        if (count < 0 || count > MAX_BODY_SIZE / 4) {
+            throw new IOException("Invalid chunk count: " + count);
+        }
+        Set<Integer> chunkIndices = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            chunkIndices.add(body.readInt());
+        }
+        return new PeerFileMetadataRequestMessage(sender, receiver, fileMetadata, chunkIndices);
+    }
+
+    public static CatalogRequestMessage readCatalogRequest(DataInputStream in, Resolver resolver) throws IOException {
+        DataInputStream body = readBody(in);
+        Peer sender = resolver.resolvePeer(body.readLong());
+        Peer receiver = resolver.resolvePeer(body.readLong());
+        return new CatalogRequestMessage(sender, receiver, body.readLong(), body.readLong());
+    }
+
+    public static CatalogMessage readCatalog(DataInputStream in, Resolver resolver) throws IOException {
+        DataInputStream body = readBody(in);
+        Peer sender = resolver.resolvePeer(body.readLong());
+        Peer receiver = resolver.resolvePeer(body.readLong());
+        long catalogEpoch = body.readLong();
+        long fromVersion = body.readLong();
+        long toVersion = body.readLong();
+        Set<PeerFileMetadata> added = readFileReferences(body);
+        Set<PeerFileMetadata> removed = readFileReferences(body);
+        return new CatalogMessage(sender, receiver, catalogEpoch, fromVersion, toVersion, added, removed);
+    }
+
+    // The file is returned as described by the sender, not resolved against downloads
+    public static FileQueryMessage readFileQuery(DataInputStream in, Resolver resolver) throws IOException {
+        DataInputStream body = readBody(in);
+        Peer sender = resolver.resolvePeer(body.readLong());
+        Peer receiver = resolver.resolvePeer(body.readLong());
+        byte flags = body.readByte();
+        PeerFileMetadata fileMetadata = readFileReference(body);
+        return new FileQueryMessage(sender, receiver, fileMetadata, (flags & QUERY_REPLY) != 0, (flags & QUERY_FOUND) != 0);
+    }
+
+    // The chunk without its data, the payload follows with readPayloadLength and readPayload
+    public static FileChunkMessage readChunkHeader(DataInputStream in, Resolver resolver) throws IOException {
+        DataInputStream body = readBody(in);
+        Peer sender = resolver.resolvePeer(body.readLong());
+        Peer receiver = resolver.resolvePeer(body.readLong());
+        PeerFileMetadata fileMetadata = resolver.resolveFile(readFileReference(body));
+        int chunkIndex = body.readInt();
+
+        byte[][] proof = new byte[body.readUnsignedShort()][];
+        for (int i = 0; i < proof.length; i++) {
+            proof[i] = readBytes(body);
+        }
+        return new FileChunkMessage(sender, receiver, fileMetadata, chunkIndex, null, proof);
+    }
+
+    // For non-blocking readers: the number of bytes from the buffer position that must be buffered before going on.
+    // Returns more than buffer.remaining() while the frame is incomplete, and the length of the whole frame,
+    // including a chunk payload, once it is. The buffer position is not changed.
+    public static int bufferedFrameLength(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        if (buffer.hasRemaining() && buffer.get(start) == FRAME_ROUTED) {
+            return bufferedRoutedFrameLength(buffer);
+        }
+        if (buffer.remaining() < FRAME_HEADER_LENGTH) {
+            return FRAME_HEADER_LENGTH;
+        }
+
+        byte frameType = buffer.get(start);
+        int bodyLength = buffer.getInt(start + 1);
+        if (bodyLength <= 0 || bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("Invalid frame length: " + bodyLength);
+        }
+        if (frameType == FRAME_REQUEST || frameType == FRAME_CATALOG_REQUEST || frameType == FRAME_CATALOG || frameType == FRAME_FILE_QUERY) {
+            return FRAME_HEADER_LENGTH + bodyLength;
+        }
+        if (frameType != FRAME_CHUNK) {
+            throw new IOException("Unknown frame type: " + frameType);
+        }
+
+        int headerLength = FRAME_HEADER_LENGTH + bodyLength + 4;
+        if (buffer.remaining() < headerLength) {
+            return headerLength;
+        }
+        int payloadLength = buffer.getInt(start + headerLength - 4);
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid chunk payload length: " + payloadLength);
+        }
+        return headerLength + payloadLength;
+    }
+
+    private static int bufferedRoutedFrameLength(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < ROUTE_HEADER_LENGTH) {
+            return ROUTE_HEADER_LENGTH;
+        }
+        int hopCount = buffer.get(start + 1) & 0xFF;
+        int nextHop = buffer.get(start + 2) & 0xFF;
+        if (hopCount == 0 || hopCount > MAX_ROUTE_HOPS || nextHop > hopCount) {
+            throw new IOException("Invalid route: hop " + nextHop + " of " + hopCount);
+        }
+
+        int routeLength = ROUTE_HEADER_LENGTH + 4 * hopCount;
+        if (buffer.remaining() < routeLength + 1) {
+            return routeLength + 1;
+        }
+        ByteBuffer frame = buffer.duplicate().position(start + routeLength);
+        if (frame.get(frame.position()) == FRAME_ROUTED) {
+            throw new IOException("Nested source route");
+        }
+        return routeLength + bufferedFrameLength(frame);
+    }
+
+    public static int readPayloadLength(DataInputStream in) throws IOException {
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid chunk payload length: " + payloadLength);
+        }
+        return payloadLength;
+    }
+
+    public static byte[] readPayload(DataInputStream in, int payloadLength) throws IOException {
+        byte[] chunkData = new byte[payloadLength];
+        in.readFully(chunkData);
+        return chunkData;
+    }
+
+    private static byte[] encodeChunkHeader(FileChunkMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(message.getSender().getPeerId());
+            out.writeLong(message.getReceiver().getPeerId());
+            // The receiver knows the file it asked for, the name is not repeated in every chunk
+            writeFileReference(out, message.getFileMetadata(), false);
+            out.writeInt(message.getChunkIndex());
+
+            byte[][] proof = (message.getProof() != null) ? message.getProof() : new byte[0][];
+            out.writeShort(proof.length);
+            for (byte[] node : proof) {
+                writeBytes(out, node);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeFileReference(DataOutputStream out, PeerFileMetadata fileMetadata, boolean withFilename) throws IOException {
+        out.writeUTF(withFilename ? fileMetadata.getFilename() : "");
+        out.writeLong(fileMetadata.getFileSize());
+        out.writeInt(fileMetadata.getChunkSize());
+        writeBytes(out, fileMetadata.getHash());
+        writeBytes(out, fileMetadata.getRootHash());
+    }
+
+    private static void writeFileReferences(DataOutputStream out, Set<PeerFileMetadata> fileMetadatas) throws IOException {
+        out.writeInt(fileMetadatas.size());
+        for (PeerFileMetadata fileMetadata : fileMetadatas) {
+            writeFileReference(out, fileMetadata, true);
+        }
+    }
+
+    private static Set<PeerFileMetadata> readFileReferences(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_BODY_SIZE) {
+            throw new IOException("Invalid file count: " + count);
+        }
+        Set<PeerFileMetadata> fileMetadatas = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            fileMetadatas.add(readFileReference(in));
+        }
+        return fileMetadatas;
+    }
+
+    private static PeerFileMetadata readFileReference(DataInputStream in) throws IOException {
+        String filename = in.readUTF();
+        long fileSize = in.readLong();
+        int chunkSize = in.readInt();
+        byte[] hash = readBytes(in);
+        byte[] rootHash = readBytes(in);
+        return PeerFileMetadata.of(filename, fileSize, chunkSize, hash, rootHash);
+    }
+
+    // Everything of a chunk frame that precedes the payload
+    private static ByteBuffer chunkFrame(FileChunkMessage header, int payloadLength) throws IOException {
+        byte[] body = encodeChunkHeader(header);
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + body.length + 4);
+        frame.put(FRAME_CHUNK).putInt(body.length).put(body).putInt(payloadLength).flip();
+        return frame;
+    }
+
+    private static void writeBodyFrame(WritableByteChannel channel, byte frameType, byte[] body) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + body.length);
+        frame.put(frameType).putInt(body.length).put(body).flip();
+        writeFully(channel, frame);
+    }
+
+    private static DataInputStream readBody(DataInputStream in) throws IOException {
+        int bodyLength = in.readInt();
+        if (bodyLength <= 0 || bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("Invalid frame length: " + bodyLength);
+        }
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Maps wire references back to the local view of the network and of the files being downloaded
+    public interface Resolver {
+        Peer resolvePeer(long peerId);
+        PeerFileMetadata resolveFile(PeerFileMetadata fileReference);
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.github.fevzibabaoglu.network.file_transfer.ChunkScheduler;
+
+// Simulated download of one file from sources of very different bandwidths, in simulated time.
+// Compares the former static split (an equal share of the chunks per source) with the ChunkScheduler, once with all sources
+// ranked equal and once ranked by their measured delivery rate as SourceRanking does, against the ideal time of the file size
+// over the aggregate bandwidth. The last scenario adds a source that never answers.
+// Usage: ChunkSchedulerBenchmark [chunks] [latencyMillis]
+public class ChunkSchedulerBenchmark {
+
+    private static final long TICK_INTERVAL = 100;
+
+    public static void main(String[] args) {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+        double[][] scenarios = {
+            {100, 100, 100, 100},
+            {400, 100, 20, 5},
+            {1000, 50, 10, 2},
+            {400, 100, 20, 0},
+        };
+
+        System.out.printf("%-22s %-10s %-14s %-16s %-16s\n", "chunks/s per source", "ideal (s)", "static (s)", "unranked (s)", "ranked (s)");
+        for (double[] bandwidths : scenarios) {
+            double aggregate = 0;
+            for (double bandwidth : bandwidths) {
+                aggregate += bandwidth;
+            }
+            double staticSplit = simulateStaticSplit(chunks, bandwidths, latency);
+            long[] unranked = simulateScheduler(chunks, bandwidths, latency, false);
+            long[] ranked = simulateScheduler(chunks, bandwidths, latency, true);
+            System.out.printf("%-22s %-10.2f %-14s %-16s %-16s\n", format(bandwidths), chunks / aggregate,
+                Double.isInfinite(staticSplit) ? "never" : String.format("%.2f", staticSplit), format(unranked), format(ranked));
+        }
+    }
+
+    // Each source sends its share one chunk after another, the download ends with the slowest one
+    private static double simulateStaticSplit(int chunks, double[] bandwidths, long latency) {
+        double finish = 0;
+        for (int i = 0; i < bandwidths.length; i++) {
+            int share = chunks / bandwidths.length + (i < chunks % bandwidths.length ? 1 : 0);
+            if (bandwidths[i] == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            finish = Math.max(finish, (latency + share * 1000 / bandwidths[i]) / 1e3);
+        }
+        return finish;
+    }
+
+    // Returns the completion time in milliseconds and the number of chunks received more than once
+    private static long[] simulateScheduler(int chunks, double[] bandwidths, long latency, boolean ranked) {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            missing.add(i);
+        }
+        Collections.shuffle(missing, new Random(1));
+
+        SimulatedRanking ranking = new SimulatedRanking(bandwidths.length);
+        ChunkScheduler<Integer> scheduler = ranked ? new ChunkScheduler<>(missing, ranking) : new ChunkScheduler<>(missing);
+        double[] busyUntil = new double[bandwidths.length];
+        PriorityQueue<Arrival> arrivals = new PriorityQueue<>();
+        for (int source = 0; source < bandwidths.length; source++) {
+            scheduler.addSource(source);
+        }
+
+        long now = 0;
+        long nextTick = 0;
+        long duplicates = 0;
+        while (!scheduler.isComplete()) {
+            if (arrivals.isEmpty() || arrivals.peek().time >= nextTick) {
+                now = nextTick;
+                nextTick += TICK_INTERVAL;
+                scheduler.expire(now);
+                for (int source = 0; source < bandwidths.length; source++) {
+                    ranking.refresh(source, scheduler.getWindow(source).getOldestRequestTime(), now);
+                    request(scheduler, source, now, bandwidths, busyUntil, latency, arrivals);
+                }
+                continue;
+            }
+
+            Arrival arrival = arrivals.poll();
+            now = arrival.time;
+            if (!scheduler.onReceived(arrival.source, arrival.chunkIndex, now)) {
+                duplicates++;
+            }
+            ranking.onChunkReceived(arrival.source, scheduler.getWindow(arrival.source).getLatestRtt(), now);
+            request(scheduler, arrival.source, now, bandwidths, busyUntil, latency, arrivals);
+        }
+        return new long[] {now, duplicates};
+    }
+
+    // A source serves the requests in order at its bandwidth, a source with no bandwidth never answers
+    private static void request(ChunkScheduler<Integer> scheduler, int source, long now, double[] bandwidths, double[] busyUntil, long latency, PriorityQueue<Arrival> arrivals) {
+        for (int chunkIndex : scheduler.nextBatch(source, now)) {
+            if (bandwidths[source] == 0) {
+                continue;
+            }
+            busyUntil[source] = Math.max(busyUntil[source], now + latency / 2.0) + 1000 / bandwidths[source];
+            arrivals.add(new Arrival((long) Math.ceil(busyUntil[source] + latency / 2.0), source, chunkIndex));
+        }
+    }
+
+    private static String format(long[] result) {
+        return String.format("%.2f (%d dup)", result[0] / 1e3, result[1]);
+    }
+
+    private static String format(double[] bandwidths) {
+        StringBuilder builder = new StringBuilder();
+        for (double bandwidth : bandwidths) {
+            builder.append(builder.length() == 0 ? "" : "/").append((int) bandwidth);
+        }
+        return builder.toString();
+    }
+
+    // SourceRanking in chunks per second and without routes: all sources are direct neighbours
+    private static class SimulatedRanking implements ChunkScheduler.Ranking<Integer> {
+
+        private static final double SMOOTHING = 0.125;
+
+        private final double[] throughputs;
+        private final int[] samples;
+        private final long[] lastArrivalTimes;
+
+        private SimulatedRanking(int sources) {
+            this.throughputs = new double[sources];
+            this.samples = new int[sources];
+            this.lastArrivalTimes = new long[sources];
+        }
+
+        @Override
+        public double getScore(Integer source) {
+            return (throughputs[source] > 0) ? throughputs[source] : getBestThroughput();
+        }
+
+        private void onChunkReceived(int source, double rtt, long now) {
+            long interval = Math.max(1, now - Math.max(lastArrivalTimes[source], now - (long) rtt));
+            double throughput = 1000.0 / interval;
+            throughputs[source] = (samples[source]++ == 0) ? throughput : (1 - SMOOTHING) * throughputs[source] + SMOOTHING * throughput;
+            lastArrivalTimes[source] = now;
+        }
+
+        private void refresh(int source, long oldestRequestTime, long now) {
+            if (oldestRequestTime < 0) {
+                return;
+            }
+            double throughput = 1000.0 / Math.max(1, now - Math.max(lastArrivalTimes[source], oldestRequestTime));
+            if (samples[source] == 0) {
+                if (throughput < getBestThroughput()) {
+                    throughputs[source] = throughput;
+                }
+            } else if (throughput < throughputs[source]) {
+                throughputs[source] = (1 - SMOOTHING) * throughputs[source] + SMOOTHING * throughput;
+            }
+        }
+
+        private double getBestThroughput() {
+            double best = -1;
+            for (int source = 0; source < throughputs.length; source++) {
+                if (samples[source] > 0) {
+                    best = Math.max(best, throughputs[source]);
+                }
+            }
+            return (best > 0) ? best : 1;
+        }
+    }
+
+    private static class Arrival implements Comparable<Arrival> {
+
+        private final long time;
+        private final int source;
+        private final int chunkIndex;
+
+        private Arrival(long time, int source, int chunkIndex) {
+            this.time = time;
+            this.source = source;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public int compareTo(Arrival other) {
+            return Long.compare(time, other.time);
+        }
+    }
+}
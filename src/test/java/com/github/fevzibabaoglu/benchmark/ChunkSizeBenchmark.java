@@ -0,0 +1,138 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+import com.github.fevzibabaoglu.file.ChunkSizePolicy;
+import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
+import com.github.fevzibabaoglu.network.file_transfer.WireProtocol;
+
+// Sends files of several sizes over loopback with several chunk sizes, to justify ChunkSizePolicy.
+// For every combination it reports the number of chunks (messages), the header and proof overhead,
+// the time to build the tree and the transfer throughput. The row the policy picks is marked with *.
+// Usage: ChunkSizeBenchmark [fileSize...]
+public class ChunkSizeBenchmark {
+
+    private static final int[] CHUNK_SIZES = {64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 8 * 1024 * 1024};
+
+    // Sender and receiver of every chunk, as in a real transfer
+    private static Peer localPeer;
+
+    public static void main(String[] args) throws Exception {
+        localPeer = new Peer();
+        long[] fileSizes = {16 * 1024, 1024 * 1024, 64L * 1024 * 1024, 512L * 1024 * 1024};
+        if (args.length > 0) {
+            fileSizes = new long[args.length];
+            for (int i = 0; i < args.length; i++) {
+                fileSizes[i] = Long.parseLong(args[i]);
+            }
+        }
+
+        Path dataDir = Files.createTempDirectory("chunk-size-benchmark");
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            FileManager fileManager = new FileManager(dataDir.toString(), dataDir.toString(), ChunkSizePolicy.MIN_CHUNK_SIZE, dataDir.resolve("index").resolve("hash-index"));
+            startDrain(serverSocket);
+
+            System.out.printf("%-12s %-11s %-8s %-16s %-10s %-10s\n", "file size", "chunk size", "chunks", "overhead (KB)", "tree (ms)", "MB/s");
+            for (long fileSize : fileSizes) {
+                String filename = "file-" + fileSize;
+                fileManager.createRandomFile(filename, (int) fileSize, 1);
+                Path path = dataDir.resolve(filename);
+                PeerFileMetadata fileMetadata = new PeerFileMetadata(path);
+
+                for (int chunkSize : CHUNK_SIZES) {
+                    // Warm up once, then measure
+                    run(serverSocket, path, fileMetadata, fileSize, chunkSize);
+                    Result result = run(serverSocket, path, fileMetadata, fileSize, chunkSize);
+                    System.out.printf("%-12s %-11s %-8d %-16.1f %-10.1f %-10.1f%s\n",
+                        size(fileSize),
+                        size(chunkSize),
+                        result.chunkCount,
+                        result.overheadBytes / 1024.0,
+                        result.treeNanos / 1e6,
+                        fileSize / (1024.0 * 1024.0) / (result.transferNanos / 1e9),
+                        (chunkSize == ChunkSizePolicy.chooseChunkSize(fileSize)) ? " *" : "");
+                }
+                Files.delete(path);
+            }
+        } finally {
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static Result run(ServerSocket serverSocket, Path path, PeerFileMetadata fileMetadata, long fileSize, int chunkSize) throws Exception {
+        long start = System.nanoTime();
+        TreeHash treeHash = TreeHash.compute(path, chunkSize, ForkJoinPool.commonPool(), null);
+        long treeNanos = System.nanoTime() - start;
+
+        int chunkCount = treeHash.getBlockCount();
+        long overheadBytes = 0;
+        start = System.nanoTime();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+             FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WireProtocol.writePreamble(socketChannel);
+            for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                FileChunkMessage header = new FileChunkMessage(localPeer, localPeer, fileMetadata, chunkIndex, null, treeHash.getProof(chunkIndex));
+                overheadBytes += header.serialize().length + 8;
+                long position = (long) chunkIndex * chunkSize;
+                WireProtocol.writeChunk(socketChannel, header, fileChannel, position, (int) Math.min(chunkSize, fileSize - position));
+            }
+        }
+        return new Result(chunkCount, overheadBytes, treeNanos, System.nanoTime() - start);
+    }
+
+    private static String size(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return (bytes / (1024 * 1024)) + " MB";
+        }
+        return (bytes / 1024) + " KB";
+    }
+
+    private static void startDrain(ServerSocket serverSocket) {
+        Thread drainThread = new Thread(() -> {
+            byte[] buffer = new byte[256 * 1024];
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept(); InputStream in = socket.getInputStream()) {
+                    while (in.read(buffer) >= 0) {}
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    private static class Result {
+
+        private final int chunkCount;
+        private final long overheadBytes;
+        private final long treeNanos;
+        private final long transferNanos;
+
+        private Result(int chunkCount, long overheadBytes, long treeNanos, long transferNanos) {
+            this.chunkCount = chunkCount;
+            this.overheadBytes = overheadBytes;
+            this.treeNanos = treeNanos;
+            this.transferNanos = transferNanos;
+        }
+    }
+}
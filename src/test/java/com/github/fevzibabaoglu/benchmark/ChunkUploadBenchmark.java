@@ -0,0 +1,123 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.github.fevzibabaoglu.App;
+import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
+import com.github.fevzibabaoglu.network.file_transfer.WireProtocol;
+
+// Compares uploading chunks through the heap with ObjectOutputStream against the raw transferTo data plane.
+// Both send the same file over loopback to a receiver that only drains the socket.
+// Usage: ChunkUploadBenchmark [fileSize] [rounds]
+public class ChunkUploadBenchmark {
+
+    // Sender and receiver of every chunk, as in a real transfer
+    private static Peer localPeer;
+
+    public static void main(String[] args) throws Exception {
+        localPeer = new Peer();
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : 512 * 1024 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path dataDir = Files.createTempDirectory("chunk-upload-benchmark");
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            FileManager fileManager = new FileManager(dataDir.toString(), dataDir.toString(), App.CHUNK_SIZE, dataDir.resolve("index").resolve("hash-index"));
+            fileManager.createRandomFile("upload", fileSize, 1);
+            PeerFileMetadata fileMetadata = new PeerFileMetadata(dataDir.resolve("upload"));
+            int chunkCount = TreeHash.blockCount(fileSize, fileMetadata.getChunkSize());
+
+            startDrain(serverSocket);
+
+            // Warm up the JIT and the page cache
+            sendObjects(serverSocket, fileManager, fileMetadata, chunkCount);
+            sendRaw(serverSocket, fileManager, fileMetadata, chunkCount);
+
+            System.out.printf("%-14s %-12s %-22s\n", "mode", "MB/s", "sender CPU (ms/GB)");
+            for (int round = 0; round < rounds; round++) {
+                report("object stream", fileSize, measure(() -> sendObjects(serverSocket, fileManager, fileMetadata, chunkCount)));
+                report("transferTo", fileSize, measure(() -> sendRaw(serverSocket, fileManager, fileMetadata, chunkCount)));
+            }
+        } finally {
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void sendObjects(ServerSocket serverSocket, FileManager fileManager, PeerFileMetadata fileMetadata, int chunkCount) throws IOException {
+        try (Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+             ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream())) {
+            for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                byte[] chunkData = fileManager.loadChunk(fileMetadata, chunkIndex);
+                objectOutputStream.writeObject(new FileChunkMessage(localPeer, localPeer, fileMetadata, chunkIndex, chunkData));
+                objectOutputStream.flush();
+                objectOutputStream.reset();
+            }
+        }
+    }
+
+    private static void sendRaw(ServerSocket serverSocket, FileManager fileManager, PeerFileMetadata fileMetadata, int chunkCount) throws IOException {
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+             FileChannel fileChannel = fileManager.openChunkChannel(fileMetadata)) {
+            WireProtocol.writePreamble(socketChannel);
+            for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                FileChunkMessage header = new FileChunkMessage(localPeer, localPeer, fileMetadata, chunkIndex, null);
+                WireProtocol.writeChunk(socketChannel, header, fileChannel, fileManager.getChunkPosition(fileMetadata, chunkIndex), fileManager.getChunkLength(fileMetadata, fileChannel, chunkIndex));
+            }
+        }
+    }
+
+    // Returns {wall time in ns, sender CPU time in ns}
+    private static long[] measure(Upload upload) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long startCpu = threadMXBean.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        upload.run();
+        return new long[] {System.nanoTime() - start, threadMXBean.getCurrentThreadCpuTime() - startCpu};
+    }
+
+    private static void report(String mode, long fileSize, long[] times) {
+        double gigabytes = (double) fileSize / (1024 * 1024 * 1024);
+        System.out.printf("%-14s %-12.1f %-22.1f\n",
+            mode,
+            fileSize / (1024.0 * 1024.0) / (times[0] / 1e9),
+            times[1] / 1e6 / gigabytes);
+    }
+
+    private static void startDrain(ServerSocket serverSocket) {
+        Thread drainThread = new Thread(() -> {
+            byte[] buffer = new byte[256 * 1024];
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept(); InputStream in = socket.getInputStream()) {
+                    while (in.read(buffer) >= 0) {}
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    private interface Upload {
+        void run() throws IOException;
+    }
+}
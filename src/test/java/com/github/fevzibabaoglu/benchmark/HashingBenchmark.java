@@ -0,0 +1,100 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.github.fevzibabaoglu.file.HashingEngine;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.file.TreeHash;
+
+// Measures how the share hashing engine scales with the number of threads.
+// Usage: HashingBenchmark [smallFileCount] [smallFileSize] [hugeFileCount] [hugeFileSize]
+public class HashingBenchmark {
+
+    private static final int IO_PERMITS_PER_DEVICE = 8;
+
+    public static void main(String[] args) throws Exception {
+        int smallFileCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int smallFileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4 * 1024;
+        int hugeFileCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int hugeFileSize = args.length > 3 ? Integer.parseInt(args[3]) : 256 * 1024 * 1024;
+
+        Path dataDir = Files.createTempDirectory("hashing-benchmark");
+        try {
+            List<Path> smallFiles = createFiles(dataDir.resolve("small"), smallFileCount, smallFileSize);
+            List<Path> hugeFiles = createFiles(dataDir.resolve("huge"), hugeFileCount, hugeFileSize);
+
+            // Warm up the JIT and the page cache so every run reads from memory
+            run(smallFiles, Runtime.getRuntime().availableProcessors());
+            run(hugeFiles, Runtime.getRuntime().availableProcessors());
+
+            System.out.printf("%-8s %-22s %-22s\n", "threads", "small files (files/s)", "huge files (MB/s)");
+            for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+                double smallSeconds = run(smallFiles, threads);
+                double hugeSeconds = run(hugeFiles, threads);
+                System.out.printf("%-8d %-22.0f %-22.1f\n",
+                    threads,
+                    smallFileCount / smallSeconds,
+                    (double) hugeFileCount * hugeFileSize / (1024 * 1024) / hugeSeconds);
+            }
+        } finally {
+            deleteRecursively(dataDir);
+        }
+    }
+
+    private static double run(List<Path> files, int threads) throws IOException, InterruptedException {
+        HashingEngine engine = new HashingEngine(threads, IO_PERMITS_PER_DEVICE);
+        HashingEngine.Batch batch = engine.newBatch();
+        HashingEngine.HashCallback callback = new HashingEngine.HashCallback() {
+            @Override
+            public void onHashed(Path path, BasicFileAttributes attributes, PeerFileMetadata fileMetadata, TreeHash treeHash) {}
+
+            @Override
+            public void onFailed(Path path, Exception e) {
+                e.printStackTrace();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (Path path : files) {
+            batch.submit(path, Files.readAttributes(path, BasicFileAttributes.class), callback);
+        }
+        batch.await();
+        long elapsed = System.nanoTime() - start;
+
+        engine.shutdown();
+        return elapsed / 1e9;
+    }
+
+    private static List<Path> createFiles(Path directory, int count, int size) throws IOException {
+        Files.createDirectories(directory);
+        Random random = new Random(42);
+        byte[] buffer = new byte[Math.min(size, 1024 * 1024)];
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            Path path = directory.resolve("file-" + i);
+            try (var out = Files.newOutputStream(path)) {
+                for (int written = 0; written < size; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, Math.min(buffer.length, size - written));
+                }
+            }
+            files.add(path);
+        }
+        return files;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.file_transfer.ConnectionManager;
+import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
+import com.github.fevzibabaoglu.network.file_transfer.TransferServer;
+import com.github.fevzibabaoglu.network.file_transfer.WireProtocol;
+
+// Work done by a relay peer per forwarded chunk. The codec rows deserialize and re-serialize the message (serialized
+// protocol) or decode and re-encode the frame (binary, store and forward) in memory, into a channel that discards the bytes.
+// The cut-through row runs the real path over loopback: a TransferServer reads the frames, a worker peeks the receiver
+// and a sender thread writes them to the next hop's pooled connection. It reports the CPU time and heap allocated
+// by the relay's selector, worker and sender threads, and the wall time per chunk from the first byte sent to the
+// last byte the next hop read.
+// Usage: RelayBenchmark [chunkSize] [sharedFiles] [iterations]
+public class RelayBenchmark {
+
+    private static final byte[] PREAMBLE = preamble();
+
+    public static void main(String[] args) throws Exception {
+        int chunkSize = args.length > 0 ? Integer.parseInt(args[0]) : 256 * 1024;
+        int sharedFiles = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Random random = new Random(1);
+        Set<PeerFileMetadata> fileMetadatas = new CopyOnWriteArraySet<>();
+        for (int i = 0; i < sharedFiles; i++) {
+            fileMetadatas.add(PeerFileMetadata.of("shared-file-" + i, random.nextInt(1 << 30), chunkSize, randomBytes(random, 32), randomBytes(random, 32)));
+        }
+        Peer peer = new Peer();
+        peer.setFileMetadatas(fileMetadatas);
+
+        byte[][] proof = new byte[12][];
+        for (int i = 0; i < proof.length; i++) {
+            proof[i] = randomBytes(random, 32);
+        }
+        FileChunkMessage chunkMessage = new FileChunkMessage(peer, peer, fileMetadatas.iterator().next(), 7, randomBytes(random, chunkSize), proof);
+
+        byte[] serializedMessage = chunkMessage.serialize();
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(frameBytes)) {
+            WireProtocol.writeChunk(channel, chunkMessage);
+        }
+        byte[] frame = frameBytes.toByteArray();
+
+        WireProtocol.Resolver resolver = new WireProtocol.Resolver() {
+            @Override
+            public Peer resolvePeer(long peerId) {
+                return peer;
+            }
+
+            @Override
+            public PeerFileMetadata resolveFile(PeerFileMetadata fileReference) {
+                return fileReference;
+            }
+        };
+        WritableByteChannel nextHop = new DiscardingChannel();
+
+        System.out.printf("%-22s %-14s %-18s %-14s\n", "relay", "cpu (us)", "allocated (KB)", "wall (us)");
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            measure(warmUp, "serialized", iterations, () -> {
+                FileChunkMessage message = FileChunkMessage.deserialize(serializedMessage, serializedMessage.length);
+                WireProtocol.writeFrame(nextHop, message.serialize());
+            });
+            measure(warmUp, "binary, decoded", iterations, () -> {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+                in.readByte();
+                FileChunkMessage header = WireProtocol.readChunkHeader(in, resolver);
+                byte[] payload = WireProtocol.readPayload(in, WireProtocol.readPayloadLength(in));
+                WireProtocol.writeChunk(nextHop, header.withChunkData(payload));
+            });
+        }
+
+        try (LoopbackRelay relay = new LoopbackRelay()) {
+            relay.forward(frame, iterations);
+            relay.measure("binary, cut-through", frame, iterations);
+        }
+    }
+
+    private static void measure(boolean warmUp, String name, int iterations, Relay relay) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long startCpu = threadBean.getCurrentThreadCpuTime();
+        long startAllocated = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            relay.forward();
+        }
+        long wall = System.nanoTime() - start;
+        long cpu = threadBean.getCurrentThreadCpuTime() - startCpu;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - startAllocated;
+
+        if (!warmUp) {
+            System.out.printf("%-22s %-14.1f %-18.1f %-14.1f\n", name, cpu / 1e3 / iterations, allocated / 1024.0 / iterations, wall / 1e3 / iterations);
+        }
+    }
+
+    private static byte[] preamble() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(bytes)) {
+            WireProtocol.writePreamble(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private interface Relay {
+        void forward() throws Exception;
+    }
+
+    // A relay on a free loopback port whose next hop is a sink that drains and counts what it is sent
+    private static class LoopbackRelay implements AutoCloseable {
+
+        private final ServerSocketChannel sink;
+        private final AtomicLong sinkBytes;
+        private final Set<Long> relayThreadIds;
+        private final ExecutorService senders;
+        private final ConnectionManager connectionManager;
+        private final int relayPort;
+        private volatile boolean running;
+
+        private LoopbackRelay() throws IOException {
+            this.sink = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.sinkBytes = new AtomicLong();
+            this.relayThreadIds = ConcurrentHashMap.newKeySet();
+            this.senders = Executors.newSingleThreadExecutor();
+            this.connectionManager = new ConnectionManager(((InetSocketAddress) sink.getLocalAddress()).getPort());
+            this.running = true;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                this.relayPort = probe.getLocalPort();
+            }
+
+            Thread drain = new Thread(this::drain, "relay-benchmark-sink");
+            drain.setDaemon(true);
+            drain.start();
+
+            TransferServer server = new TransferServer(relayPort, new TransferServer.Handler() {
+                @Override
+                public void handleFrame(byte[] frame, InetAddress remoteIPAddress) {
+                    relayThreadIds.add(Thread.currentThread().getId());
+                    // As in FileTransferManager.relayFrame, the worker only reads the receiver and hands the frame on
+                    try {
+                        WireProtocol.peekReceiverId(frame);
+                        senders.execute(() -> {
+                            relayThreadIds.add(Thread.currentThread().getId());
+                            try {
+                                connectionManager.send(InetAddress.getLoopbackAddress(), channel -> WireProtocol.writeFrame(channel, frame));
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        });
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void handleObjectStream(InputStream inputStream, InetAddress remoteIPAddress) {}
+            });
+            Thread selector = new Thread(() -> {
+                relayThreadIds.add(Thread.currentThread().getId());
+                try {
+                    server.run(() -> running);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "relay-benchmark-selector");
+            selector.setDaemon(true);
+            selector.start();
+        }
+
+        // Send the frames through the relay and wait until the sink has read all of them
+        private void forward(byte[] frame, int iterations) throws Exception {
+            long target = sinkBytes.get() + (long) frame.length * iterations;
+            try (SocketChannel channel = connect()) {
+                channel.write(ByteBuffer.wrap(PREAMBLE));
+                for (int i = 0; i < iterations; i++) {
+                    WireProtocol.writeFrame(channel, frame);
+                }
+                while (sinkBytes.get() < target) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+
+        private void measure(String name, byte[] frame, int iterations) throws Exception {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] threadIds = relayThreadIds.stream().mapToLong(Long::longValue).toArray();
+            long[] startCpu = threadBean.getThreadCpuTime(threadIds);
+            long[] startAllocated = threadBean.getThreadAllocatedBytes(threadIds);
+            long start = System.nanoTime();
+            forward(frame, iterations);
+            long wall = System.nanoTime() - start;
+            long[] endCpu = threadBean.getThreadCpuTime(threadIds);
+            long[] endAllocated = threadBean.getThreadAllocatedBytes(threadIds);
+
+            long cpu = 0;
+            long allocated = 0;
+            for (int i = 0; i < threadIds.length; i++) {
+                cpu += endCpu[i] - startCpu[i];
+                allocated += endAllocated[i] - startAllocated[i];
+            }
+            System.out.printf("%-22s %-14.1f %-18.1f %-14.1f\n", name, cpu / 1e3 / iterations, allocated / 1024.0 / iterations, wall / 1e3 / iterations);
+        }
+
+        // The relay binds to every address, retry until its selector thread is listening
+        private SocketChannel connect() throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), relayPort));
+                } catch (IOException e) {
+                    if (attempt >= 100) {
+                        throw e;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        private void drain() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (running) {
+                try (SocketChannel channel = sink.accept()) {
+                    while (channel.read(buffer.clear()) >= 0) {
+                        sinkBytes.addAndGet(buffer.position());
+                    }
+                } catch (IOException e) {
+                    // Sink closed
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            connectionManager.closeAll();
+            senders.shutdown();
+            sink.close();
+        }
+    }
+
+    // Stands in for the connection to the next hop
+    private static class DiscardingChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.github.fevzibabaoglu.network.NetworkUtils;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.PeerNetworkInterface;
+import com.github.fevzibabaoglu.network.RoutingTable;
+
+// Route lookups on random connected networks of hundreds of peers, every link a /24 subnet between two peers.
+// Compares the former depth-first search per lookup with the routing table (one BFS per topology version),
+// and reports the average route length each finds.
+// Usage: RoutingBenchmark [peers...]
+public class RoutingBenchmark {
+
+    private static final int EXTRA_LINKS_PER_PEER = 2;
+
+    public static void main(String[] args) throws Exception {
+        int[] peerCounts = {100, 300, 1000};
+        if (args.length > 0) {
+            peerCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                peerCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %-22s %-14s %-14s %-12s\n", "peers", "routing", "build (us)", "lookup (us)", "avg hops");
+        for (int peerCount : peerCounts) {
+            List<Peer> peers = buildNetwork(peerCount, new Random(peerCount));
+            Peer localPeer = peers.get(0);
+            List<Peer> targets = peers.subList(1, peers.size());
+
+            for (int round = 0; round < 2; round++) {
+                boolean warmUp = round == 0;
+
+                long start = System.nanoTime();
+                long hops = 0;
+                for (Peer target : targets) {
+                    hops += findRouteDepthFirst(localPeer, target).size();
+                }
+                long depthFirst = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                RoutingTable.build(localPeer, 0);
+                long build = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long tableHops = 0;
+                for (Peer target : targets) {
+                    tableHops += localPeer.getRouteToPeer(target).size();
+                }
+                long lookup = System.nanoTime() - start;
+
+                if (!warmUp) {
+                    System.out.printf("%-8d %-22s %-14s %-14.2f %-12.2f\n", peerCount, "depth-first per lookup", "-", depthFirst / 1e3 / targets.size(), (double) hops / targets.size());
+                    System.out.printf("%-8d %-22s %-14.1f %-14.2f %-12.2f\n", peerCount, "routing table", build / 1e3, lookup / 1e3 / targets.size(), (double) tableHops / targets.size());
+                }
+            }
+        }
+    }
+
+    // A random spanning tree plus a few extra links, so that the network has cycles and several routes per peer
+    private static List<Peer> buildNetwork(int peerCount, Random random) throws Exception {
+        List<Map<PeerNetworkInterface, Set<Peer>>> interfaceMaps = new ArrayList<>();
+        List<Peer> peers = new ArrayList<>();
+        Constructor<Peer> peerConstructor = Peer.class.getDeclaredConstructor(Map.class, Set.class, Set.class);
+        peerConstructor.setAccessible(true);
+        for (int i = 0; i < peerCount; i++) {
+            Map<PeerNetworkInterface, Set<Peer>> interfacePeersMap = new ConcurrentHashMap<>();
+            Set<String> macAddresses = new CopyOnWriteArraySet<>(Set.of(String.format("02:00:00:00:%02X:%02X", i >> 8, i & 0xFF)));
+            interfaceMaps.add(interfacePeersMap);
+            peers.add(peerConstructor.newInstance(interfacePeersMap, macAddresses, new CopyOnWriteArraySet<>()));
+        }
+
+        Set<Long> links = new HashSet<>();
+        int subnet = 0;
+        for (int i = 1; i < peerCount; i++) {
+            int j = random.nextInt(i);
+            links.add((long) i * peerCount + j);
+            link(peers, interfaceMaps, i, j, subnet++);
+        }
+        for (int k = 0; k < peerCount * EXTRA_LINKS_PER_PEER / 2; k++) {
+            int i = random.nextInt(peerCount);
+            int j = random.nextInt(peerCount);
+            if (i != j && links.add((long) Math.max(i, j) * peerCount + Math.min(i, j))) {
+                link(peers, interfaceMaps, i, j, subnet++);
+            }
+        }
+        return peers;
+    }
+
+    private static void link(List<Peer> peers, List<Map<PeerNetworkInterface, Set<Peer>>> interfaceMaps, int i, int j, int subnet) throws Exception {
+        PeerNetworkInterface interfaceI = newInterface(subnet, 1);
+        PeerNetworkInterface interfaceJ = newInterface(subnet, 2);
+        interfaceMaps.get(i).put(interfaceI, new CopyOnWriteArraySet<>(Set.of(peers.get(j))));
+        interfaceMaps.get(j).put(interfaceJ, new CopyOnWriteArraySet<>(Set.of(peers.get(i))));
+    }
+
+    private static PeerNetworkInterface newInterface(int subnet, int host) throws Exception {
+        Constructor<PeerNetworkInterface> constructor = PeerNetworkInterface.class.getDeclaredConstructor(NetworkInterface.class, short.class, InetAddress.class, InetAddress.class);
+        constructor.setAccessible(true);
+        byte[] address = {10, (byte) (subnet >> 8), (byte) subnet, (byte) host};
+        byte[] broadcast = {10, (byte) (subnet >> 8), (byte) subnet, (byte) 255};
+        return constructor.newInstance(null, (short) 24, InetAddress.getByAddress(broadcast), InetAddress.getByAddress(address));
+    }
+
+    // The former Peer.getRouteToPeer: first route found by a depth-first search
+    private static List<PeerNetworkInterface> findRouteDepthFirst(Peer sourcePeer, Peer targetPeer) throws Exception {
+        List<PeerNetworkInterface> route = new ArrayList<>();
+        return findRouteRecursive(sourcePeer, targetPeer, route, new HashSet<>()) ? route : null;
+    }
+
+    private static boolean findRouteRecursive(Peer currentPeer, Peer targetPeer, List<PeerNetworkInterface> route, Set<Peer> visitedPeers) throws Exception {
+        if (!visitedPeers.add(currentPeer)) {
+            return false;
+        }
+        if (currentPeer.equals(targetPeer)) {
+            return true;
+        }
+        for (PeerNetworkInterface outInterface : currentPeer.getPeerNetworkInterfaces()) {
+            for (Peer knownPeer : currentPeer.getKnownPeerList(outInterface)) {
+                PeerNetworkInterface inInterface = NetworkUtils.subnetMatch(knownPeer, outInterface.getLocalIPAddress());
+                if (inInterface != null) {
+                    route.add(inInterface);
+                    if (findRouteRecursive(knownPeer, targetPeer, route, visitedPeers)) {
+                        return true;
+                    }
+                    route.remove(route.size() - 1);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.github.fevzibabaoglu.TaskScope;
+
+// Runs many concurrent simulated transfers, each blocking on the network between chunks, under three thread models:
+// the old fixed pool of four threads, one platform thread per transfer and one virtual thread per transfer (Java 21+).
+// Reports the wall time and the peak number of platform threads.
+// Usage: ThreadModelBenchmark [chunksPerTransfer] [latencyMillis] [transfers...]
+public class ThreadModelBenchmark {
+
+    private static final int CHUNK_WORK_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int chunksPerTransfer = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        int[] transferCounts = {100, 1000, 5000};
+        if (args.length > 2) {
+            transferCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                transferCounts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        if (!TaskScope.isVirtualThreadsSupported()) {
+            System.out.printf("Virtual threads are not available on Java %d, only platform threads are measured.\n", Runtime.version().feature());
+        }
+        System.out.printf("%-10s %-18s %-12s %-16s\n", "transfers", "model", "time (ms)", "peak threads");
+
+        for (int transfers : transferCounts) {
+            run(transfers, "pool of 4", chunksPerTransfer, latencyMillis, null);
+            run(transfers, "platform/task", chunksPerTransfer, latencyMillis, TaskScope.newThreadFactory("benchmark", false));
+            if (TaskScope.isVirtualThreadsSupported()) {
+                run(transfers, "virtual/task", chunksPerTransfer, latencyMillis, TaskScope.newThreadFactory("benchmark", true));
+            }
+        }
+    }
+
+    // A null factory runs the transfers on a fixed pool of four platform threads
+    private static void run(int transfers, String model, int chunksPerTransfer, long latencyMillis, ThreadFactory threadFactory) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        System.gc();
+        threadBean.resetPeakThreadCount();
+
+        CountDownLatch done = new CountDownLatch(transfers);
+        Runnable transfer = () -> {
+            try {
+                simulateTransfer(chunksPerTransfer, latencyMillis);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        if (threadFactory == null) {
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < transfers; i++) {
+                pool.execute(transfer);
+            }
+            done.await();
+            pool.shutdown();
+        } else {
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < transfers; i++) {
+                Thread thread = threadFactory.newThread(transfer);
+                thread.start();
+                threads.add(thread);
+            }
+            done.await();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%-10d %-18s %-12d %-16d\n", transfers, model, elapsed / 1_000_000, threadBean.getPeakThreadCount());
+    }
+
+    // Wait for each chunk as a blocking socket read would, then verify it
+    private static void simulateTransfer(int chunks, long latencyMillis) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] chunk = new byte[CHUNK_WORK_SIZE];
+        for (int i = 0; i < chunks; i++) {
+            Thread.sleep(latencyMillis);
+            digest.update(chunk);
+        }
+        digest.digest();
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.fevzibabaoglu.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
+import com.github.fevzibabaoglu.network.file_transfer.PeerFileMetadataRequestMessage;
+import com.github.fevzibabaoglu.network.file_transfer.WireProtocol;
+
+// Compares the Java serialization of file transfer messages with the binary wire protocol.
+// The peers share sharedFiles files each, which the serialized messages carry along with every chunk.
+// Reports bytes per message and the time to encode and decode one.
+// Usage: WireProtocolBenchmark [sharedFiles] [chunkSize] [iterations]
+public class WireProtocolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sharedFiles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Random random = new Random(1);
+        Set<PeerFileMetadata> fileMetadatas = new CopyOnWriteArraySet<>();
+        for (int i = 0; i < sharedFiles; i++) {
+            fileMetadatas.add(PeerFileMetadata.of("shared-file-" + i, random.nextInt(1 << 30), chunkSize, randomBytes(random, 32), randomBytes(random, 32)));
+        }
+        Peer peer = new Peer();
+        peer.setFileMetadatas(fileMetadatas);
+
+        PeerFileMetadata fileMetadata = fileMetadatas.iterator().next();
+        byte[][] proof = new byte[12][];
+        for (int i = 0; i < proof.length; i++) {
+            proof[i] = randomBytes(random, 32);
+        }
+        FileChunkMessage chunkMessage = new FileChunkMessage(peer, peer, fileMetadata, 7, randomBytes(random, chunkSize), proof);
+        Set<Integer> chunkIndices = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            chunkIndices.add(i);
+        }
+        PeerFileMetadataRequestMessage requestMessage = new PeerFileMetadataRequestMessage(peer, peer, fileMetadata, chunkIndices);
+
+        WireProtocol.Resolver resolver = new WireProtocol.Resolver() {
+            @Override
+            public Peer resolvePeer(long peerId) {
+                return peer;
+            }
+
+            @Override
+            public PeerFileMetadata resolveFile(PeerFileMetadata fileReference) {
+                return fileReference;
+            }
+        };
+
+        System.out.printf("%-10s %-12s %-18s %-18s\n", "message", "format", "overhead (bytes)", "encode+decode (us)");
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            report(warmUp, "chunk", "serialized", chunkSize, iterations, () -> {
+                byte[] bytes = chunkMessage.serialize();
+                FileChunkMessage.deserialize(bytes, bytes.length);
+                return bytes.length;
+            });
+            report(warmUp, "chunk", "binary", chunkSize, iterations, () -> {
+                byte[] bytes = encode(channel -> WireProtocol.writeChunk(channel, chunkMessage));
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                in.readByte();
+                WireProtocol.readChunkHeader(in, resolver);
+                WireProtocol.readPayload(in, WireProtocol.readPayloadLength(in));
+                return bytes.length;
+            });
+            report(warmUp, "request", "serialized", 0, iterations, () -> {
+                byte[] bytes = requestMessage.serialize();
+                PeerFileMetadataRequestMessage.deserialize(bytes, bytes.length);
+                return bytes.length;
+            });
+            report(warmUp, "request", "binary", 0, iterations, () -> {
+                byte[] bytes = encode(channel -> WireProtocol.writeRequest(channel, requestMessage));
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                in.readByte();
+                WireProtocol.readRequest(in, resolver);
+                return bytes.length;
+            });
+        }
+    }
+
+    private static void report(boolean warmUp, String message, String format, int payloadSize, int iterations, Codec codec) throws Exception {
+        int size = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            size = codec.run();
+        }
+        long nanos = System.nanoTime() - start;
+        if (!warmUp) {
+            System.out.printf("%-10s %-12s %-18d %-18.1f\n", message, format, size - payloadSize, nanos / 1e3 / iterations);
+        }
+    }
+
+    private static byte[] encode(Writer writer) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(bytes)) {
+            writer.write(channel);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private interface Codec {
+        int run() throws Exception;
+    }
+
+    private interface Writer {
+        void write(WritableByteChannel channel) throws Exception;
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BloomFilterTest {
+
+    private List<PeerFileMetadata> fileMetadatas;
+
+    @BeforeEach
+    public void setUp() {
+        fileMetadatas = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            fileMetadatas.add(PeerFileMetadata.of("file" + i, i + 1, 256 * 1024, hash, hash));
+        }
+    }
+
+    @Test
+    public void testFilterSurvivesSerialization() throws Exception {
+        BloomFilter filter = deserialize(serialize(BloomFilter.of(fileMetadatas)));
+        for (PeerFileMetadata fileMetadata : fileMetadatas) {
+            assertTrue(filter.mightContain(fileMetadata));
+        }
+    }
+
+    @Test
+    public void testMalformedFiltersAreRejected() throws Exception {
+        assertThrows(InvalidObjectException.class, () -> deserialize(serialize(malformed("bits", new long[0]))));
+        assertThrows(InvalidObjectException.class, () -> deserialize(serialize(malformed("bits", null))));
+        assertThrows(InvalidObjectException.class, () -> deserialize(serialize(malformed("hashCount", 0))));
+        assertThrows(InvalidObjectException.class, () -> deserialize(serialize(malformed("hashCount", -3))));
+        assertThrows(InvalidObjectException.class, () -> deserialize(serialize(malformed("hashCount", Integer.MAX_VALUE))));
+    }
+
+    // A filter as a faulty or hostile peer could send it
+    private BloomFilter malformed(String fieldName, Object value) throws Exception {
+        BloomFilter filter = BloomFilter.of(fileMetadatas);
+        Field field = BloomFilter.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(filter, value);
+        return filter;
+    }
+
+    private static byte[] serialize(BloomFilter filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(filter);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static BloomFilter deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (BloomFilter) ois.readObject();
+        }
+    }
+}
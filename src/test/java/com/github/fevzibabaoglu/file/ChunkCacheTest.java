@@ -0,0 +1,84 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkCacheTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final byte[] FILE_HASH = {1, 2, 3};
+
+    @Test
+    public void testHitSharesTheCachedBuffer() throws Exception {
+        ChunkCache chunkCache = new ChunkCache(4 * CHUNK_SIZE);
+        assertNull(chunkCache.get(FILE_HASH, CHUNK_SIZE, 0));
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 0, 100, loader((byte) 7)).close();
+
+        try (ChunkCache.Lease first = chunkCache.get(FILE_HASH, CHUNK_SIZE, 0);
+             ChunkCache.Lease second = chunkCache.get(FILE_HASH, CHUNK_SIZE, 0)) {
+            ByteBuffer data = first.getData();
+            assertTrue(data.isDirect());
+            assertTrue(data.isReadOnly());
+            assertEquals(100, data.remaining());
+            assertEquals(7, data.get(99));
+            // Every view has its own position
+            data.position(100);
+            assertEquals(100, second.getData().remaining());
+        }
+        assertEquals(2, chunkCache.getStats().getHits());
+        assertEquals(1, chunkCache.getStats().getMisses());
+    }
+
+    @Test
+    public void testLeasedChunksAreNotEvicted() throws Exception {
+        ChunkCache chunkCache = new ChunkCache(2 * CHUNK_SIZE);
+        ChunkCache.Lease leased = chunkCache.put(FILE_HASH, CHUNK_SIZE, 0, CHUNK_SIZE, loader((byte) 1));
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 1, CHUNK_SIZE, loader((byte) 2)).close();
+
+        // The budget is spent and chunk 0 is still being sent, so chunk 1 gives up its buffer
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 2, CHUNK_SIZE, loader((byte) 3)).close();
+        assertEquals(1, leased.getData().get(0));
+        assertNull(chunkCache.get(FILE_HASH, CHUNK_SIZE, 1));
+        // Chunk 2 holds the only buffer that is not leased
+        ChunkCache.Lease other = chunkCache.put(FILE_HASH, CHUNK_SIZE, 3, CHUNK_SIZE, loader((byte) 4));
+        assertNull(chunkCache.put(FILE_HASH, CHUNK_SIZE, 4, CHUNK_SIZE, loader((byte) 5)));
+
+        leased.close();
+        // Chunk 0 is the least recently used one that is free again
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 4, CHUNK_SIZE, loader((byte) 5)).close();
+        other.close();
+        try (ChunkCache.Lease lease = chunkCache.get(FILE_HASH, CHUNK_SIZE, 4)) {
+            assertEquals(5, lease.getData().get(0));
+        }
+        assertEquals(3, chunkCache.getStats().getEvictions());
+    }
+
+    @Test
+    public void testInvalidatedChunkIsRecycledOnceReleased() throws Exception {
+        ChunkCache chunkCache = new ChunkCache(2 * CHUNK_SIZE);
+        ChunkCache.Lease leased = chunkCache.put(FILE_HASH, CHUNK_SIZE, 0, CHUNK_SIZE, loader((byte) 1));
+        chunkCache.put(new byte[] {9}, CHUNK_SIZE, 0, CHUNK_SIZE, loader((byte) 2)).close();
+
+        chunkCache.invalidate(FILE_HASH);
+        assertNull(chunkCache.get(FILE_HASH, CHUNK_SIZE, 0));
+        // Its buffer is still being sent, so only the other file's chunk can make room
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 1, CHUNK_SIZE, loader((byte) 3)).close();
+        assertEquals(1, leased.getData().get(0));
+        assertNull(chunkCache.get(new byte[] {9}, CHUNK_SIZE, 0));
+
+        leased.close();
+        chunkCache.put(FILE_HASH, CHUNK_SIZE, 2, CHUNK_SIZE, loader((byte) 4)).close();
+        assertNotNull(chunkCache.get(FILE_HASH, CHUNK_SIZE, 1));
+    }
+
+    // Fills the chunk with one value, a byte at a time to exercise partial reads
+    private static ChunkCache.Loader loader(byte value) {
+        return buffer -> {
+            buffer.put(value);
+            return 1;
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileHashIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path indexPath;
+    private Path filePath;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        indexPath = tempDir.resolve("index").resolve("hash-index");
+        filePath = tempDir.resolve("shared-file");
+        Files.write(filePath, new byte[] {1, 2, 3, 4});
+    }
+
+    @Test
+    public void testLookupAfterReopen() throws IOException {
+        byte[] hash = {9, 8, 7};
+
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.put(filePath, attributes(), metadata(filePath, hash));
+        index.close();
+
+        FileHashIndex reopened = new FileHashIndex(indexPath);
+        PeerFileMetadata fileMetadata = reopened.lookup(filePath, attributes());
+        assertArrayEquals(hash, fileMetadata.getHash(), "Stored digest was not reloaded.");
+        assertArrayEquals(hash, fileMetadata.getRootHash(), "Stored tree root was not reloaded.");
+        reopened.close();
+    }
+
+    @Test
+    public void testWholeFileDigestEntryIsReusedByRoot() throws IOException {
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.put(filePath, attributes(), new PeerFileMetadata(filePath, 4, ChunkSizePolicy.chooseChunkSize(4), new byte[] {9, 8, 7}, new byte[] {0, 9}));
+
+        // Hashed while the whole-file digest was the identity, the stored root becomes the identity without rehashing
+        assertArrayEquals(new byte[] {0, 9}, index.lookup(filePath, attributes()).getHash());
+        index.close();
+    }
+
+    @Test
+    public void testModifiedFileIsNotReused() throws IOException {
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.put(filePath, attributes(), metadata(filePath, new byte[] {1}));
+
+        Files.write(filePath, new byte[] {1, 2, 3, 4, 5});
+        Files.setLastModifiedTime(filePath, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertNull(index.lookup(filePath, attributes()), "Digest of a modified file was reused.");
+        index.close();
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws IOException {
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.put(filePath, attributes(), metadata(filePath, new byte[] {5, 5}));
+        index.close();
+
+        // Simulate a crash in the middle of appending a record
+        Files.write(indexPath, new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        FileHashIndex reopened = new FileHashIndex(indexPath);
+        assertArrayEquals(new byte[] {5, 5}, reopened.lookup(filePath, attributes()).getHash());
+
+        // New records must still be readable after the torn tail was cut off
+        Path otherPath = tempDir.resolve("other-file");
+        Files.write(otherPath, new byte[] {6});
+        reopened.put(otherPath, Files.readAttributes(otherPath, BasicFileAttributes.class), metadata(otherPath, new byte[] {6}));
+        reopened.close();
+
+        FileHashIndex recovered = new FileHashIndex(indexPath);
+        assertEquals(2, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void testRetainAllRemovesDeletedFiles() throws IOException {
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.put(filePath, attributes(), metadata(filePath, new byte[] {1}));
+        index.retainAll(Collections.emptySet());
+        index.close();
+
+        FileHashIndex reopened = new FileHashIndex(indexPath);
+        assertNull(reopened.lookup(filePath, attributes()));
+        reopened.close();
+    }
+
+    @Test
+    public void testTreeLeavesArePersistedByRoot() throws Exception {
+        Files.write(filePath, new byte[3 * 1024 + 5]);
+        TreeHash treeHash = TreeHash.compute(filePath, 1024, ForkJoinPool.commonPool(), null);
+
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.putTree(treeHash);
+        index.close();
+
+        FileHashIndex reopened = new FileHashIndex(indexPath);
+        TreeHash persisted = reopened.lookupTree(treeHash.getRoot(), 1024);
+        assertEquals(4, persisted.getBlockCount());
+        assertArrayEquals(treeHash.getProof(2), persisted.getProof(2));
+        // Another chunk size or root is another tree
+        assertNull(reopened.lookupTree(treeHash.getRoot(), 2048));
+        assertNull(reopened.lookupTree(new byte[] {1, 2}, 1024));
+        reopened.close();
+    }
+
+    @Test
+    public void testCorruptTreeIsIgnored() throws Exception {
+        Files.write(filePath, new byte[3 * 1024]);
+        TreeHash treeHash = TreeHash.compute(filePath, 1024, ForkJoinPool.commonPool(), null);
+        FileHashIndex index = new FileHashIndex(indexPath);
+        index.putTree(treeHash);
+
+        try (DirectoryStream<Path> treePaths = Files.newDirectoryStream(indexPath.resolveSibling("hash-index.trees"))) {
+            for (Path treePath : treePaths) {
+                byte[] bytes = Files.readAllBytes(treePath);
+                bytes[20] ^= 1;
+                Files.write(treePath, bytes);
+            }
+        }
+        assertNull(index.lookupTree(treeHash.getRoot(), 1024));
+        index.close();
+    }
+
+    private PeerFileMetadata metadata(Path path, byte[] hash) throws IOException {
+        return new PeerFileMetadata(path, Files.size(path), ChunkSizePolicy.chooseChunkSize(Files.size(path)), hash, hash);
+    }
+
+    private BasicFileAttributes attributes() throws IOException {
+        return Files.readAttributes(filePath, BasicFileAttributes.class);
+    }
+}
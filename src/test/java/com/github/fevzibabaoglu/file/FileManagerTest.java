@@ -1,6 +1,7 @@
 package com.github.fevzibabaoglu.file;
 
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.github.fevzibabaoglu.network.file_transfer.FileChunkMessage;
 
@@ -18,6 +19,9 @@ public class FileManagerTest {
     private static final String ORIGINAL_FILE = "test-file"; // Path to a file for testing
     private static final String MERGED_FILE = "merged-test-file"; // Path for the merged output file
 
+    @TempDir
+    Path tempDir;
+
     private FileManager fileManager;
     private PeerFileMetadata fileMetadata;
 
@@ -75,6 +79,38 @@ public class FileManagerTest {
         System.out.println("Merged file created: " + mergedFilePath);
     }
 
+    @Test
+    public void testRunningDownloadsAreNotResumable() throws IOException {
+        Path sourceDir = Files.createDirectories(tempDir.resolve("share"));
+        Path destinationDir = Files.createDirectories(tempDir.resolve("downloads"));
+        FileManager downloadFileManager = new FileManager(sourceDir.toString(), destinationDir.toString(), CHUNK_SIZE, tempDir.resolve("state").resolve("hash-index"));
+        PeerFileMetadata downloadMetadata = PeerFileMetadata.of("download", CHUNK_SIZE * 2 + 1, CHUNK_SIZE, new byte[] {1, 2}, new byte[] {3, 4});
+
+        downloadFileManager.startDownload(downloadMetadata);
+        assertTrue(Files.exists(PartialFile.journalPathOf(downloadFileManager.getPartialFile(downloadMetadata).getPartPath())));
+        assertEquals(List.of(), downloadFileManager.listResumableDownloads());
+
+        downloadFileManager.suspendDownload(downloadMetadata);
+        assertEquals(List.of(downloadMetadata), downloadFileManager.listResumableDownloads());
+    }
+
+    @Test
+    public void testTreeHashIsServedFromPersistedLeaves() throws IOException, NoSuchAlgorithmException {
+        Path sourceDir = Files.createDirectories(tempDir.resolve("share"));
+        byte[] content = new byte[CHUNK_SIZE * 3 + 7];
+        new Random(3).nextBytes(content);
+        Files.write(sourceDir.resolve("shared"), content);
+        Path indexPath = tempDir.resolve("state").resolve("hash-index");
+        FileManager sharingFileManager = new FileManager(sourceDir.toString(), tempDir.toString(), CHUNK_SIZE, indexPath);
+        PeerFileMetadata sharedMetadata = sharingFileManager.listSharedFiles().iterator().next();
+
+        // Indexing persisted the leaves, so the tree no longer depends on the file content
+        Files.write(sourceDir.resolve("shared"), new byte[content.length]);
+        TreeHash treeHash = sharingFileManager.getTreeHash(sharedMetadata);
+        assertArrayEquals(sharedMetadata.getRootHash(), treeHash.getRoot());
+        assertEquals(4, treeHash.getBlockCount());
+    }
+
     @AfterEach
     public void tearDown() {
         System.out.println("Test is done.");
@@ -0,0 +1,46 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartialFileTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testResumeFromJournal() throws IOException {
+        byte[] content = new byte[CHUNK_SIZE * 3 + 100];
+        new Random(1).nextBytes(content);
+        Path targetPath = tempDir.resolve("download");
+        PeerFileMetadata fileMetadata = new PeerFileMetadata(targetPath, content.length, CHUNK_SIZE, new byte[] {1, 2}, new byte[] {3, 4});
+
+        PartialFile partialFile = new PartialFile(targetPath, fileMetadata, CHUNK_SIZE);
+        partialFile.writeChunk(0, chunk(content, 0));
+        partialFile.writeChunk(2, chunk(content, 2));
+        partialFile.close();
+
+        // Only the chunks missing before the restart are needed
+        PartialFile resumed = new PartialFile(targetPath, fileMetadata, CHUNK_SIZE);
+        assertEquals(List.of(1, 3), resumed.getMissingChunks());
+        resumed.writeChunk(1, chunk(content, 1));
+        resumed.writeChunk(3, chunk(content, 3));
+        resumed.complete();
+        resumed.close();
+
+        assertArrayEquals(content, Files.readAllBytes(targetPath), "Resumed download does not match the original.");
+        assertFalse(Files.exists(PartialFile.journalPathOf(resumed.getPartPath())), "Journal was not removed after completion.");
+    }
+
+    private byte[] chunk(byte[] content, int chunkIndex) {
+        int from = chunkIndex * CHUNK_SIZE;
+        return Arrays.copyOfRange(content, from, Math.min(content.length, from + CHUNK_SIZE));
+    }
+}
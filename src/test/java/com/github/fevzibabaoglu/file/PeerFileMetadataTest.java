@@ -0,0 +1,32 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerFileMetadataTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testTreeRootIsTheIdentity() throws Exception {
+        byte[] content = new byte[3 * 256 * 1024 + 11];
+        new Random(4).nextBytes(content);
+        Path path = tempDir.resolve("shared");
+        Files.write(path, content);
+
+        PeerFileMetadata fileMetadata = new PeerFileMetadata(path);
+        assertArrayEquals(fileMetadata.getRootHash(), fileMetadata.getHash());
+        // The whole-file digest is only read when asked for
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), fileMetadata.getFileDigest());
+
+        PeerFileMetadata described = PeerFileMetadata.of("shared", content.length, fileMetadata.getChunkSize(), fileMetadata.getHash(), fileMetadata.getRootHash());
+        assertEquals(fileMetadata, described);
+        assertNull(described.getFileDigest());
+    }
+}
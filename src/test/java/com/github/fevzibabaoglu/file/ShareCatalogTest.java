@@ -0,0 +1,140 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShareCatalogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDir;
+    private FileManager fileManager;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        sourceDir = Files.createDirectories(tempDir.resolve("share"));
+        Files.createDirectories(sourceDir.resolve("sub"));
+        Files.write(sourceDir.resolve("a"), new byte[] {1});
+        Files.write(sourceDir.resolve("sub").resolve("b"), new byte[] {2});
+
+        fileManager = new FileManager(sourceDir.toString(), tempDir.toString(), 256 * 1024, tempDir.resolve("state").resolve("hash-index"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fileManager.setSourcePath(sourceDir.toString());
+    }
+
+    @Test
+    public void testExclusionsUpdateCatalogInPlace() throws IOException {
+        assertEquals(Set.of("a", "b"), filenames());
+
+        fileManager.addExcludedPath(sourceDir.resolve("sub"));
+        assertEquals(Set.of("a"), filenames());
+
+        fileManager.removeExcludedPath(sourceDir.resolve("sub"));
+        assertEquals(Set.of("a", "b"), filenames());
+    }
+
+    @Test
+    public void testWatcherPicksUpNewFiles() throws IOException, InterruptedException {
+        assertEquals(Set.of("a", "b"), filenames());
+
+        Files.write(sourceDir.resolve("sub").resolve("c"), new byte[] {3});
+        Files.delete(sourceDir.resolve("a"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!filenames().equals(Set.of("b", "c")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(Set.of("b", "c"), filenames());
+    }
+
+    @Test
+    public void testChangesSinceVersion() throws IOException, InterruptedException {
+        assertEquals(Set.of("a", "b"), filenames());
+        long version = fileManager.getCatalogVersion();
+
+        Files.write(sourceDir.resolve("sub").resolve("c"), new byte[] {3});
+        Files.delete(sourceDir.resolve("a"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!filenames().equals(Set.of("b", "c")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        ShareCatalog.Delta delta = fileManager.getCatalogChanges(version);
+        assertEquals(version, delta.getFromVersion());
+        assertEquals(fileManager.getCatalogVersion(), delta.getToVersion());
+        assertEquals(Set.of("c"), filenames(delta.getAdded()));
+        assertEquals(Set.of("a"), filenames(delta.getRemoved()));
+
+        assertTrue(fileManager.getCatalogChanges(delta.getToVersion()).getAdded().isEmpty());
+        assertNull(fileManager.getCatalogChanges(delta.getToVersion() + 1));
+    }
+
+    @Test
+    public void testFilterMatchesSharedFiles() throws IOException, InterruptedException {
+        assertEquals(Set.of("a", "b"), filenames());
+        for (PeerFileMetadata fileMetadata : fileManager.listSharedFiles()) {
+            assertTrue(fileManager.getCatalogFilter().mightContain(fileMetadata));
+        }
+
+        Files.write(sourceDir.resolve("sub").resolve("c"), new byte[] {3});
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!filenames().equals(Set.of("a", "b", "c")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        for (PeerFileMetadata fileMetadata : fileManager.listSharedFiles()) {
+            assertTrue(fileManager.getCatalogFilter().mightContain(fileMetadata));
+        }
+    }
+
+    @Test
+    public void testDuplicateContentStaysSharedWhileOneCopyRemains() throws IOException, InterruptedException {
+        Files.write(sourceDir.resolve("x"), new byte[] {7});
+        Files.write(sourceDir.resolve("sub").resolve("y"), new byte[] {7});
+        PeerFileMetadata duplicate = fileManager.listSharedFiles().stream()
+            .filter(fileMetadata -> fileMetadata.getFilename().equals("x") || fileMetadata.getFilename().equals("y"))
+            .findFirst().orElseThrow();
+        long version = fileManager.getCatalogVersion();
+
+        // Whichever copy was indexed last, deleting a copy that was just added again removes the most recent path
+        Files.delete(sourceDir.resolve("x"));
+        awaitVersionAfter(version);
+        Files.write(sourceDir.resolve("x"), new byte[] {7});
+        awaitVersionAfter(version + 1);
+        Files.delete(sourceDir.resolve("x"));
+        awaitVersionAfter(version + 2);
+
+        assertTrue(fileManager.isShared(duplicate));
+        assertTrue(fileManager.listSharedFiles().contains(duplicate));
+        assertFalse(fileManager.getCatalogChanges(version).getRemoved().contains(duplicate));
+    }
+
+    private void awaitVersionAfter(long version) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (fileManager.getCatalogVersion() <= version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(fileManager.getCatalogVersion() > version);
+    }
+
+    private Set<String> filenames() throws IOException {
+        return filenames(fileManager.listSharedFiles());
+    }
+
+    private Set<String> filenames(Set<PeerFileMetadata> fileMetadatas) {
+        Set<String> filenames = new HashSet<>();
+        for (PeerFileMetadata fileMetadata : fileMetadatas) {
+            filenames.add(fileMetadata.getFilename());
+        }
+        return filenames;
+    }
+}
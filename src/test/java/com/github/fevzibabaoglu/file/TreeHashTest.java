@@ -0,0 +1,66 @@
+package com.github.fevzibabaoglu.file;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TreeHashTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testParallelAndSequentialTreesMatch() throws IOException, NoSuchAlgorithmException {
+        byte[] data = new byte[BLOCK_SIZE * 7 + 13];
+        new Random(1).nextBytes(data);
+        Path path = tempDir.resolve("file");
+        Files.write(path, data);
+
+        TreeHash parallel = TreeHash.compute(path, BLOCK_SIZE, ForkJoinPool.commonPool(), null);
+        TreeHash sequential = TreeHash.computeWithFileDigest(path, BLOCK_SIZE, ForkJoinPool.commonPool(), null);
+
+        assertEquals(8, parallel.getBlockCount());
+        assertArrayEquals(parallel.getRoot(), sequential.getRoot());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), sequential.getFileDigest(), "Whole-file digest changed.");
+
+        // The last leaf only covers the remaining bytes
+        assertArrayEquals(TreeHash.leafHash(data, BLOCK_SIZE * 7, 13), parallel.getLeaf(7));
+    }
+
+    @Test
+    public void testEmptyFileHasRoot() throws IOException, NoSuchAlgorithmException {
+        Path path = tempDir.resolve("empty");
+        Files.write(path, new byte[0]);
+
+        TreeHash treeHash = TreeHash.compute(path, BLOCK_SIZE, ForkJoinPool.commonPool(), null);
+        assertEquals(1, treeHash.getBlockCount());
+        assertArrayEquals(TreeHash.leafHash(new byte[0], 0, 0), treeHash.getRoot());
+    }
+
+    @Test
+    public void testProofsVerifyEveryBlock() throws IOException, NoSuchAlgorithmException {
+        byte[] data = new byte[BLOCK_SIZE * 6 + 1];
+        new Random(2).nextBytes(data);
+        Path path = tempDir.resolve("proofs");
+        Files.write(path, data);
+
+        TreeHash treeHash = TreeHash.compute(path, BLOCK_SIZE, ForkJoinPool.commonPool(), null);
+        for (int i = 0; i < treeHash.getBlockCount(); i++) {
+            byte[][] proof = treeHash.getProof(i);
+            assertTrue(TreeHash.verify(treeHash.getRoot(), treeHash.getBlockCount(), i, treeHash.getLeaf(i), proof), "Proof of block " + i + " was rejected.");
+        }
+
+        // A corrupt block must not verify
+        byte[] corruptLeaf = TreeHash.leafHash(new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+        assertFalse(TreeHash.verify(treeHash.getRoot(), treeHash.getBlockCount(), 3, corruptLeaf, treeHash.getProof(3)));
+    }
+}
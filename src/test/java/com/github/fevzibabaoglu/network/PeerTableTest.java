@@ -0,0 +1,61 @@
+package com.github.fevzibabaoglu.network;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerTableTest {
+
+    private PeerTable peerTable;
+    private Map<Peer, Set<PeerFileMetadata>> catalogs;
+    private Peer peerA;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        peerTable = new PeerTable();
+        catalogs = new ConcurrentHashMap<>();
+        peerTable.setCatalogSource(catalogs::get);
+
+        // A discovery response of the local peer knowing A on one of its interfaces
+        PeerNetworkInterface localInterface = networkInterface("10.0.1.1");
+        Peer localPeerView = Peer.of(Set.of("local"), List.of(localInterface));
+        peerA = Peer.of(Set.of("a"), List.of(networkInterface("10.0.1.2")));
+        localPeerView.addKnownPeerToInterface(localInterface, peerA);
+        peerTable.merge(localPeerView, 0);
+    }
+
+    @Test
+    public void testSnapshotsCarryCachedCatalogs() throws Exception {
+        Peer snapshot = peerTable.snapshot(0);
+        assertEquals(Set.of(), find(snapshot, peerA).getFileMetadatas());
+
+        byte[] hash = new byte[32];
+        Set<PeerFileMetadata> catalog = Set.of(PeerFileMetadata.of("a", 1, 256 * 1024, hash, hash));
+        catalogs.put(peerA, catalog);
+        // Unchanged until the table is told, and the snapshot handed out before stays as it was
+        assertSame(snapshot, peerTable.snapshot(0));
+        peerTable.onCatalogUpdated();
+        Peer newSnapshot = peerTable.snapshot(0);
+
+        assertNotSame(snapshot, newSnapshot);
+        assertEquals(catalog, find(newSnapshot, peerA).getFileMetadatas());
+        assertEquals(Set.of(), find(snapshot, peerA).getFileMetadatas());
+    }
+
+    private static Peer find(Peer view, Peer peer) {
+        return view.getReachablePeers().stream().filter(peer::equals).findFirst().orElseThrow();
+    }
+
+    private static PeerNetworkInterface networkInterface(String localIPAddress) throws Exception {
+        InetAddress address = InetAddress.getByName(localIPAddress);
+        byte[] broadcast = address.getAddress();
+        broadcast[3] = (byte) 255;
+        return PeerNetworkInterface.of(address, (short) 24, InetAddress.getByAddress(broadcast));
+    }
+}
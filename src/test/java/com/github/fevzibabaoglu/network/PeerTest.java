@@ -0,0 +1,47 @@
+package com.github.fevzibabaoglu.network;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerTest {
+
+    private Peer peer;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        peer = peer(1000, 5);
+    }
+
+    @Test
+    public void testNewerCatalogIsAdopted() throws Exception {
+        peer.mergePeer(peer(1000, 6));
+        assertEquals(6, peer.getCatalogVersion());
+
+        // A restart starts over at a lower version in a later epoch
+        peer.mergePeer(peer(2000, 1));
+        assertEquals(2000, peer.getCatalogEpoch());
+        assertEquals(1, peer.getCatalogVersion());
+    }
+
+    @Test
+    public void testOlderCatalogIsIgnored() throws Exception {
+        peer.mergePeer(peer(1000, 4));
+        assertEquals(5, peer.getCatalogVersion());
+
+        // A delayed response from before the restart, whatever its version
+        peer.mergePeer(peer(500, 100));
+        assertEquals(1000, peer.getCatalogEpoch());
+        assertEquals(5, peer.getCatalogVersion());
+    }
+
+    private static Peer peer(long catalogEpoch, long catalogVersion) throws Exception {
+        InetAddress address = InetAddress.getByName("10.0.1.1");
+        Peer peer = Peer.of(Set.of("local"), List.of(PeerNetworkInterface.of(address, (short) 24, InetAddress.getByName("10.0.1.255"))));
+        peer.setCatalogVersion(catalogEpoch, catalogVersion);
+        return peer;
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.fevzibabaoglu.network;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoutingTableTest {
+
+    // The local peer reaches B over A, and may also reach it directly on a second subnet:
+    // local 10.0.1.1 -- 10.0.1.2 A 10.0.3.1 -- 10.0.3.2 B, local 10.0.2.1 -- 10.0.2.2 B
+    private Peer localPeer;
+    private Peer peerA;
+    private Peer peerB;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        localPeer = peer("local", "10.0.1.1", "10.0.2.1");
+        peerA = peer("a", "10.0.1.2", "10.0.3.1");
+        peerB = peer("b", "10.0.3.2", "10.0.2.2");
+
+        localPeer.addKnownPeerToInterface(networkInterface("10.0.1.1"), peerA);
+        peerA.addKnownPeerToInterface(networkInterface("10.0.3.1"), peerB);
+    }
+
+    @Test
+    public void testShortestRoutes() throws Exception {
+        assertEquals(List.of(), localPeer.getRouteToPeer(localPeer));
+        assertEquals(List.of(networkInterface("10.0.1.2")), localPeer.getRouteToPeer(peerA));
+        assertEquals(List.of(networkInterface("10.0.1.2"), networkInterface("10.0.3.2")), localPeer.getRouteToPeer(peerB));
+        assertEquals(networkInterface("10.0.1.2"), localPeer.getRoutingTable().getNextHop(peerB));
+        assertEquals(3, localPeer.getRoutingTable().size());
+    }
+
+    @Test
+    public void testUnreachablePeerHasNoRoute() throws Exception {
+        Peer peerC = peer("c", "10.0.9.1");
+        assertNull(localPeer.getRouteToPeer(peerC));
+        assertNull(localPeer.getRoutingTable().getNextHop(peerC));
+    }
+
+    @Test
+    public void testMergeOfShorterPathChangesRoute() throws Exception {
+        RoutingTable table = localPeer.getRoutingTable();
+
+        assertTrue(localPeer.mergePeer(directView()));
+        assertNotSame(table, localPeer.getRoutingTable());
+        assertEquals(List.of(networkInterface("10.0.2.2")), localPeer.getRouteToPeer(peerB));
+    }
+
+    @Test
+    public void testUnchangedMergeKeepsTable() throws Exception {
+        assertTrue(localPeer.mergePeer(directView()));
+        RoutingTable table = localPeer.getRoutingTable();
+
+        assertFalse(localPeer.mergePeer(directView()));
+        assertSame(table, localPeer.getRoutingTable());
+    }
+
+    // The local peer as a discovery response describes it, knowing B on its second interface
+    private Peer directView() throws Exception {
+        Peer view = peer("local", "10.0.1.1", "10.0.2.1");
+        view.addKnownPeerToInterface(networkInterface("10.0.2.1"), peer("b", "10.0.3.2", "10.0.2.2"));
+        return view;
+    }
+
+    private static Peer peer(String macAddress, String... localIPAddresses) throws Exception {
+        List<PeerNetworkInterface> peerNetworkInterfaces = new ArrayList<>();
+        for (String localIPAddress : localIPAddresses) {
+            peerNetworkInterfaces.add(networkInterface(localIPAddress));
+        }
+        return Peer.of(Set.of(macAddress), peerNetworkInterfaces);
+    }
+
+    private static PeerNetworkInterface networkInterface(String localIPAddress) throws Exception {
+        InetAddress address = InetAddress.getByName(localIPAddress);
+        byte[] broadcast = address.getAddress();
+        broadcast[3] = (byte) 255;
+        return PeerNetworkInterface.of(address, (short) 24, InetAddress.getByAddress(broadcast));
+    }
+}
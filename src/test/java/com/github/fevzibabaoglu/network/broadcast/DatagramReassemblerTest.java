@@ -0,0 +1,140 @@
+package com.github.fevzibabaoglu.network.broadcast;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatagramReassemblerTest {
+
+    private static final long REASSEMBLY_TIMEOUT = 5000;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private DatagramReassembler reassembler;
+    private InetAddress source;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        reassembler = new DatagramReassembler();
+        source = InetAddress.getByName("10.0.0.1");
+    }
+
+    @Test
+    public void testOutOfOrderFragments() {
+        byte[] message = randomMessage(5000);
+        List<byte[]> datagrams = DatagramFragmenter.fragment(message);
+        assertTrue(datagrams.size() > 2);
+        Collections.reverse(datagrams);
+
+        for (int i = 0; i < datagrams.size() - 1; i++) {
+            assertNull(receive(datagrams.get(i), 0));
+        }
+        assertEquals(1, reassembler.getPendingMessageCount());
+        assertArrayEquals(message, receive(datagrams.get(datagrams.size() - 1), 0));
+        assertEquals(0, reassembler.getPendingMessageCount());
+        assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    @Test
+    public void testDuplicateFragmentsAreIgnored() {
+        byte[] message = randomMessage(3000);
+        List<byte[]> datagrams = DatagramFragmenter.fragment(message);
+
+        assertNull(receive(datagrams.get(0), 0));
+        int pendingBytes = reassembler.getPendingBytes();
+        assertNull(receive(datagrams.get(0), 0));
+        assertEquals(pendingBytes, reassembler.getPendingBytes());
+
+        byte[] reassembled = null;
+        for (int i = 1; i < datagrams.size(); i++) {
+            reassembled = receive(datagrams.get(i), 0);
+        }
+        assertArrayEquals(message, reassembled);
+        // A late duplicate of a completed message starts over and never completes on its own
+        assertNull(receive(datagrams.get(0), 0));
+    }
+
+    @Test
+    public void testCompressedAndUnfragmentedMessages() {
+        byte[] compressible = new byte[100000];
+        List<byte[]> datagrams = DatagramFragmenter.fragment(compressible);
+        assertEquals(1, datagrams.size());
+        assertEquals(DatagramFragmenter.FLAG_COMPRESSED, datagrams.get(0)[3]);
+        assertArrayEquals(compressible, receive(datagrams.get(0), 0));
+
+        // A serialized message from a peer that does not fragment is passed on as it is
+        byte[] legacy = {(byte) 0xAC, (byte) 0xED, 0, 5, 1, 2};
+        assertArrayEquals(legacy, receive(legacy, 0));
+    }
+
+    @Test
+    public void testMissingFragmentExpires() {
+        List<byte[]> datagrams = DatagramFragmenter.fragment(randomMessage(5000));
+        for (int i = 1; i < datagrams.size(); i++) {
+            assertNull(receive(datagrams.get(i), 0));
+        }
+        assertEquals(1, reassembler.getPendingMessageCount());
+
+        // Expired as soon as another datagram arrives after the timeout, the missing fragment alone completes nothing
+        List<byte[]> other = DatagramFragmenter.fragment(randomMessage(3000));
+        assertNull(receive(other.get(0), REASSEMBLY_TIMEOUT - 1));
+        assertEquals(2, reassembler.getPendingMessageCount());
+        assertNull(receive(other.get(1), REASSEMBLY_TIMEOUT));
+        assertEquals(1, reassembler.getPendingMessageCount());
+        assertNull(receive(datagrams.get(0), REASSEMBLY_TIMEOUT));
+    }
+
+    @Test
+    public void testMalformedFragmentsAreDropped() {
+        assertNull(receive(fragment(1, 0, 0, new byte[10]), 0));
+        assertNull(receive(fragment(1, 3, 3, new byte[10]), 0));
+        byte[] wrongVersion = fragment(1, 0, 2, new byte[10]);
+        wrongVersion[2] = DatagramFragmenter.VERSION + 1;
+        assertNull(receive(wrongVersion, 0));
+        assertEquals(0, reassembler.getPendingMessageCount());
+    }
+
+    @Test
+    public void testInconsistentFragmentCountIsIgnored() {
+        assertNull(receive(fragment(7, 0, 2, new byte[] {1}), 0));
+        assertNull(receive(fragment(7, 1, 3, new byte[] {2}), 0));
+        assertArrayEquals(new byte[] {1, 3}, receive(fragment(7, 1, 2, new byte[] {3}), 0));
+    }
+
+    @Test
+    public void testOversizedMessageIsDropped() {
+        int payloadSize = DatagramFragmenter.DATAGRAM_SIZE - DatagramFragmenter.HEADER_LENGTH;
+        int fragmentCount = MAX_MESSAGE_SIZE / payloadSize + 2;
+        byte[] payload = new byte[payloadSize];
+
+        for (int i = 0; i < fragmentCount - 2; i++) {
+            assertNull(receive(fragment(9, i, fragmentCount, payload), 0));
+        }
+        assertTrue(reassembler.getPendingBytes() > MAX_MESSAGE_SIZE - payloadSize);
+        assertNull(receive(fragment(9, fragmentCount - 2, fragmentCount, payload), 0));
+        assertEquals(0, reassembler.getPendingMessageCount());
+        assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    private byte[] receive(byte[] datagram, long now) {
+        // Datagrams are received into larger buffers
+        byte[] buffer = Arrays.copyOf(datagram, datagram.length + 16);
+        return reassembler.receive(buffer, datagram.length, source, now);
+    }
+
+    private static byte[] fragment(int messageId, int fragmentIndex, int fragmentCount, byte[] payload) {
+        ByteBuffer datagram = ByteBuffer.allocate(DatagramFragmenter.HEADER_LENGTH + payload.length);
+        datagram.putShort(DatagramFragmenter.MAGIC).put(DatagramFragmenter.VERSION).put((byte) 0).putInt(messageId);
+        datagram.putShort((short) fragmentIndex).putShort((short) fragmentCount).put(payload);
+        return datagram.array();
+    }
+
+    private static byte[] randomMessage(int length) {
+        byte[] message = new byte[length];
+        new Random(length).nextBytes(message);
+        return message;
+    }
+}
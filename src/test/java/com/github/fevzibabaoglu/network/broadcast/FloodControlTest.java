@@ -0,0 +1,80 @@
+package com.github.fevzibabaoglu.network.broadcast;
+
+import org.junit.jupiter.api.*;
+
+import com.github.fevzibabaoglu.network.broadcast.FloodControl.Verdict;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FloodControlTest {
+
+    private static final int ORIGIN_BURST = 5;
+    private static final int MAX_TRACKED_ORIGINS = 1024;
+
+    private FloodControl floodControl;
+
+    @BeforeEach
+    public void setUp() {
+        floodControl = new FloodControl();
+    }
+
+    @Test
+    public void testCopiesAreForwardedOnlyWithMoreTtlLeft() {
+        assertEquals(Verdict.FORWARD, floodControl.onReceived(1, 1, 3, 0));
+        assertEquals(Verdict.DUPLICATE, floodControl.onReceived(1, 1, 3, 0));
+        assertEquals(Verdict.DUPLICATE, floodControl.onReceived(1, 1, 2, 0));
+        assertEquals(Verdict.FORWARD, floodControl.onReceived(1, 1, 5, 0));
+        assertEquals(Verdict.DUPLICATE, floodControl.onReceived(1, 1, 4, 0));
+
+        assertEquals(2, floodControl.getForwardedCount());
+        assertEquals(3, floodControl.getDuplicateCount());
+    }
+
+    @Test
+    public void testOwnMessagesAreNeverForwarded() {
+        floodControl.onSent(1, 1, 0);
+        assertEquals(Verdict.DUPLICATE, floodControl.onReceived(1, 1, 100, 0));
+    }
+
+    @Test
+    public void testOriginsAreRateLimited() {
+        for (int i = 0; i < ORIGIN_BURST; i++) {
+            assertEquals(Verdict.FORWARD, floodControl.onReceived(1, i, 3, 0));
+        }
+        assertEquals(Verdict.DROP, floodControl.onReceived(1, ORIGIN_BURST, 3, 0));
+        // Copies of a dropped message stay dropped, whatever TTL they carry
+        assertEquals(Verdict.DROP, floodControl.onReceived(1, ORIGIN_BURST, 10, 0));
+        // Other origins have their own buckets
+        assertEquals(Verdict.FORWARD, floodControl.onReceived(2, 0, 3, 0));
+        // One token every five seconds at the default rate
+        assertEquals(Verdict.FORWARD, floodControl.onReceived(1, ORIGIN_BURST + 1, 3, 5000));
+
+        assertEquals(2, floodControl.getRateLimitedCount());
+    }
+
+    @Test
+    public void testTrackedOriginsAreCapped() {
+        for (int i = 0; i <= ORIGIN_BURST; i++) {
+            floodControl.onReceived(0, i, 3, 0);
+        }
+        for (long originId = 1; originId < MAX_TRACKED_ORIGINS; originId++) {
+            floodControl.onReceived(originId, 0, 3, 0);
+        }
+        assertEquals(MAX_TRACKED_ORIGINS, floodControl.getTrackedOriginCount());
+
+        // Still tracked, and now the origin that sent last
+        assertEquals(Verdict.DROP, floodControl.onReceived(0, ORIGIN_BURST + 1, 3, 0));
+        for (long originId = MAX_TRACKED_ORIGINS; originId < 2 * MAX_TRACKED_ORIGINS - 1; originId++) {
+            floodControl.onReceived(originId, 0, 3, 0);
+        }
+        assertEquals(MAX_TRACKED_ORIGINS, floodControl.getTrackedOriginCount());
+        assertEquals(Verdict.DROP, floodControl.onReceived(0, ORIGIN_BURST + 2, 3, 0));
+
+        // Pushed out by as many other origins, it starts over with a full bucket
+        for (long originId = 2 * MAX_TRACKED_ORIGINS; originId < 3 * MAX_TRACKED_ORIGINS; originId++) {
+            floodControl.onReceived(originId, 0, 3, 0);
+        }
+        assertEquals(MAX_TRACKED_ORIGINS, floodControl.getTrackedOriginCount());
+        assertEquals(Verdict.FORWARD, floodControl.onReceived(0, ORIGIN_BURST + 3, 3, 0));
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkSchedulerTest {
+
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void testSourcesPullFromSharedQueue() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1, 2, 3, 4));
+        scheduler.addSource("a");
+        scheduler.addSource("b");
+
+        assertEquals(List.of(0, 1), scheduler.nextBatch("a", 0));
+        assertEquals(List.of(2, 3), scheduler.nextBatch("b", 0));
+        // No credits left until a chunk arrives
+        assertEquals(List.of(), scheduler.nextBatch("a", 0));
+
+        assertTrue(scheduler.onReceived("a", 0, 100));
+        assertEquals(4, scheduler.getRemainingCount());
+        assertFalse(scheduler.isEndgame());
+        // The last pending chunk, then a copy of the oldest request of another source
+        assertEquals(List.of(4, 2), scheduler.nextBatch("a", 100));
+        assertTrue(scheduler.isEndgame());
+    }
+
+    @Test
+    public void testExpiredChunksAreRequeuedForAnySource() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1, 2, 3));
+        scheduler.addSource("a");
+        assertEquals(List.of(0, 1), scheduler.nextBatch("a", 0));
+
+        scheduler.expire(TIMEOUT - 1);
+        assertEquals(2, scheduler.getWindow("a").getInFlightCount());
+        scheduler.expire(TIMEOUT);
+        assertEquals(0, scheduler.getWindow("a").getInFlightCount());
+        assertEquals(1, scheduler.getWindow("a").getWindow());
+
+        // Requeued at the front, ahead of the chunks never requested
+        scheduler.addSource("b");
+        assertEquals(Set.of(0, 1), new HashSet<>(scheduler.nextBatch("b", TIMEOUT)));
+        assertEquals(List.of(2), scheduler.nextBatch("a", TIMEOUT));
+    }
+
+    @Test
+    public void testRejectedChunksGoToOtherSources() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1, 2, 3));
+        scheduler.addSource("a");
+        scheduler.addSource("b");
+        assertEquals(List.of(0, 1), scheduler.nextBatch("a", 0));
+
+        scheduler.onRejected("a", 0, 0);
+        assertEquals(2, scheduler.nextBatch("a", 0).get(0));
+        assertEquals(List.of(0, 3), scheduler.nextBatch("b", 0));
+    }
+
+    @Test
+    public void testRejectedChunkIsRetriedWithoutOtherSources() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1));
+        scheduler.addSource("a");
+        assertEquals(List.of(0, 1), scheduler.nextBatch("a", 0));
+
+        scheduler.onRejected("a", 0, 0);
+        assertEquals(List.of(0), scheduler.nextBatch("a", 0));
+    }
+
+    @Test
+    public void testEndgameCopiesAreLimited() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1));
+        scheduler.addSource("a");
+        scheduler.addSource("b");
+        scheduler.addSource("c");
+        assertEquals(List.of(0, 1), scheduler.nextBatch("a", 0));
+        assertTrue(scheduler.isEndgame());
+
+        // Every chunk is already requested, an idle source duplicates the oldest requests
+        assertEquals(List.of(0, 1), scheduler.nextBatch("b", 0));
+        // At most two copies of a chunk are in flight
+        assertEquals(List.of(), scheduler.nextBatch("c", 0));
+
+        // The first copy to arrive cancels the other, whose source gets its credit back
+        assertTrue(scheduler.onReceived("b", 0, 100));
+        assertFalse(scheduler.getWindow("a").isInFlight(0));
+        assertEquals(1, scheduler.getWindow("a").getInFlightCount());
+        assertFalse(scheduler.onReceived("a", 0, 200));
+
+        assertTrue(scheduler.onReceived("a", 1, 200));
+        assertTrue(scheduler.isComplete());
+        assertFalse(scheduler.isEndgame());
+    }
+
+    @Test
+    public void testFailedRequestsAreRequeued() {
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1, 2));
+        scheduler.addSource("a");
+        scheduler.addSource("b");
+        List<Integer> batch = scheduler.nextBatch("a", 0);
+
+        scheduler.onRequestFailed("a", batch, 0);
+        assertEquals(0, scheduler.getWindow("a").getInFlightCount());
+        assertEquals(Set.of(0, 1), new HashSet<>(scheduler.nextBatch("b", 0)));
+
+        // A source the scheduler does not know has nothing to give back
+        assertDoesNotThrow(() -> scheduler.onRequestFailed("c", List.of(2), 0));
+        assertEquals(2, scheduler.nextBatch("a", 0).get(0));
+    }
+
+    @Test
+    public void testBetterRankedSourcesComeFirst() {
+        Map<String, Double> scores = Map.of("a", 1.0, "b", 3.0);
+        ChunkScheduler<String> scheduler = new ChunkScheduler<>(List.of(0, 1, 2, 3), scores::get);
+        scheduler.addSource("a");
+        scheduler.addSource("b");
+        assertEquals(List.of("b", "a"), scheduler.getSources());
+    }
+}
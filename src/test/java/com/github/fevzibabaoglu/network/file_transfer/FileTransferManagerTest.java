@@ -0,0 +1,69 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.fevzibabaoglu.file.FileManager;
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+import com.github.fevzibabaoglu.network.PeerNetworkInterface;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileTransferManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FileManager fileManager;
+    private FileTransferManager fileTransferManager;
+    private Peer localPeer;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Path sourceDir = Files.createDirectories(tempDir.resolve("share"));
+        Files.write(sourceDir.resolve("a"), new byte[] {1});
+        fileManager = new FileManager(sourceDir.toString(), tempDir.toString(), 256 * 1024, tempDir.resolve("state").resolve("hash-index"));
+
+        fileTransferManager = new FileTransferManager(null, fileManager);
+        localPeer = new Peer();
+        fileTransferManager.setLocalPeer(localPeer);
+    }
+
+    @Test
+    public void testUnreachableListedHopFallsBackToLocalRouting() throws Exception {
+        Set<PeerNetworkInterface> peerNetworkInterfaces = localPeer.getPeerNetworkInterfaces();
+        Assumptions.assumeFalse(peerNetworkInterfaces.isEmpty(), "No IPv4 interface to route over");
+        // Nothing listens for transfers on the local address, so the listed next hop refuses the connection
+        InetAddress localIPAddress = peerNetworkInterfaces.iterator().next().getLocalIPAddress();
+        PeerFileMetadata fileMetadata = fileManager.listSharedFiles().iterator().next();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(bytes);
+        WireProtocol.writeRoute(channel, List.of(localIPAddress, localIPAddress));
+        WireProtocol.writeFileQuery(channel, new FileQueryMessage(localPeer, localPeer, fileMetadata, true, true));
+
+        AtomicBoolean answered = new AtomicBoolean(false);
+        CountDownLatch routedLocally = new CountDownLatch(1);
+        fileTransferManager.setFileQueryListener((peer, answeredFileMetadata, found) -> {
+            answered.set(peer.equals(localPeer) && answeredFileMetadata.equals(fileMetadata) && found);
+            routedLocally.countDown();
+        });
+        // The relay is sent on a sender thread, the worker handling the frame returns right away
+        fileTransferManager.handleFrame(bytes.toByteArray(), localIPAddress);
+
+        assertTrue(routedLocally.await(10, TimeUnit.SECONDS));
+        assertEquals(1, fileTransferManager.getUnreachableHopCount());
+        assertTrue(answered.get());
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestWindowTest {
+
+    private static final long RTT = 100;
+
+    private RequestWindow window;
+
+    @BeforeEach
+    public void setUp() {
+        window = new RequestWindow();
+    }
+
+    @Test
+    public void testSlowStartGrowsByOnePerChunk() {
+        assertEquals(2, window.getCredits());
+        window.onRequested(0, 0);
+        window.onRequested(1, 0);
+        assertEquals(0, window.getCredits());
+
+        assertTrue(window.onReceived(0, RTT));
+        assertEquals(3, window.getWindow());
+        assertEquals(2, window.getCredits());
+        assertTrue(window.onReceived(1, RTT));
+        assertEquals(4, window.getWindow());
+        assertEquals(RTT, window.getSmoothedRtt());
+    }
+
+    @Test
+    public void testGrowthStopsWhileQueueing() {
+        window.onRequested(0, 0);
+        window.onReceived(0, RTT);
+        assertEquals(3, window.getWindow());
+
+        // Round trips ten times the fastest one seen mean requests are queueing at the source
+        long now = RTT;
+        for (int chunkIndex = 1; chunkIndex <= 5; chunkIndex++) {
+            window.onRequested(chunkIndex, now);
+            now += 10 * RTT;
+            window.onReceived(chunkIndex, now);
+        }
+        assertEquals(3, window.getWindow());
+    }
+
+    @Test
+    public void testMinRttExpires() {
+        window.onRequested(0, 0);
+        window.onReceived(0, RTT);
+        assertEquals(RTT, window.getMinRtt());
+
+        // Slower round trips within the window keep the fastest one
+        window.onRequested(1, 5000);
+        window.onReceived(1, 5000 + 3 * RTT);
+        assertEquals(RTT, window.getMinRtt());
+
+        // Once it is older than the window the latest sample takes its place, faster ones replace it right away
+        window.onRequested(2, 10000);
+        window.onReceived(2, 10000 + 3 * RTT);
+        assertEquals(3 * RTT, window.getMinRtt());
+        window.onRequested(3, 11000);
+        window.onReceived(3, 11000 + 2 * RTT);
+        assertEquals(2 * RTT, window.getMinRtt());
+    }
+
+    @Test
+    public void testLossHalvesWindowOncePerRoundTrip() {
+        long now = grow(8);
+        for (int chunkIndex = 0; chunkIndex < 8; chunkIndex++) {
+            window.onRequested(chunkIndex, now);
+        }
+
+        window.onLost(0, now);
+        assertEquals(4, window.getWindow());
+        // Part of the same congestion event
+        window.onLost(1, now + RTT / 2);
+        assertEquals(4, window.getWindow());
+        window.onLost(2, now + 2 * RTT);
+        assertEquals(2, window.getWindow());
+        assertEquals(5, window.getInFlightCount());
+
+        window.onLost(3, now + 4 * RTT);
+        window.onLost(4, now + 6 * RTT);
+        assertEquals(1, window.getWindow());
+    }
+
+    @Test
+    public void testCancelIsNotALoss() {
+        long now = grow(4);
+        window.onRequested(0, now);
+        window.cancel(0);
+        assertEquals(0, window.getInFlightCount());
+        assertEquals(4, window.getWindow());
+        assertFalse(window.onReceived(0, now + RTT));
+    }
+
+    @Test
+    public void testExpiredChunksAreReturnedAndShrinkWindow() {
+        assertEquals(5000, window.getTimeout());
+        window.onRequested(0, 0);
+        window.onRequested(1, 1000);
+        assertEquals(0, window.getOldestRequestTime());
+
+        assertEquals(List.of(), window.expire(4999));
+        assertEquals(List.of(0), window.expire(5000));
+        assertEquals(1, window.getWindow());
+        assertEquals(1000, window.getOldestRequestTime());
+        assertEquals(List.of(1), window.expire(6000));
+        assertEquals(-1, window.getOldestRequestTime());
+
+        // A chunk arriving after it timed out is no longer counted
+        assertFalse(window.onReceived(0, 7000));
+    }
+
+    @Test
+    public void testTimeoutFollowsRoundTripTime() {
+        window.onRequested(0, 0);
+        window.onReceived(0, 2000);
+        // Smoothed round trip time plus four times its variance, half the first sample
+        assertEquals(6000, window.getTimeout());
+
+        window = new RequestWindow();
+        window.onRequested(0, 0);
+        window.onReceived(0, RTT);
+        assertEquals(1000, window.getTimeout());
+    }
+
+    // Slow start with a steady round trip time until the window has the given size, returns the time after
+    private long grow(int size) {
+        long now = 0;
+        for (int chunkIndex = 0; window.getWindow() < size; chunkIndex++) {
+            window.onRequested(chunkIndex, now);
+            now += RTT;
+            window.onReceived(chunkIndex, now);
+        }
+        assertEquals(size, window.getWindow());
+        return now;
+    }
+}
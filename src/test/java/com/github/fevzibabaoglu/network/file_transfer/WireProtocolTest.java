@@ -0,0 +1,256 @@
+package com.github.fevzibabaoglu.network.file_transfer;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+import com.github.fevzibabaoglu.file.PeerFileMetadata;
+import com.github.fevzibabaoglu.network.Peer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WireProtocolTest {
+
+    private Peer peer;
+    private PeerFileMetadata fileMetadata;
+    private WireProtocol.Resolver resolver;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        peer = new Peer();
+        byte[] hash = new byte[32];
+        byte[] rootHash = new byte[32];
+        Arrays.fill(hash, (byte) 1);
+        Arrays.fill(rootHash, (byte) 2);
+        fileMetadata = PeerFileMetadata.of("file", 1000, 256, hash, rootHash);
+
+        resolver = new WireProtocol.Resolver() {
+            @Override
+            public Peer resolvePeer(long peerId) {
+                return (peerId == peer.getPeerId()) ? peer : null;
+            }
+
+            @Override
+            public PeerFileMetadata resolveFile(PeerFileMetadata fileReference) {
+                return fileReference.equals(fileMetadata) ? fileMetadata : fileReference;
+            }
+        };
+    }
+
+    @Test
+    public void testRequestRoundTrip() throws IOException {
+        Set<Integer> chunkIndices = new LinkedHashSet<>(List.of(3, 1, 2));
+        byte[] frame = write(channel -> WireProtocol.writeRequest(channel, new PeerFileMetadataRequestMessage(peer, peer, fileMetadata, chunkIndices)));
+
+        DataInputStream in = read(frame, WireProtocol.FRAME_REQUEST);
+        PeerFileMetadataRequestMessage message = WireProtocol.readRequest(in, resolver);
+        assertSame(peer, message.getSender());
+        assertSame(peer, message.getReceiver());
+        assertEquals(fileMetadata, message.getFileMetadata());
+        assertEquals(List.of(3, 1, 2), new ArrayList<>(message.getChunkIndices()));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testChunkRoundTrip() throws IOException {
+        byte[] chunkData = {5, 6, 7};
+        byte[][] proof = {new byte[] {8}, new byte[] {9, 10}};
+        byte[] frame = write(channel -> WireProtocol.writeChunk(channel, new FileChunkMessage(peer, peer, fileMetadata, 2, chunkData, proof)));
+
+        DataInputStream in = read(frame, WireProtocol.FRAME_CHUNK);
+        FileChunkMessage header = WireProtocol.readChunkHeader(in, resolver);
+        // The filename is not sent with chunks, the file is resolved from the reference
+        assertSame(fileMetadata, header.getFileMetadata());
+        assertSame(peer, header.getReceiver());
+        assertEquals(2, header.getChunkIndex());
+        assertNull(header.getChunkData());
+        assertEquals(2, header.getProof().length);
+        assertArrayEquals(new byte[] {9, 10}, header.getProof()[1]);
+
+        int payloadLength = WireProtocol.readPayloadLength(in);
+        assertArrayEquals(chunkData, WireProtocol.readPayload(in, payloadLength));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testRoutedFrameRoundTrip() throws IOException {
+        List<InetAddress> hops = List.of(InetAddress.getByName("10.0.0.1"), InetAddress.getByName("10.0.1.1"));
+        byte[] frame = write(channel -> {
+            WireProtocol.writeRoute(channel, hops);
+            WireProtocol.writeCatalogRequest(channel, new CatalogRequestMessage(peer, peer, 1, 2));
+        });
+
+        assertEquals(WireProtocol.FRAME_ROUTED, frame[0]);
+        assertEquals(frame.length, WireProtocol.bufferedFrameLength(ByteBuffer.wrap(frame)));
+        assertEquals(2, WireProtocol.getRouteHopCount(frame));
+        assertEquals(1, WireProtocol.getRouteNextHop(frame));
+        assertEquals(hops.get(1), WireProtocol.getRouteHop(frame, 1));
+
+        WireProtocol.advanceRoute(frame);
+        assertEquals(2, WireProtocol.getRouteNextHop(frame));
+        int offset = WireProtocol.getRouteLength(frame);
+        assertEquals(peer.getPeerId(), WireProtocol.peekReceiverId(frame, offset));
+        assertEquals(WireProtocol.FRAME_CATALOG_REQUEST, frame[offset]);
+    }
+
+    @Test
+    public void testCatalogRequestRoundTrip() throws IOException {
+        byte[] frame = write(channel -> WireProtocol.writeCatalogRequest(channel, new CatalogRequestMessage(peer, peer, 42, 7)));
+
+        CatalogRequestMessage message = WireProtocol.readCatalogRequest(read(frame, WireProtocol.FRAME_CATALOG_REQUEST), resolver);
+        assertSame(peer, message.getSender());
+        assertEquals(42, message.getCatalogEpoch());
+        assertEquals(7, message.getSinceVersion());
+    }
+
+    @Test
+    public void testCatalogRoundTrip() throws IOException {
+        PeerFileMetadata removedMetadata = PeerFileMetadata.of("old", 10, 256, new byte[32], new byte[32]);
+        byte[] frame = write(channel -> WireProtocol.writeCatalog(channel, new CatalogMessage(peer, peer, 42, 3, 5, Set.of(fileMetadata), Set.of(removedMetadata))));
+
+        CatalogMessage message = WireProtocol.readCatalog(read(frame, WireProtocol.FRAME_CATALOG), resolver);
+        assertEquals(42, message.getCatalogEpoch());
+        assertEquals(3, message.getFromVersion());
+        assertEquals(5, message.getToVersion());
+        assertEquals(Set.of(fileMetadata), message.getAdded());
+        assertEquals(Set.of(removedMetadata), message.getRemoved());
+        assertEquals("old", message.getRemoved().iterator().next().getFilename());
+    }
+
+    @Test
+    public void testFileQueryRoundTrip() throws IOException {
+        for (boolean reply : new boolean[] {false, true}) {
+            for (boolean found : new boolean[] {false, true}) {
+                byte[] frame = write(channel -> WireProtocol.writeFileQuery(channel, new FileQueryMessage(peer, peer, fileMetadata, reply, found)));
+
+                FileQueryMessage message = WireProtocol.readFileQuery(read(frame, WireProtocol.FRAME_FILE_QUERY), resolver);
+                assertEquals(fileMetadata, message.getFileMetadata());
+                assertEquals("file", message.getFileMetadata().getFilename());
+                assertEquals(reply, message.isReply());
+                assertEquals(found, message.isFound());
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownPeersResolveToNull() throws IOException {
+        byte[] frame = write(channel -> WireProtocol.writeCatalogRequest(channel, new CatalogRequestMessage(peer, peer, 1, 1)));
+        WireProtocol.Resolver emptyResolver = new WireProtocol.Resolver() {
+            @Override
+            public Peer resolvePeer(long peerId) {
+                return null;
+            }
+
+            @Override
+            public PeerFileMetadata resolveFile(PeerFileMetadata fileReference) {
+                return fileReference;
+            }
+        };
+
+        CatalogRequestMessage message = WireProtocol.readCatalogRequest(read(frame, WireProtocol.FRAME_CATALOG_REQUEST), emptyResolver);
+        assertNull(message.getSender());
+        assertNull(message.getReceiver());
+    }
+
+    @Test
+    public void testBufferedFrameLengthCoversWholeFrames() throws IOException {
+        List<Message> messages = List.of(
+            new PeerFileMetadataRequestMessage(peer, peer, fileMetadata, Set.of(1, 2)),
+            new FileChunkMessage(peer, peer, fileMetadata, 1, new byte[10], null),
+            new CatalogRequestMessage(peer, peer, 1, 2),
+            new CatalogMessage(peer, peer, 1, 2, 3, Set.of(fileMetadata), Set.of()),
+            new FileQueryMessage(peer, peer, fileMetadata, false, false)
+        );
+        for (Message message : messages) {
+            byte[] frame = write(channel -> WireProtocol.writeMessage(channel, message));
+            // Followed by the start of the next frame, which must not be counted
+            ByteBuffer buffer = ByteBuffer.allocate(frame.length + 3).put(frame).put(WireProtocol.FRAME_REQUEST).flip();
+            assertEquals(frame.length, WireProtocol.bufferedFrameLength(buffer));
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testIncompleteFrameAsksForMore() throws IOException {
+        byte[] frame = write(channel -> WireProtocol.writeChunk(channel, new FileChunkMessage(peer, peer, fileMetadata, 0, new byte[100], null)));
+
+        assertEquals(5, WireProtocol.bufferedFrameLength(ByteBuffer.wrap(frame, 0, 3)));
+        int headerLength = WireProtocol.bufferedFrameLength(ByteBuffer.wrap(frame, 0, 5));
+        assertTrue(headerLength > 5 && headerLength < frame.length);
+        assertEquals(frame.length, WireProtocol.bufferedFrameLength(ByteBuffer.wrap(frame, 0, headerLength)));
+    }
+
+    @Test
+    public void testOversizedFramesAreRejected() {
+        ByteBuffer body = ByteBuffer.allocate(5).put(WireProtocol.FRAME_REQUEST).putInt(16 * 1024 * 1024 + 1).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(body));
+
+        ByteBuffer chunk = ByteBuffer.allocate(5 + 4 + 4).put(WireProtocol.FRAME_CHUNK).putInt(4).putInt(0).putInt(64 * 1024 * 1024 + 1).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(chunk));
+
+        DataInputStream payloadLength = new DataInputStream(new ByteArrayInputStream(ByteBuffer.allocate(4).putInt(-1).array()));
+        assertThrows(IOException.class, () -> WireProtocol.readPayloadLength(payloadLength));
+
+        List<InetAddress> hops = Collections.nCopies(65, InetAddress.getLoopbackAddress());
+        assertThrows(IOException.class, () -> write(channel -> WireProtocol.writeRoute(channel, hops)));
+    }
+
+    @Test
+    public void testMalformedFramesAreRejected() {
+        ByteBuffer emptyBody = ByteBuffer.allocate(5).put(WireProtocol.FRAME_CATALOG).putInt(0).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(emptyBody));
+
+        ByteBuffer unknownType = ByteBuffer.allocate(5).put((byte) 99).putInt(1).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(unknownType));
+
+        ByteBuffer noHops = ByteBuffer.allocate(3).put(WireProtocol.FRAME_ROUTED).put((byte) 0).put((byte) 0).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(noHops));
+
+        ByteBuffer pastLastHop = ByteBuffer.allocate(7).put(WireProtocol.FRAME_ROUTED).put((byte) 1).put((byte) 2).putInt(0).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(pastLastHop));
+
+        ByteBuffer nestedRoute = ByteBuffer.allocate(8).put(WireProtocol.FRAME_ROUTED).put((byte) 1).put((byte) 1).putInt(0).put(WireProtocol.FRAME_ROUTED).flip();
+        assertThrows(IOException.class, () -> WireProtocol.bufferedFrameLength(nestedRoute));
+
+        assertThrows(IOException.class, () -> WireProtocol.peekReceiverId(new byte[] {WireProtocol.FRAME_REQUEST, 0, 0, 0, 1, 0}));
+
+        ByteBuffer badMagic = ByteBuffer.allocate(5).putInt(0).put(WireProtocol.VERSION).flip();
+        assertThrows(IOException.class, () -> WireProtocol.readPreamble(badMagic));
+        ByteBuffer badVersion = ByteBuffer.allocate(5).putInt(WireProtocol.MAGIC).put((byte) (WireProtocol.VERSION + 1)).flip();
+        assertThrows(IOException.class, () -> WireProtocol.readPreamble(badVersion));
+    }
+
+    @Test
+    public void testTruncatedBodyIsRejected() throws IOException {
+        byte[] frame = write(channel -> WireProtocol.writeRequest(channel, new PeerFileMetadataRequestMessage(peer, peer, fileMetadata, Set.of(1))));
+        byte[] truncated = Arrays.copyOf(frame, frame.length - 1);
+        assertThrows(EOFException.class, () -> WireProtocol.readRequest(read(truncated, WireProtocol.FRAME_REQUEST), resolver));
+
+        // A negative chunk count within an intact body, the count precedes the single chunk index
+        ByteBuffer.wrap(frame).putInt(frame.length - 8, -1);
+        assertThrows(IOException.class, () -> WireProtocol.readRequest(read(frame, WireProtocol.FRAME_REQUEST), resolver));
+    }
+
+    private byte[] write(FrameWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(bytes);
+        writer.write(channel);
+        return bytes.toByteArray();
+    }
+
+    // A stream positioned after the frame type, as the blocking reader sees it
+    private DataInputStream read(byte[] frame, byte frameType) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        assertEquals(frameType, WireProtocol.readFrameType(in));
+        return in;
+    }
+
+    private interface FrameWriter {
+        void write(WritableByteChannel channel) throws IOException;
+    }
+}